@@ -0,0 +1,86 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import java.util.HashMap;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+/**
+ * Picks the EGLConfig for a display with a {@link GLWallpaperService.EGLConfigScorer} and remembers
+ * the winner for the life of the process.
+ *
+ * Only the first selection per display and scorer talks to EGL: one eglChooseConfig call with the
+ * scorer's hard requirements, then the attributes of each candidate.  Every later engine (preview
+ * and home screen) and every context restart gets the cached config.
+ */
+class EglConfigSelector {
+    private static final int MAX_CONFIGS = 64;
+
+    private static final HashMap<EGLDisplay, HashMap<GLWallpaperService.EGLConfigScorer, EGLConfig>> sCache =
+            new HashMap<EGLDisplay, HashMap<GLWallpaperService.EGLConfigScorer, EGLConfig>>();
+    private static volatile long sSelectionNanos;
+    private static volatile int sSelectionCount;
+    private static volatile int sCacheHitCount;
+
+    public static synchronized EGLConfig select(EGL10 egl, EGLDisplay display,
+                                                GLWallpaperService.EGLConfigScorer scorer) {
+        HashMap<GLWallpaperService.EGLConfigScorer, EGLConfig> configs = sCache.get(display);
+        if (configs == null) {
+            configs = new HashMap<GLWallpaperService.EGLConfigScorer, EGLConfig>();
+            sCache.put(display, configs);
+        }
+        EGLConfig config = configs.get(scorer);
+        if (config != null) {
+            sCacheHitCount++;
+            return config;
+        }
+
+        long startNanos = System.nanoTime();
+        config = choose(egl, display, scorer);
+        sSelectionNanos = System.nanoTime() - startNanos;
+        sSelectionCount++;
+        configs.put(scorer, config);
+        return config;
+    }
+
+    private static EGLConfig choose(EGL10 egl, EGLDisplay display, GLWallpaperService.EGLConfigScorer scorer) {
+        EGLConfig[] candidates = new EGLConfig[MAX_CONFIGS];
+        int[] numConfigs = new int[1];
+        if (!egl.eglChooseConfig(display, scorer.getConfigSpec(), candidates, MAX_CONFIGS, numConfigs)
+                || numConfigs[0] <= 0) {
+            throw new IllegalArgumentException("No configs match configSpec");
+        }
+
+        GLWallpaperService.EGLConfigAttributes attributes = new GLWallpaperService.EGLConfigAttributes();
+        EGLConfig best = null;
+        int bestScore = Integer.MAX_VALUE;
+        for (int i = 0; i < numConfigs[0]; i++) {
+            attributes.read(egl, display, candidates[i]);
+            int score = scorer.score(attributes);
+            if (score >= 0 && score < bestScore) {
+                bestScore = score;
+                best = candidates[i];
+            }
+        }
+        if (best == null) {
+            throw new IllegalArgumentException("No config chosen");
+        }
+        return best;
+    }
+
+    /**
+     * @return how long the last selection that was not served from the cache took.
+     */
+    public static long getSelectionNanos() {
+        return sSelectionNanos;
+    }
+
+    public static int getSelectionCount() {
+        return sSelectionCount;
+    }
+
+    public static int getCacheHitCount() {
+        return sCacheHitCount;
+    }
+}
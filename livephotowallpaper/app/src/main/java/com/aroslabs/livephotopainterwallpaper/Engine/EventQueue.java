@@ -0,0 +1,89 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded multi-producer/single-consumer ring buffer for GLThread events.
+ *
+ * Producers claim a slot with a CAS on the tail and publish into it, they never take a lock.
+ * The single consumer (the GLThread) drains everything that is published in one go.  A slot that
+ * was claimed but not yet published ends the batch; it is picked up on the next drain.
+ */
+class EventQueue {
+    private final AtomicReferenceArray<Runnable> mSlots;
+    private final int mMask;
+    private final AtomicLong mTail = new AtomicLong();
+    // Only written by the consumer, volatile so producers see freed slots.
+    private volatile long mHead;
+
+    /**
+     * @param capacity rounded up to the next power of two.
+     */
+    public EventQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<Runnable>(size);
+        mMask = size - 1;
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Adds an event, may be called from any thread.
+     *
+     * @return false if the queue is full.
+     */
+    public boolean offer(Runnable r) {
+        if (r == null) {
+            throw new NullPointerException("r");
+        }
+        while (true) {
+            long tail = mTail.get();
+            if (tail - mHead >= capacity()) {
+                return false;
+            }
+            if (mTail.compareAndSet(tail, tail + 1)) {
+                mSlots.lazySet((int) tail & mMask, r);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return true if no slot has been claimed since the last drain.  A claimed slot counts as
+     * non-empty even before its event is published.
+     */
+    public boolean isEmpty() {
+        return mTail.get() == mHead;
+    }
+
+    /**
+     * Moves every published event into batch, in order.  Consumer thread only.
+     *
+     * @return the number of events written to batch.
+     */
+    public int drainTo(Runnable[] batch) {
+        long head = mHead;
+        int count = 0;
+        while (count < batch.length) {
+            int index = (int) head & mMask;
+            Runnable r = mSlots.get(index);
+            if (r == null) {
+                break;
+            }
+            mSlots.lazySet(index, null);
+            batch[count++] = r;
+            head++;
+        }
+        mHead = head;
+        return count;
+    }
+}
@@ -1,12 +1,43 @@
 package com.aroslabs.livephotopainterwallpaper.Engine;
 
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 
 public class FrameBuffer {
 
+    private static final StatusSource GL_STATUS_SOURCE = new StatusSource() {
+        @Override
+        public int glCheckFramebufferStatus(int target) {
+            return GLES20.glCheckFramebufferStatus(target);
+        }
+    };
+    private static volatile StatusSource sStatusSource = GL_STATUS_SOURCE;
+
+    interface StatusSource {
+        int glCheckFramebufferStatus(int target);
+    }
+
+    /*
+     * Tests answer the completeness check from a fake here, null goes back to GLES20.
+     */
+    static void setStatusSource(StatusSource source) {
+        sStatusSource = source != null ? source : GL_STATUS_SOURCE;
+    }
+
     private int offscreenTexture;
     private int framebuffer;
     private int renderBuffer;
+    private int stencilBuffer;
+    private long allocatedBytes;
+    private long savedBytes;
+    private GLCapabilities capabilities;
+
+    /**
+     * Lets the framebuffer use immutable texture storage where the context has it.
+     */
+    public void setCapabilities(GLCapabilities capabilities) {
+        this.capabilities = capabilities;
+    }
 
     public int getOffscreenTexture() {
         return offscreenTexture;
@@ -16,26 +47,69 @@ public class FrameBuffer {
         return framebuffer;
     }
 
+    /**
+     * @return the depth render buffer, 0 if the format has no depth.
+     */
     public int getRenderBuffer() {
         return renderBuffer;
     }
 
+    public int getStencilBuffer() {
+        return stencilBuffer;
+    }
+
+    /**
+     * @return the memory taken by the attachments of the last prepared framebuffer.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * @return what the last prepared framebuffer saves, in memory and in bandwidth per full
+     * write, over the RGBA8888 colour and 16 bit depth buffer it always used to allocate.
+     */
+    public long getSavedBytes() {
+        return savedBytes;
+    }
+
+    /**
+     * Prepares an RGBA8888 framebuffer with a 16 bit depth buffer.
+     */
     public void prepareFramebuffer(int width, int height, boolean setViewport) {
+        prepareFramebuffer(width, height, setViewport,
+                new GLWallpaperService.SurfaceFormat(GLWallpaperService.SurfaceFormat.COLOR_RGBA8888, true, false));
+    }
+
+    /**
+     * Prepares a framebuffer with only the attachments the format asks for.
+     */
+    public void prepareFramebuffer(int width, int height, boolean setViewport, GLWallpaperService.SurfaceFormat format) {
         int[] values = new int[1];
+        boolean rgb565 = format.getColorFormat() == GLWallpaperService.SurfaceFormat.COLOR_RGB565;
 
         if (setViewport) {
-            GLES20.glViewport(0, 0, width, height);
+            GLStateCache.viewport(0, 0, width, height);
         }
 
         // Create a texture object and bind it.  This will be the color buffer.
         GLES20.glGenTextures(1, values, 0);
         offscreenTexture = values[0];
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, offscreenTexture);
+        GLStateCache.bindTexture(GLES20.GL_TEXTURE_2D, offscreenTexture);
         GLUtil.checkGlError("glBindTexture " + offscreenTexture);
 
         // Create texture storage.
-        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
-                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        if (capabilities != null && capabilities.hasImmutableTextureStorage()) {
+            // Immutable, the driver knows up front it never has to reallocate or check mip completeness.
+            GLES30.glTexStorage2D(GLES20.GL_TEXTURE_2D, 1, rgb565 ? GLES20.GL_RGB565 : GLES30.GL_RGBA8,
+                    width, height);
+        } else if (rgb565) {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, width, height, 0,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_SHORT_5_6_5, null);
+        } else {
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        }
 
         // Set parameters.  We're probably using non-power-of-two dimensions, so
         // some values may not be available for use.
@@ -53,36 +127,66 @@ public class FrameBuffer {
         GLES20.glGenFramebuffers(1, values, 0);
         GLUtil.checkGlError("glGenFramebuffers");
         framebuffer = values[0];
-        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        GLStateCache.bindFramebuffer(framebuffer);
         GLUtil.checkGlError("glBindFramebuffer " + framebuffer);
 
-        // Create a render buffer and bind it.
-        GLES20.glGenRenderbuffers(1, values, 0);
-        GLUtil.checkGlError("glGenRenderbuffers");
-        renderBuffer = values[0];
-        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, renderBuffer);
-        GLUtil.checkGlError("glBindRenderbuffer " + renderBuffer);
-
-        // Allocate storage for the render buffer.
-        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
-                width, height);
-        GLUtil.checkGlError("glRenderbufferStorage");
+        // Only give it a depth and a stencil buffer if the renderer is going to test against them.
+        renderBuffer = 0;
+        if (format.hasDepth()) {
+            renderBuffer = createRenderBuffer(GLES20.GL_DEPTH_COMPONENT16, GLES20.GL_DEPTH_ATTACHMENT,
+                    width, height, values);
+        }
+        stencilBuffer = 0;
+        if (format.hasStencil()) {
+            stencilBuffer = createRenderBuffer(GLES20.GL_STENCIL_INDEX8, GLES20.GL_STENCIL_ATTACHMENT,
+                    width, height, values);
+        }
 
-        // Attach the render buffer and the texture (color buffer) to the framebuffer object.
-        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
-                GLES20.GL_RENDERBUFFER, renderBuffer);
-        GLUtil.checkGlError("glFramebufferRenderbuffer");
+        // Attach the texture (color buffer) to the framebuffer object.
         GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
                 GLES20.GL_TEXTURE_2D, offscreenTexture, 0);
         GLUtil.checkGlError("glFramebufferTexture2D");
 
         // See if GLES is happy with all this.
-        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        int status = sStatusSource.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
         if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
             throw new RuntimeException("Framebuffer not complete, status=" + status);
         }
 
         GLUtil.checkGlError("prepareFramebuffer done");
+
+        long pixels = (long) width * height;
+        allocatedBytes = pixels * format.getBytesPerPixel();
+        savedBytes = Math.max(0, pixels * (4 + 2) - allocatedBytes);
+    }
+
+    private int createRenderBuffer(int internalFormat, int attachment, int width, int height, int[] values) {
+        GLES20.glGenRenderbuffers(1, values, 0);
+        GLUtil.checkGlError("glGenRenderbuffers");
+        int buffer = values[0];
+        GLES20.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, buffer);
+        GLUtil.checkGlError("glBindRenderbuffer " + buffer);
+
+        // Allocate storage for the render buffer.
+        GLES20.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, internalFormat, width, height);
+        GLUtil.checkGlError("glRenderbufferStorage");
+
+        // Attach the render buffer to the framebuffer object.
+        GLES20.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, attachment, GLES20.GL_RENDERBUFFER, buffer);
+        GLUtil.checkGlError("glFramebufferRenderbuffer");
+        return buffer;
+    }
+
+    /**
+     * Drops the names of a framebuffer that died with its context, without deleting anything.
+     */
+    public void forgetFrameBuffer() {
+        offscreenTexture = 0;
+        framebuffer = 0;
+        renderBuffer = 0;
+        stencilBuffer = 0;
+        allocatedBytes = 0;
+        savedBytes = 0;
     }
 
     public void releaseFrameBuffer() {
@@ -90,12 +194,12 @@ public class FrameBuffer {
 
         if (offscreenTexture > 0) {
             values[0] = offscreenTexture;
-            GLES20.glDeleteTextures(1, values, 0);
+            GLStateCache.deleteTextures(1, values, 0);
             offscreenTexture = -1;
         }
         if (framebuffer > 0) {
             values[0] = framebuffer;
-            GLES20.glDeleteFramebuffers(1, values, 0);
+            GLStateCache.deleteFramebuffers(1, values, 0);
             framebuffer = -1;
         }
         if (renderBuffer > 0) {
@@ -103,6 +207,13 @@ public class FrameBuffer {
             GLES20.glDeleteRenderbuffers(1, values, 0);
             renderBuffer = -1;
         }
+        if (stencilBuffer > 0) {
+            values[0] = stencilBuffer;
+            GLES20.glDeleteRenderbuffers(1, values, 0);
+            stencilBuffer = -1;
+        }
+        allocatedBytes = 0;
+        savedBytes = 0;
     }
 
 }
\ No newline at end of file
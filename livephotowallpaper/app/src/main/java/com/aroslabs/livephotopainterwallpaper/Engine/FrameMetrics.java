@@ -0,0 +1,155 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Always-on frame timing for a GLThread: a latency histogram per phase of the render loop, frame
+ * rate and late frame counts.
+ *
+ * Recording is done by the GLThread only and never allocates, it costs a couple of
+ * {@link System#nanoTime()} calls and array increments per frame.  Readers on other threads get
+ * a best effort view, values may be a frame out of date relative to each other.
+ */
+public class FrameMetrics {
+    public static final int PHASE_EVENTS = 0;
+    public static final int PHASE_DRAW = 1;
+    public static final int PHASE_SWAP = 2;
+    public static final int PHASE_WAIT = 3;
+    /**
+     * Not part of a frame: how long the GLThread took to act on a surface, pause or exit request.
+     */
+    public static final int PHASE_STATE = 4;
+    public static final int PHASE_COUNT = 5;
+
+    private static final String[] PHASE_NAMES = {"events", "draw", "swap", "wait", "state"};
+
+    // Bucket i holds samples in [2^(i-1), 2^i) microseconds, bucket 0 everything below 1us.
+    private static final int BUCKET_COUNT = 26;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private final long[][] mBuckets = new long[PHASE_COUNT][BUCKET_COUNT];
+    private final long[] mCounts = new long[PHASE_COUNT];
+    private final long[] mTotalNanos = new long[PHASE_COUNT];
+    private final long[] mMaxNanos = new long[PHASE_COUNT];
+
+    private volatile long mFrameCount;
+    private volatile long mLateFrameCount;
+    private long mWindowStartNanos;
+    private int mWindowFrames;
+    private volatile float mFramesPerSecond;
+
+    /**
+     * Adds one sample to a phase histogram, GLThread only.
+     */
+    void record(int phase, long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        long micros = nanos / 1000;
+        int bucket = 64 - Long.numberOfLeadingZeros(micros);
+        if (bucket >= BUCKET_COUNT) {
+            bucket = BUCKET_COUNT - 1;
+        }
+        mBuckets[phase][bucket]++;
+        mCounts[phase]++;
+        mTotalNanos[phase] += nanos;
+        if (nanos > mMaxNanos[phase]) {
+            mMaxNanos[phase] = nanos;
+        }
+    }
+
+    /**
+     * Counts a swapped frame, GLThread only.
+     *
+     * @param missedSlots how many frame slots the frame overran, see {@link FramePacer#endFrame}.
+     */
+    void recordFrame(long nowNanos, long missedSlots) {
+        mFrameCount++;
+        if (missedSlots > 0) {
+            mLateFrameCount++;
+        }
+        if (mWindowFrames == 0) {
+            mWindowStartNanos = nowNanos;
+        }
+        mWindowFrames++;
+        long window = nowNanos - mWindowStartNanos;
+        if (window >= NANOS_PER_SECOND) {
+            mFramesPerSecond = (mWindowFrames - 1) * (float) NANOS_PER_SECOND / window;
+            mWindowFrames = 1;
+            mWindowStartNanos = nowNanos;
+        }
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    /**
+     * @return the frame rate over the last complete one second window.  Stays at the last value
+     * while nothing is drawn.
+     */
+    public float getFramesPerSecond() {
+        return mFramesPerSecond;
+    }
+
+    public long getSampleCount(int phase) {
+        return mCounts[phase];
+    }
+
+    public long getMeanNanos(int phase) {
+        long count = mCounts[phase];
+        return count == 0 ? 0 : mTotalNanos[phase] / count;
+    }
+
+    public long getMaxNanos(int phase) {
+        return mMaxNanos[phase];
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the upper bound of the histogram bucket holding that percentile.
+     */
+    public long getPercentileNanos(int phase, float percentile) {
+        long[] buckets = mBuckets[phase];
+        long count = mCounts[phase];
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100f);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min((1L << i) * 1000, mMaxNanos[phase]);
+            }
+        }
+        return mMaxNanos[phase];
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public void dump(String prefix, PrintWriter out) {
+        out.print(prefix);
+        out.println(String.format(Locale.US, "frames=%d late=%d fps=%.1f",
+                mFrameCount, mLateFrameCount, mFramesPerSecond));
+        for (int phase = 0; phase < PHASE_COUNT; phase++) {
+            out.print(prefix);
+            out.println(String.format(Locale.US,
+                    "%-6s n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                    PHASE_NAMES[phase], mCounts[phase], millis(getMeanNanos(phase)),
+                    millis(getPercentileNanos(phase, 50)), millis(getPercentileNanos(phase, 90)),
+                    millis(getPercentileNanos(phase, 99)), millis(mMaxNanos[phase])));
+        }
+    }
+
+    private static float millis(long nanos) {
+        return nanos / 1000000f;
+    }
+}
@@ -0,0 +1,227 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.os.Build;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * Schedules GLThread frames against a monotonic deadline instead of sleeping a fixed amount
+ * after every swap.
+ *
+ * Every frame is assigned a start slot on a grid of {@link #getFrameIntervalNanos()} wide
+ * intervals.  When a frame overruns its slot the following slots are skipped (counted as dropped)
+ * so the pacer never tries to "catch up" by rendering a burst of frames.
+ *
+ * In {@link #PACING_VSYNC} mode the grid is aligned to the display vsync reported by
+ * {@link Choreographer} and the interval is rounded to a whole number of refresh periods.
+ *
+ * All times are {@link System#nanoTime()} based.
+ */
+class FramePacer {
+    public static final int PACING_DEADLINE = 0;
+    public static final int PACING_VSYNC = 1;
+
+    public static final int DEFAULT_FRAME_RATE = 60;
+    private static final float DEFAULT_REFRESH_RATE = 60f;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    // Choreographer is only sampled to keep the vsync phase from drifting, not every frame.
+    private static final long VSYNC_RESYNC_DELAY_MS = 1000;
+
+    // Written by the thread configuring the engine, read by the GLThread.
+    private volatile int mTargetFrameRate = DEFAULT_FRAME_RATE;
+    private volatile int mPacingMode = PACING_DEADLINE;
+    private volatile float mRefreshRate = DEFAULT_REFRESH_RATE;
+    private volatile long mVsyncTimeNanos;
+
+    // Only touched by the GLThread.
+    private long mFrameStartNanos;
+    private long mNextFrameNanos;
+
+    private volatile long mFrameCount;
+    private volatile long mLateFrameCount;
+    private volatile long mDroppedFrameCount;
+
+    // Only touched by the engine's looper thread.
+    private VsyncCallback mVsyncCallback;
+    private boolean mVsyncWanted;
+
+    public void setTargetFrameRate(int framesPerSecond) {
+        if (framesPerSecond <= 0) {
+            throw new IllegalArgumentException("framesPerSecond");
+        }
+        mTargetFrameRate = framesPerSecond;
+    }
+
+    public int getTargetFrameRate() {
+        return mTargetFrameRate;
+    }
+
+    public void setPacingMode(int pacingMode) {
+        if (pacingMode != PACING_DEADLINE && pacingMode != PACING_VSYNC) {
+            throw new IllegalArgumentException("pacingMode");
+        }
+        mPacingMode = pacingMode;
+        updateVsyncSampling();
+    }
+
+    public int getPacingMode() {
+        return mPacingMode;
+    }
+
+    public void setDisplayRefreshRate(float refreshRate) {
+        if (refreshRate > 0) {
+            mRefreshRate = refreshRate;
+        }
+    }
+
+    /**
+     * @return the distance between two frame slots for the current configuration.
+     */
+    public long getFrameIntervalNanos() {
+        if (isVsyncAligned()) {
+            long vsyncPeriod = (long) (NANOS_PER_SECOND / mRefreshRate);
+            long vsyncsPerFrame = Math.max(1, Math.round(mRefreshRate / mTargetFrameRate));
+            return vsyncPeriod * vsyncsPerFrame;
+        }
+        return NANOS_PER_SECOND / mTargetFrameRate;
+    }
+
+    /**
+     * @return how long the GLThread has to wait before it may start the next frame, 0 if it is
+     * already due.
+     */
+    public long nanosUntilNextFrame(long nowNanos) {
+        if (mNextFrameNanos == 0) {
+            return 0;
+        }
+        // Clamp so that lowering the frame interval takes effect without waiting out the old one.
+        return Math.max(0, Math.min(mNextFrameNanos - nowNanos, getFrameIntervalNanos()));
+    }
+
+    /**
+     * Called by the GLThread right before the renderer draws.
+     */
+    public void beginFrame(long nowNanos) {
+        long interval = getFrameIntervalNanos();
+        if (mNextFrameNanos == 0 || nowNanos - mNextFrameNanos >= interval) {
+            // First frame, or we were idle (render when dirty, paused) for longer than a slot:
+            // start a fresh grid instead of reporting the idle time as dropped frames.
+            mFrameStartNanos = alignToVsync(nowNanos);
+        } else {
+            mFrameStartNanos = mNextFrameNanos;
+        }
+    }
+
+    /**
+     * Called by the GLThread once the frame has been swapped.  Schedules the next slot and
+     * accounts for frames that did not make their slot.
+     *
+     * @return how many slots the frame overran, 0 if it made its slot.
+     */
+    public long endFrame(long nowNanos) {
+        long interval = getFrameIntervalNanos();
+        long missedSlots = Math.max(0, (nowNanos - mFrameStartNanos) / interval);
+        if (missedSlots > 0) {
+            mLateFrameCount++;
+            mDroppedFrameCount += missedSlots;
+        }
+        mFrameCount++;
+        mNextFrameNanos = mFrameStartNanos + (missedSlots + 1) * interval;
+        return missedSlots;
+    }
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return frames which finished after the slot they were scheduled for had ended.
+     */
+    public long getLateFrameCount() {
+        return mLateFrameCount;
+    }
+
+    /**
+     * @return frame slots that were skipped because the previous frame overran them.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * Samples vsync from {@link Choreographer} from now on, but only while the pacing mode is
+     * {@link #PACING_VSYNC}.  Call when the engine becomes visible, from a thread with a
+     * {@link Looper}, normally the wallpaper engine's main thread.  Mode changes have to come
+     * from that thread too to start or stop sampling.
+     */
+    public void startVsync() {
+        mVsyncWanted = true;
+        updateVsyncSampling();
+    }
+
+    /**
+     * Stops sampling vsync, must be called from the thread that called {@link #startVsync()}.
+     */
+    public void stopVsync() {
+        mVsyncWanted = false;
+        updateVsyncSampling();
+    }
+
+    private void updateVsyncSampling() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || Looper.myLooper() == null) {
+            return;
+        }
+        if (mVsyncWanted && mPacingMode == PACING_VSYNC) {
+            if (mVsyncCallback == null) {
+                mVsyncCallback = new VsyncCallback();
+            }
+            mVsyncCallback.start();
+        } else if (mVsyncCallback != null) {
+            mVsyncCallback.stop();
+        }
+    }
+
+    private boolean isVsyncAligned() {
+        return mPacingMode == PACING_VSYNC && mVsyncTimeNanos != 0;
+    }
+
+    private long alignToVsync(long nowNanos) {
+        if (!isVsyncAligned()) {
+            return nowNanos;
+        }
+        long vsyncPeriod = (long) (NANOS_PER_SECOND / mRefreshRate);
+        long vsyncTime = mVsyncTimeNanos;
+        long sinceVsync = nowNanos - vsyncTime;
+        if (sinceVsync < 0) {
+            // Choreographer may report a vsync slightly ahead of us, step back whole periods.
+            sinceVsync += ((-sinceVsync / vsyncPeriod) + 1) * vsyncPeriod;
+        }
+        return nowNanos - (sinceVsync % vsyncPeriod);
+    }
+
+    private class VsyncCallback implements Choreographer.FrameCallback {
+        private boolean mRunning;
+
+        void start() {
+            if (!mRunning) {
+                mRunning = true;
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+
+        void stop() {
+            if (mRunning) {
+                mRunning = false;
+                Choreographer.getInstance().removeFrameCallback(this);
+            }
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mVsyncTimeNanos = frameTimeNanos;
+            if (mRunning) {
+                Choreographer.getInstance().postFrameCallbackDelayed(this, VSYNC_RESYNC_DELAY_MS);
+            }
+        }
+    }
+}
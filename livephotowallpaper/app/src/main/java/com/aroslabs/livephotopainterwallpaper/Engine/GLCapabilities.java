@@ -0,0 +1,120 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLES20;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What the current OpenGL ES context can do: its version and extensions, with shortcuts for the
+ * features that have a faster code path.  Handed to renderers through
+ * {@link GLWallpaperService.CapabilityListener} whenever a new context is created.
+ *
+ * Anything that needs ES 3.0 calls {@link android.opengl.GLES30}, which exists from API 18 on.
+ * An ES 3 context implies such a device.
+ */
+public class GLCapabilities {
+    private final int mMajorVersion;
+    private final int mMinorVersion;
+    private final Set<String> mExtensions;
+
+    GLCapabilities(int majorVersion, int minorVersion, Set<String> extensions) {
+        mMajorVersion = majorVersion;
+        mMinorVersion = minorVersion;
+        mExtensions = Collections.unmodifiableSet(extensions);
+    }
+
+    /**
+     * Reads the capabilities of the context current on the calling thread.
+     */
+    static GLCapabilities query() {
+        int[] version = parseVersion(GLES20.glGetString(GLES20.GL_VERSION));
+        Set<String> extensions = new HashSet<String>();
+        String list = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        if (list != null) {
+            for (String extension : list.split(" ")) {
+                if (extension.length() > 0) {
+                    extensions.add(extension);
+                }
+            }
+        }
+        return new GLCapabilities(version[0], version[1], extensions);
+    }
+
+    /*
+     * GL_VERSION looks like "OpenGL ES 3.2 V@415.0", anything we can't read counts as 2.0.
+     */
+    static int[] parseVersion(String version) {
+        int[] result = {2, 0};
+        if (version == null) {
+            return result;
+        }
+        String prefix = "OpenGL ES ";
+        int start = version.startsWith(prefix) ? prefix.length() : 0;
+        int dot = version.indexOf('.', start);
+        if (dot <= start || dot + 1 >= version.length()) {
+            return result;
+        }
+        try {
+            int major = Integer.parseInt(version.substring(start, dot));
+            int end = dot + 1;
+            while (end < version.length() && Character.isDigit(version.charAt(end))) {
+                end++;
+            }
+            int minor = Integer.parseInt(version.substring(dot + 1, end));
+            result[0] = major;
+            result[1] = minor;
+        } catch (NumberFormatException e) {
+            // keep 2.0
+        }
+        return result;
+    }
+
+    public int getMajorVersion() {
+        return mMajorVersion;
+    }
+
+    public int getMinorVersion() {
+        return mMinorVersion;
+    }
+
+    public boolean isAtLeast(int major, int minor) {
+        return mMajorVersion > major || (mMajorVersion == major && mMinorVersion >= minor);
+    }
+
+    public boolean hasExtension(String extension) {
+        return mExtensions.contains(extension);
+    }
+
+    public Set<String> getExtensions() {
+        return mExtensions;
+    }
+
+    /**
+     * @return true if pixel buffer objects can stream texture uploads (GL_PIXEL_UNPACK_BUFFER).
+     */
+    public boolean hasPixelBufferObjects() {
+        return isAtLeast(3, 0);
+    }
+
+    /**
+     * @return true if glTexStorage2D can allocate immutable textures.
+     */
+    public boolean hasImmutableTextureStorage() {
+        return isAtLeast(3, 0);
+    }
+
+    public boolean hasInstancing() {
+        return isAtLeast(3, 0);
+    }
+
+    public boolean hasVertexArrayObjects() {
+        return isAtLeast(3, 0);
+    }
+
+    @Override
+    public String toString() {
+        return "OpenGL ES " + mMajorVersion + "." + mMinorVersion + ", " + mExtensions.size() + " extensions";
+    }
+}
@@ -0,0 +1,413 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.GLUtils;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Remembers how to build every GL object a renderer owns, so a new context gets the same scene back
+ * without going to disk: after EGL_CONTEXT_LOST, and after the context was released while the
+ * wallpaper was hidden. Programs keep their sources, framebuffers their size and format, and
+ * textures a copy of the last pixels uploaded, as RGB_565 when the bitmap is opaque.
+ *
+ * Call {@link #rebuild()} from onSurfaceCreated, everything registered is created again in the
+ * new context. Like the rest of GL, only use it on the GLThread.
+ */
+public class GLResourceRegistry {
+
+    private static final String TAG = "GLResourceRegistry";
+
+    /**
+     * Something that lives in the context and can be created again from what it kept.
+     */
+    public interface Resource {
+        /**
+         * Creates the object in the current context. The one made in an earlier context is gone
+         * with that context, don't delete it.
+         */
+        void create();
+
+        /**
+         * Deletes the object in the current context and drops what was kept to rebuild it.
+         */
+        void release();
+
+        /**
+         * @return the CPU memory kept to rebuild the object.
+         */
+        long getRetainedBytes();
+    }
+
+    public static class Program implements Resource {
+        private final String mVertexSource;
+        private final String mFragmentSource;
+        private int mId;
+
+        public Program(String vertexSource, String fragmentSource) {
+            mVertexSource = vertexSource;
+            mFragmentSource = fragmentSource;
+        }
+
+        @Override
+        public void create() {
+            mId = GLUtil.createProgram(mVertexSource, mFragmentSource);
+        }
+
+        @Override
+        public void release() {
+            if (mId != 0) {
+                GLStateCache.deleteProgram(mId);
+                mId = 0;
+            }
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return 2L * (mVertexSource.length() + mFragmentSource.length());
+        }
+
+        /**
+         * @return the program in the current context, 0 if it did not link.
+         */
+        public int getId() {
+            return mId;
+        }
+    }
+
+    /**
+     * A 2D texture with linear filtering and clamped edges, filled from a bitmap.
+     */
+    public static class Texture implements Resource {
+        private final GLResourceRegistry mRegistry;
+        private final int[] mId = new int[1];
+        private Bitmap mPixels;
+        private int mWidth;
+        private int mHeight;
+        private Bitmap.Config mConfig;
+        private long mUploadedBytes;
+
+        Texture(GLResourceRegistry registry) {
+            mRegistry = registry;
+        }
+
+        /**
+         * Uploads the bitmap and keeps a compact copy of it for the next context. The bitmap
+         * itself can be recycled afterwards.
+         */
+        public void upload(Bitmap bitmap) {
+            Bitmap pixels = retainedCopy(bitmap);
+            if (mId[0] != 0 && (mWidth != bitmap.getWidth() || mHeight != bitmap.getHeight()
+                    || mConfig != bitmap.getConfig())) {
+                // Immutable storage can't be resized or reformatted, start over with a new texture.
+                GLStateCache.deleteTextures(1, mId, 0);
+                mId[0] = 0;
+            }
+            uploadPixels(bitmap, mId[0] == 0);
+            if (mPixels != null) {
+                mPixels.recycle();
+            }
+            mPixels = pixels;
+        }
+
+        @Override
+        public void create() {
+            mId[0] = 0;
+            if (mPixels != null) {
+                uploadPixels(mPixels, true);
+            }
+        }
+
+        private void uploadPixels(Bitmap bitmap, boolean allocate) {
+            if (allocate) {
+                GLES20.glGenTextures(1, mId, 0);
+            }
+            GLStateCache.bindTexture(GLES20.GL_TEXTURE_2D, mId[0]);
+            texImage(bitmap, allocate, mRegistry.mCapabilities);
+            mWidth = bitmap.getWidth();
+            mHeight = bitmap.getHeight();
+            mConfig = bitmap.getConfig();
+            mUploadedBytes = bitmap.getByteCount();
+        }
+
+        /*
+         * Fills the bound texture from the bitmap, allocating its storage first if asked to.
+         */
+        static void texImage(Bitmap bitmap, boolean allocate, GLCapabilities capabilities) {
+            boolean immutableStorage = capabilities != null && capabilities.hasImmutableTextureStorage();
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+            if (immutableStorage) {
+                if (allocate) {
+                    int format = bitmap.getConfig() == Bitmap.Config.RGB_565 ? GLES20.GL_RGB565 : GLES30.GL_RGBA8;
+                    GLES30.glTexStorage2D(GLES20.GL_TEXTURE_2D, 1, format, bitmap.getWidth(), bitmap.getHeight());
+                }
+                GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, bitmap);
+            } else {
+                GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            }
+        }
+
+        /*
+         * The copy kept for the next context, RGB_565 unless the bitmap has alpha.
+         */
+        static Bitmap retainedCopy(Bitmap bitmap) {
+            return bitmap.hasAlpha() || bitmap.getConfig() == Bitmap.Config.RGB_565
+                    ? bitmap.copy(bitmap.getConfig(), false) : bitmap.copy(Bitmap.Config.RGB_565, false);
+        }
+
+        /**
+         * Takes over a texture the {@link TextureLoader} finished, in place of the current one. Call
+         * on the GLThread once {@link TextureLoader.Upload#isReady()}.
+         */
+        public void adopt(TextureLoader.Upload upload) {
+            if (mId[0] != 0) {
+                GLStateCache.deleteTextures(1, mId, 0);
+            }
+            if (mPixels != null) {
+                mPixels.recycle();
+            }
+            mId[0] = upload.takeTextureId();
+            mPixels = upload.takePixels();
+            mWidth = upload.getWidth();
+            mHeight = upload.getHeight();
+            mConfig = upload.getConfig();
+            mUploadedBytes = upload.getUploadedBytes();
+        }
+
+        @Override
+        public void release() {
+            if (mId[0] != 0) {
+                GLStateCache.deleteTextures(1, mId, 0);
+                mId[0] = 0;
+            }
+            if (mPixels != null) {
+                mPixels.recycle();
+                mPixels = null;
+            }
+            mUploadedBytes = 0;
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return mPixels == null ? 0 : mPixels.getByteCount();
+        }
+
+        public int getId() {
+            return mId[0];
+        }
+
+        /**
+         * @return true once pixels were uploaded, in this context or an earlier one.
+         */
+        public boolean hasPixels() {
+            return mPixels != null;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * @return the size of the pixels last uploaded.
+         */
+        public long getUploadedBytes() {
+            return mUploadedBytes;
+        }
+    }
+
+    /**
+     * A {@link FrameBuffer} that is prepared again with the same size and format. Leaves the window
+     * bound as the framebuffer. A driver that can't make it, in a new context as much as the first
+     * time, leaves it incomplete rather than throwing, see {@link #isComplete()}.
+     */
+    public static class FrameBufferResource implements Resource {
+        private final FrameBuffer mFrameBuffer = new FrameBuffer();
+        private final GLResourceRegistry mRegistry;
+        private int mWidth;
+        private int mHeight;
+        private GLWallpaperService.SurfaceFormat mFormat;
+        private boolean mComplete;
+
+        FrameBufferResource(GLResourceRegistry registry) {
+            mRegistry = registry;
+        }
+
+        /**
+         * (Re)allocates the framebuffer, releasing the one prepared before in this context.
+         */
+        public void prepare(int width, int height, GLWallpaperService.SurfaceFormat format) {
+            mFrameBuffer.releaseFrameBuffer();
+            mWidth = width;
+            mHeight = height;
+            mFormat = format;
+            create();
+        }
+
+        @Override
+        public void create() {
+            mFrameBuffer.forgetFrameBuffer();
+            mComplete = false;
+            if (mFormat != null) {
+                mFrameBuffer.setCapabilities(mRegistry.mCapabilities);
+                try {
+                    mFrameBuffer.prepareFramebuffer(mWidth, mHeight, false, mFormat);
+                    mComplete = true;
+                } catch (RuntimeException e) {
+                    // Called from onSurfaceCreated on a rebuild, throwing would take the GLThread
+                    // down with every engine on it.
+                    Log.w(TAG, "framebuffer " + mWidth + "x" + mHeight + " not created: " + e.getMessage());
+                    mFrameBuffer.releaseFrameBuffer();
+                }
+                // Prepared bound, draws meant for the window would end up in it.
+                GLStateCache.bindFramebuffer(0);
+            }
+        }
+
+        @Override
+        public void release() {
+            mFrameBuffer.releaseFrameBuffer();
+            mFormat = null;
+            mComplete = false;
+        }
+
+        /**
+         * @return true if the framebuffer can be drawn into, false if it was never prepared or the
+         * driver could not make it.
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return 0;
+        }
+
+        public FrameBuffer getFrameBuffer() {
+            return mFrameBuffer;
+        }
+    }
+
+    private final ArrayList<Resource> mResources = new ArrayList<Resource>();
+    private GLCapabilities mCapabilities;
+    private int mRebuildCount;
+    private long mLastRebuildNanos;
+
+    /**
+     * Lets textures, framebuffers and quads use the ES 3 paths, pass it on from
+     * {@link GLWallpaperService.CapabilityListener}.
+     */
+    public void setCapabilities(GLCapabilities capabilities) {
+        mCapabilities = capabilities;
+    }
+
+    GLCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    /**
+     * Creates the program in the current context and keeps its sources.
+     */
+    public Program registerProgram(String vertexSource, String fragmentSource) {
+        return register(new Program(vertexSource, fragmentSource));
+    }
+
+    /**
+     * @return a texture without pixels yet, see {@link Texture#upload}.
+     */
+    public Texture registerTexture() {
+        Texture texture = new Texture(this);
+        mResources.add(texture);
+        return texture;
+    }
+
+    /**
+     * @return a framebuffer that is not allocated yet, see {@link FrameBufferResource#prepare}.
+     */
+    public FrameBufferResource registerFrameBuffer() {
+        FrameBufferResource frameBuffer = new FrameBufferResource(this);
+        mResources.add(frameBuffer);
+        return frameBuffer;
+    }
+
+    /**
+     * Creates a quad in GPU memory for the current context and keeps its vertices, see
+     * {@link QuadGeometry}.
+     */
+    public QuadGeometry registerQuad(float[] positions, float[] textureCoords) {
+        return register(new QuadGeometry(this, positions, textureCoords));
+    }
+
+    /**
+     * Creates the resource in the current context and rebuilds it with every later one.
+     */
+    public <T extends Resource> T register(T resource) {
+        resource.create();
+        mResources.add(resource);
+        return resource;
+    }
+
+    public void unregister(Resource resource) {
+        if (mResources.remove(resource)) {
+            resource.release();
+        }
+    }
+
+    /**
+     * @return true if nothing is registered, i.e. there is no scene to rebuild.
+     */
+    public boolean isEmpty() {
+        return mResources.isEmpty();
+    }
+
+    /**
+     * Creates everything registered in the current, new, context, in the order it was registered.
+     */
+    public void rebuild() {
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < mResources.size(); i++) {
+            mResources.get(i).create();
+        }
+        mLastRebuildNanos = System.nanoTime() - startNanos;
+        mRebuildCount++;
+    }
+
+    /**
+     * Deletes everything in the current context and forgets it.
+     */
+    public void releaseAll() {
+        for (int i = mResources.size() - 1; i >= 0; i--) {
+            mResources.get(i).release();
+        }
+        mResources.clear();
+    }
+
+    public int getRebuildCount() {
+        return mRebuildCount;
+    }
+
+    public long getLastRebuildNanos() {
+        return mLastRebuildNanos;
+    }
+
+    /**
+     * @return the CPU memory kept to rebuild everything.
+     */
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mResources.size(); i++) {
+            bytes += mResources.get(i).getRetainedBytes();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,347 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * A shadow copy of the GL state the renderers and the engine change most, so setting again what is
+ * already set costs nothing: the program, the blend, cull, depth, scissor and stencil tests, the
+ * blend function, the viewport, the bound framebuffer, array buffer, vertex array and 2D textures,
+ * and which vertex attribute arrays are enabled. Calls that would change nothing are elided and
+ * counted, everything else is issued.
+ *
+ * The cache only knows what went through it. Code that changes state behind its back, like GPUImage
+ * filters drawing with their own programs, attribute arrays and textures, must be followed by
+ * {@link #invalidateBindings()}. The state belongs to the context, the GLThread calls
+ * {@link #invalidate()} for every new one. Only use it on the GLThread, other threads with a
+ * context of their own (the {@link TextureLoader}) call GLES20 directly.
+ */
+public class GLStateCache {
+    private static final int UNKNOWN = -1;
+    private static final int MAX_TEXTURE_UNITS = 8;
+    private static final int MAX_ATTRIBS = 16;
+    private static final int[] CAPABILITIES = {
+            GLES20.GL_BLEND, GLES20.GL_CULL_FACE, GLES20.GL_DEPTH_TEST, GLES20.GL_SCISSOR_TEST,
+            GLES20.GL_STENCIL_TEST
+    };
+
+    // 1 enabled, 0 disabled, UNKNOWN before the first call through the cache.
+    private static final int[] sCapabilities = new int[CAPABILITIES.length];
+    private static final int[] sTextures = new int[MAX_TEXTURE_UNITS];
+    private static int sProgram;
+    private static int sBlendSource;
+    private static int sBlendDestination;
+    private static int sViewportX;
+    private static int sViewportY;
+    private static int sViewportWidth;
+    private static int sViewportHeight;
+    private static int sFramebuffer;
+    private static int sArrayBuffer;
+    private static int sVertexArray;
+    // Without ES 3 the default vertex array is the only one, so it is always the one bound.
+    private static boolean sVertexArraysSupported = true;
+    // Index of the active texture unit.
+    private static int sActiveTexture;
+    // Attribute arrays of the default vertex array, bit per index.
+    private static int sKnownAttribs;
+    private static int sEnabledAttribs;
+
+    private static long sIssuedCount;
+    private static long sElidedCount;
+
+    static {
+        invalidate();
+    }
+
+    /**
+     * Forgets everything, for a new context.
+     */
+    public static void invalidate() {
+        for (int i = 0; i < sCapabilities.length; i++) {
+            sCapabilities[i] = UNKNOWN;
+        }
+        sBlendSource = UNKNOWN;
+        sBlendDestination = UNKNOWN;
+        sViewportWidth = UNKNOWN;
+        sVertexArray = sVertexArraysSupported ? UNKNOWN : 0;
+        invalidateBindings();
+    }
+
+    /**
+     * Tells the cache whether the context has vertex array objects. Without them the attribute
+     * arrays stay cached across {@link #invalidate()}, there is no other vertex array that could
+     * have been bound.
+     */
+    public static void setVertexArraysSupported(boolean supported) {
+        sVertexArraysSupported = supported;
+        sVertexArray = supported ? UNKNOWN : 0;
+        sKnownAttribs = 0;
+    }
+
+    /**
+     * Forgets the program, framebuffer, array buffer, textures and attribute arrays, after code that
+     * may have changed them without the cache.
+     */
+    public static void invalidateBindings() {
+        sProgram = UNKNOWN;
+        sFramebuffer = UNKNOWN;
+        sArrayBuffer = UNKNOWN;
+        sActiveTexture = UNKNOWN;
+        for (int i = 0; i < MAX_TEXTURE_UNITS; i++) {
+            sTextures[i] = UNKNOWN;
+        }
+        sKnownAttribs = 0;
+    }
+
+    public static void useProgram(int program) {
+        if (program == sProgram) {
+            sElidedCount++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        sProgram = program;
+        sIssuedCount++;
+    }
+
+    public static void enable(int capability) {
+        setCapability(capability, true);
+    }
+
+    public static void disable(int capability) {
+        setCapability(capability, false);
+    }
+
+    private static void setCapability(int capability, boolean enabled) {
+        int index = indexOf(capability);
+        int state = enabled ? 1 : 0;
+        if (index >= 0 && sCapabilities[index] == state) {
+            sElidedCount++;
+            return;
+        }
+        if (enabled) {
+            GLES20.glEnable(capability);
+        } else {
+            GLES20.glDisable(capability);
+        }
+        if (index >= 0) {
+            sCapabilities[index] = state;
+        }
+        sIssuedCount++;
+    }
+
+    /**
+     * @return whether the capability is enabled, asking GL only if the cache doesn't know.
+     */
+    public static boolean isEnabled(int capability) {
+        int index = indexOf(capability);
+        if (index >= 0 && sCapabilities[index] != UNKNOWN) {
+            return sCapabilities[index] == 1;
+        }
+        boolean enabled = GLES20.glIsEnabled(capability);
+        if (index >= 0) {
+            sCapabilities[index] = enabled ? 1 : 0;
+        }
+        return enabled;
+    }
+
+    private static int indexOf(int capability) {
+        for (int i = 0; i < CAPABILITIES.length; i++) {
+            if (CAPABILITIES[i] == capability) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void blendFunc(int source, int destination) {
+        if (source == sBlendSource && destination == sBlendDestination) {
+            sElidedCount++;
+            return;
+        }
+        GLES20.glBlendFunc(source, destination);
+        sBlendSource = source;
+        sBlendDestination = destination;
+        sIssuedCount++;
+    }
+
+    public static void viewport(int x, int y, int width, int height) {
+        if (x == sViewportX && y == sViewportY && width == sViewportWidth && height == sViewportHeight) {
+            sElidedCount++;
+            return;
+        }
+        GLES20.glViewport(x, y, width, height);
+        sViewportX = x;
+        sViewportY = y;
+        sViewportWidth = width;
+        sViewportHeight = height;
+        sIssuedCount++;
+    }
+
+    public static void bindFramebuffer(int framebuffer) {
+        if (framebuffer == sFramebuffer) {
+            sElidedCount++;
+            return;
+        }
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+        sFramebuffer = framebuffer;
+        sIssuedCount++;
+    }
+
+    /**
+     * Only GL_ARRAY_BUFFER is cached, other targets are always issued.
+     */
+    public static void bindBuffer(int target, int buffer) {
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            if (buffer == sArrayBuffer) {
+                sElidedCount++;
+                return;
+            }
+            sArrayBuffer = buffer;
+        }
+        GLES20.glBindBuffer(target, buffer);
+        sIssuedCount++;
+    }
+
+    /**
+     * ES 3 only. Attribute arrays enabled while a vertex array other than the default one is bound
+     * are part of that vertex array, they are not cached.
+     */
+    public static void bindVertexArray(int vertexArray) {
+        if (vertexArray == sVertexArray) {
+            sElidedCount++;
+            return;
+        }
+        GLES30.glBindVertexArray(vertexArray);
+        sVertexArray = vertexArray;
+        sKnownAttribs = 0;
+        sIssuedCount++;
+    }
+
+    /**
+     * @param unit GL_TEXTURE0 and up.
+     */
+    public static void activeTexture(int unit) {
+        int index = unit - GLES20.GL_TEXTURE0;
+        if (index == sActiveTexture) {
+            sElidedCount++;
+            return;
+        }
+        GLES20.glActiveTexture(unit);
+        sActiveTexture = index;
+        sIssuedCount++;
+    }
+
+    /**
+     * Binds to the active unit. Only GL_TEXTURE_2D on the first units is cached.
+     */
+    public static void bindTexture(int target, int texture) {
+        int unit = sActiveTexture;
+        boolean cached = target == GLES20.GL_TEXTURE_2D && unit >= 0 && unit < MAX_TEXTURE_UNITS;
+        if (cached && sTextures[unit] == texture) {
+            sElidedCount++;
+            return;
+        }
+        GLES20.glBindTexture(target, texture);
+        if (cached) {
+            sTextures[unit] = texture;
+        }
+        sIssuedCount++;
+    }
+
+    public static void enableVertexAttribArray(int index) {
+        setVertexAttribArray(index, true);
+    }
+
+    public static void disableVertexAttribArray(int index) {
+        setVertexAttribArray(index, false);
+    }
+
+    private static void setVertexAttribArray(int index, boolean enabled) {
+        boolean cached = sVertexArray == 0 && index >= 0 && index < MAX_ATTRIBS;
+        int bit = cached ? 1 << index : 0;
+        if (cached && (sKnownAttribs & bit) != 0 && ((sEnabledAttribs & bit) != 0) == enabled) {
+            sElidedCount++;
+            return;
+        }
+        if (enabled) {
+            GLES20.glEnableVertexAttribArray(index);
+            sEnabledAttribs |= bit;
+        } else {
+            GLES20.glDisableVertexAttribArray(index);
+            sEnabledAttribs &= ~bit;
+        }
+        sKnownAttribs |= bit;
+        sIssuedCount++;
+    }
+
+    /*
+     * Deleting an object unbinds it from the current context, the cache goes along. Issued like any
+     * other call.
+     */
+
+    public static void deleteProgram(int program) {
+        GLES20.glDeleteProgram(program);
+        if (program == sProgram) {
+            // Still in use until another program is, but its name must not count as current.
+            sProgram = UNKNOWN;
+        }
+        sIssuedCount++;
+    }
+
+    public static void deleteTextures(int n, int[] textures, int offset) {
+        GLES20.glDeleteTextures(n, textures, offset);
+        for (int i = 0; i < n; i++) {
+            for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+                if (sTextures[unit] == textures[offset + i]) {
+                    sTextures[unit] = 0;
+                }
+            }
+        }
+        sIssuedCount++;
+    }
+
+    public static void deleteFramebuffers(int n, int[] framebuffers, int offset) {
+        GLES20.glDeleteFramebuffers(n, framebuffers, offset);
+        for (int i = 0; i < n; i++) {
+            if (sFramebuffer == framebuffers[offset + i]) {
+                sFramebuffer = 0;
+            }
+        }
+        sIssuedCount++;
+    }
+
+    public static void deleteBuffers(int n, int[] buffers, int offset) {
+        GLES20.glDeleteBuffers(n, buffers, offset);
+        for (int i = 0; i < n; i++) {
+            if (sArrayBuffer == buffers[offset + i]) {
+                sArrayBuffer = 0;
+            }
+        }
+        sIssuedCount++;
+    }
+
+    public static void deleteVertexArrays(int n, int[] vertexArrays, int offset) {
+        GLES30.glDeleteVertexArrays(n, vertexArrays, offset);
+        for (int i = 0; i < n; i++) {
+            if (sVertexArray == vertexArrays[offset + i]) {
+                sVertexArray = 0;
+                sKnownAttribs = 0;
+            }
+        }
+        sIssuedCount++;
+    }
+
+    /**
+     * @return state calls that went to GL so far, on whichever engine.
+     */
+    public static long getIssuedCount() {
+        return sIssuedCount;
+    }
+
+    /**
+     * @return state calls skipped because they would not have changed anything.
+     */
+    public static long getElidedCount() {
+        return sElidedCount;
+    }
+}
@@ -10,6 +10,78 @@ public class GLUtil {
 
     private static final String TAG = "GLUtil";
 
+    /*
+     * How much glGetError checking to do. Every glGetError can stall the CPU until the driver has
+     * caught up with the commands queued so far, so by default only the GLThread checks, once per
+     * frame after the swap. That still catches every error (GL keeps the flag until it is read),
+     * it just can't tell which call raised it.
+     */
+    /** No checking at all. */
+    public static final int CHECK_OFF = 0;
+    /** One batched check per frame, errors are logged and counted. */
+    public static final int CHECK_PER_FRAME = 1;
+    /** {@link #checkGlError} checks after the call it names and throws. */
+    public static final int CHECK_PER_CALL = 2;
+    /** Per call, and every checked call is logged. GL10 calls go through GLDebugHelper as well. */
+    public static final int CHECK_TRACE = 3;
+
+    // Stops checkFrameErrors from spinning on a driver that keeps reporting the same error.
+    private static final int MAX_ERRORS_PER_CHECK = 8;
+
+    private static volatile int sCheckLevel = CHECK_PER_FRAME;
+    private static volatile boolean sCheckLevelSet;
+    private static volatile long sErrorCount;
+    private static final ErrorSource GL_ERROR_SOURCE = new ErrorSource() {
+        @Override
+        public int glGetError() {
+            return GLES20.glGetError();
+        }
+    };
+    private static volatile ErrorSource sErrorSource = GL_ERROR_SOURCE;
+
+    interface ErrorSource {
+        int glGetError();
+    }
+
+    /*
+     * Tests read errors from a fake here, null goes back to GLES20.
+     */
+    static void setErrorSource(ErrorSource source) {
+        sErrorSource = source != null ? source : GL_ERROR_SOURCE;
+    }
+
+    /**
+     * Selects how much error checking to do, one of the CHECK_* levels. Process wide, takes effect
+     * with the next check. {@link #CHECK_TRACE} wraps GL10 only in contexts created after this.
+     */
+    public static void setCheckLevel(int level) {
+        if (level < CHECK_OFF || level > CHECK_TRACE) {
+            throw new IllegalArgumentException("level");
+        }
+        sCheckLevel = level;
+        sCheckLevelSet = true;
+    }
+
+    public static int getCheckLevel() {
+        return sCheckLevel;
+    }
+
+    /*
+     * Per call checks for debuggable builds, per frame for release builds, unless a level was set.
+     */
+    static void setDefaultCheckLevel(boolean debuggable) {
+        if (!sCheckLevelSet) {
+            sCheckLevel = debuggable ? CHECK_PER_CALL : CHECK_PER_FRAME;
+        }
+    }
+
+    /**
+     * @return how many GL errors the checks found so far.
+     */
+    public static long getErrorCount() {
+        return sErrorCount;
+    }
+
     private static int loadShader(int shaderType, String source) {
         int shader = GLES20.glCreateShader(shaderType);
         checkGlError("glCreateShader type=" + shaderType);
@@ -62,12 +134,44 @@ public class GLUtil {
         return program;
     }
 
+    /**
+     * Checks for an error raised by the call named op, only at {@link #CHECK_PER_CALL} and above.
+     * Below that it costs a field read, leave the calls in place.
+     */
     public static void checkGlError(String op) {
+        int level = sCheckLevel;
+        if (level < CHECK_PER_CALL) {
+            return;
+        }
+        if (level == CHECK_TRACE) {
+            Log.v(TAG, op);
+        }
         int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+        while ((error = sErrorSource.glGetError()) != GLES20.GL_NO_ERROR) {
+            sErrorCount++;
             Log.e(TAG, op + ": glError " + error);
             throw new RuntimeException(op + ": glError " + error);
         }
     }
+
+    /**
+     * The batched check, called by the GLThread once per frame. Logs what it finds rather than
+     * throwing, a release build keeps running.
+     *
+     * @return the number of errors found.
+     */
+    public static int checkFrameErrors(String where) {
+        if (sCheckLevel == CHECK_OFF) {
+            return 0;
+        }
+        int count = 0;
+        int error;
+        while (count < MAX_ERRORS_PER_CHECK && (error = sErrorSource.glGetError()) != GLES20.GL_NO_ERROR) {
+            count++;
+            Log.e(TAG, where + ": glError " + error + ", use CHECK_PER_CALL to find the call");
+        }
+        sErrorCount += count;
+        return count;
+    }
 }
 
@@ -16,13 +16,29 @@
 
 package com.aroslabs.livephotopainterwallpaper.Engine;
 
+import android.content.pm.ApplicationInfo;
+import android.graphics.Rect;
+import android.hardware.SensorEvent;
+import android.opengl.EGL14;
+import android.opengl.GLDebugHelper;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
+import android.os.Process;
 import android.service.wallpaper.WallpaperService;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.SurfaceHolder;
+import android.view.WindowManager;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.egl.EGL11;
@@ -40,6 +56,9 @@ public class GLWallpaperService extends WallpaperService {
     public static final boolean DEBUG = true;
     private static final String TAG = "GLWallpaperService";
 
+    // Engines between onCreate and onDestroy, only touched on the main thread.
+    private final List<GLEngine> mEngines = new ArrayList<GLEngine>();
+
     /**
      * This class will choose a supported surface as close to RGB565 as possible, with or without a depth buffer.
      *
@@ -89,7 +108,7 @@ public class GLWallpaperService extends WallpaperService {
         @Override
         public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display, EGLConfig[] configs) {
             EGLConfig closestConfig = null;
-            int closestDistance = 1000;
+            int closestDistance = Integer.MAX_VALUE;
             for (EGLConfig config : configs) {
                 int d = findConfigAttrib(egl, display, config, EGL10.EGL_DEPTH_SIZE, 0);
                 int s = findConfigAttrib(egl, display, config, EGL10.EGL_STENCIL_SIZE, 0);
@@ -100,6 +119,10 @@ public class GLWallpaperService extends WallpaperService {
                     int a = findConfigAttrib(egl, display, config, EGL10.EGL_ALPHA_SIZE, 0);
                     int distance = Math.abs(r - mRedSize) + Math.abs(g - mGreenSize) + Math.abs(b - mBlueSize)
                             + Math.abs(a - mAlphaSize);
+                    // Of two equally close configs, take the one an ES 3 context can be made for.
+                    int renderableType = findConfigAttrib(egl, display, config, EGL10.EGL_RENDERABLE_TYPE, 0);
+                    distance = 2 * distance
+                            + ((renderableType & EGLConfigAttributes.EGL_OPENGL_ES3_BIT_KHR) != 0 ? 0 : 1);
                     if (distance < closestDistance) {
                         closestDistance = distance;
                         closestConfig = config;
@@ -118,21 +141,359 @@ public class GLWallpaperService extends WallpaperService {
         }
     }
 
+    /**
+     * The attributes of an EGLConfig that matter when picking one, read once per config.
+     */
+    public static class EGLConfigAttributes {
+        // Not in EGL10, from EGL 1.4.
+        static final int EGL_SWAP_BEHAVIOR_PRESERVED_BIT = 0x0400;
+        // EGL_KHR_create_context, core in EGL 1.5.
+        static final int EGL_OPENGL_ES3_BIT_KHR = 0x0040;
+
+        private final int[] mValue = new int[1];
+        private int mRedSize;
+        private int mGreenSize;
+        private int mBlueSize;
+        private int mAlphaSize;
+        private int mDepthSize;
+        private int mStencilSize;
+        private int mSamples;
+        private int mSurfaceType;
+        private int mRenderableType;
+        private int mCaveat;
+
+        void read(EGL10 egl, EGLDisplay display, EGLConfig config) {
+            mRedSize = findConfigAttrib(egl, display, config, EGL10.EGL_RED_SIZE);
+            mGreenSize = findConfigAttrib(egl, display, config, EGL10.EGL_GREEN_SIZE);
+            mBlueSize = findConfigAttrib(egl, display, config, EGL10.EGL_BLUE_SIZE);
+            mAlphaSize = findConfigAttrib(egl, display, config, EGL10.EGL_ALPHA_SIZE);
+            mDepthSize = findConfigAttrib(egl, display, config, EGL10.EGL_DEPTH_SIZE);
+            mStencilSize = findConfigAttrib(egl, display, config, EGL10.EGL_STENCIL_SIZE);
+            mSamples = findConfigAttrib(egl, display, config, EGL10.EGL_SAMPLES);
+            mSurfaceType = findConfigAttrib(egl, display, config, EGL10.EGL_SURFACE_TYPE);
+            mRenderableType = findConfigAttrib(egl, display, config, EGL10.EGL_RENDERABLE_TYPE);
+            mCaveat = findConfigAttrib(egl, display, config, EGL10.EGL_CONFIG_CAVEAT);
+        }
+
+        private int findConfigAttrib(EGL10 egl, EGLDisplay display, EGLConfig config, int attribute) {
+            if (egl.eglGetConfigAttrib(display, config, attribute, mValue)) {
+                return mValue[0];
+            }
+            return 0;
+        }
+
+        public int getRedSize() {
+            return mRedSize;
+        }
+
+        public int getGreenSize() {
+            return mGreenSize;
+        }
+
+        public int getBlueSize() {
+            return mBlueSize;
+        }
+
+        public int getAlphaSize() {
+            return mAlphaSize;
+        }
+
+        public int getDepthSize() {
+            return mDepthSize;
+        }
+
+        public int getStencilSize() {
+            return mStencilSize;
+        }
+
+        public int getSamples() {
+            return mSamples;
+        }
+
+        /**
+         * @return true if window surfaces of this config can keep their content across swaps.
+         */
+        public boolean canPreserveSwap() {
+            return (mSurfaceType & EGL_SWAP_BEHAVIOR_PRESERVED_BIT) != 0;
+        }
+
+        /**
+         * @return true if ES 3 contexts can be made for the config.
+         */
+        public boolean supportsES3() {
+            return (mRenderableType & EGL_OPENGL_ES3_BIT_KHR) != 0;
+        }
+
+        /**
+         * @return true if the config is marked EGL_SLOW_CONFIG, typically a software fallback.
+         */
+        public boolean isSlow() {
+            return mCaveat == EGL10.EGL_SLOW_CONFIG;
+        }
+    }
+
+    /**
+     * Ranks EGLConfigs for a {@link ScoredConfigChooser}.  Implementations are used as cache keys for
+     * the chosen config, so they need equals() and hashCode().
+     */
+    public interface EGLConfigScorer {
+        /**
+         * @return the eglChooseConfig attribute list with the hard requirements, so the driver
+         * filters out what could never win before any attribute is read.
+         */
+        int[] getConfigSpec();
+
+        /**
+         * @return a penalty, the lowest one wins, or a negative value to reject the config.
+         */
+        int score(EGLConfigAttributes config);
+    }
+
+    /**
+     * Scores configs on how close they are to a colour format, rejects the ones without the depth,
+     * stencil, multisampling or preserved swap needed and penalises bits that would go unused.
+     */
+    public static class ComponentScorer implements EGLConfigScorer {
+        private final int mRedSize;
+        private final int mGreenSize;
+        private final int mBlueSize;
+        private final int mAlphaSize;
+        private final int mDepthSize;
+        private final int mStencilSize;
+        private final int mSamples;
+        private final boolean mPreserveSwap;
+
+        public ComponentScorer(int redSize, int greenSize, int blueSize, int alphaSize, int depthSize,
+                               int stencilSize, int samples, boolean preserveSwap) {
+            mRedSize = redSize;
+            mGreenSize = greenSize;
+            mBlueSize = blueSize;
+            mAlphaSize = alphaSize;
+            mDepthSize = depthSize;
+            mStencilSize = stencilSize;
+            mSamples = samples;
+            mPreserveSwap = preserveSwap;
+        }
+
+        @Override
+        public int[] getConfigSpec() {
+            int surfaceType = EGL10.EGL_WINDOW_BIT;
+            if (mPreserveSwap) {
+                surfaceType |= EGLConfigAttributes.EGL_SWAP_BEHAVIOR_PRESERVED_BIT;
+            }
+            return new int[] {
+                    EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                    EGL10.EGL_SURFACE_TYPE, surfaceType,
+                    EGL10.EGL_DEPTH_SIZE, mDepthSize,
+                    EGL10.EGL_STENCIL_SIZE, mStencilSize,
+                    EGL10.EGL_SAMPLES, mSamples,
+                    EGL10.EGL_NONE };
+        }
+
+        @Override
+        public int score(EGLConfigAttributes config) {
+            if (config.getDepthSize() < mDepthSize || config.getStencilSize() < mStencilSize
+                    || config.getSamples() < mSamples || (mPreserveSwap && !config.canPreserveSwap())) {
+                return -1;
+            }
+            // The colour format matters most, then every unused depth, stencil or sample bit costs
+            // memory and bandwidth on each frame.
+            int score = 16 * (Math.abs(config.getRedSize() - mRedSize) + Math.abs(config.getGreenSize() - mGreenSize)
+                    + Math.abs(config.getBlueSize() - mBlueSize) + Math.abs(config.getAlphaSize() - mAlphaSize));
+            score += (config.getDepthSize() - mDepthSize) + (config.getStencilSize() - mStencilSize);
+            score += 4 * (config.getSamples() - mSamples);
+            // Without it DefaultContextFactory falls back to ES 2. Worth less than the colour
+            // format, more than the spare depth and stencil bits of a typical config.
+            if (!config.supportsES3()) {
+                score += 64;
+            }
+            if (config.isSlow()) {
+                score += 1000;
+            }
+            return score;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ComponentScorer)) {
+                return false;
+            }
+            ComponentScorer other = (ComponentScorer) o;
+            return mRedSize == other.mRedSize && mGreenSize == other.mGreenSize && mBlueSize == other.mBlueSize
+                    && mAlphaSize == other.mAlphaSize && mDepthSize == other.mDepthSize
+                    && mStencilSize == other.mStencilSize && mSamples == other.mSamples
+                    && mPreserveSwap == other.mPreserveSwap;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mRedSize;
+            result = 31 * result + mGreenSize;
+            result = 31 * result + mBlueSize;
+            result = 31 * result + mAlphaSize;
+            result = 31 * result + mDepthSize;
+            result = 31 * result + mStencilSize;
+            result = 31 * result + mSamples;
+            result = 31 * result + (mPreserveSwap ? 1 : 0);
+            return result;
+        }
+    }
+
+    /**
+     * What a renderer needs from the surfaces it draws into: colour precision and whether it uses a
+     * depth or stencil buffer.  Used for the window surface's EGLConfig and for {@link FrameBuffer}s.
+     */
+    public static class SurfaceFormat {
+        public static final int COLOR_RGB565 = 0;
+        public static final int COLOR_RGBA8888 = 1;
+
+        /**
+         * What the engine used to ask for regardless of the renderer: RGB565 with a 16 bit depth buffer.
+         */
+        public static final SurfaceFormat LEGACY = new SurfaceFormat(COLOR_RGB565, true, false);
+
+        private final int mColorFormat;
+        private final boolean mDepth;
+        private final boolean mStencil;
+
+        public SurfaceFormat(int colorFormat, boolean depth, boolean stencil) {
+            if (colorFormat != COLOR_RGB565 && colorFormat != COLOR_RGBA8888) {
+                throw new IllegalArgumentException("colorFormat");
+            }
+            mColorFormat = colorFormat;
+            mDepth = depth;
+            mStencil = stencil;
+        }
+
+        public int getColorFormat() {
+            return mColorFormat;
+        }
+
+        public boolean hasDepth() {
+            return mDepth;
+        }
+
+        public boolean hasStencil() {
+            return mStencil;
+        }
+
+        public int getColorBytesPerPixel() {
+            return mColorFormat == COLOR_RGB565 ? 2 : 4;
+        }
+
+        /**
+         * @return depth (16 bit) plus stencil (8 bit) bytes per pixel.
+         */
+        public int getAncillaryBytesPerPixel() {
+            return (mDepth ? 2 : 0) + (mStencil ? 1 : 0);
+        }
+
+        public int getBytesPerPixel() {
+            return getColorBytesPerPixel() + getAncillaryBytesPerPixel();
+        }
+
+        /**
+         * @return a scorer for window configs with exactly this format, or as close as the device has.
+         */
+        public EGLConfigScorer toScorer() {
+            return toScorer(false);
+        }
+
+        /**
+         * @param preserveSwap only accept configs whose window surfaces can keep their content
+         *                     across swaps, see {@link DamageReporter}.
+         */
+        public EGLConfigScorer toScorer(boolean preserveSwap) {
+            if (mColorFormat == COLOR_RGB565) {
+                return new ComponentScorer(5, 6, 5, 0, mDepth ? 16 : 0, mStencil ? 8 : 0, 0, preserveSwap);
+            }
+            return new ComponentScorer(8, 8, 8, 8, mDepth ? 16 : 0, mStencil ? 8 : 0, 0, preserveSwap);
+        }
+    }
+
+    /**
+     * A renderer that declares the {@link SurfaceFormat} it needs, so the engine does not allocate
+     * depth, stencil or colour bits it never uses.
+     */
+    public interface SurfaceFormatProvider {
+        SurfaceFormat getSurfaceFormat();
+    }
+
+    /**
+     * Chooses the config its scorer ranks best.  The choice is made once per display and scorer and
+     * shared by every engine of the process.
+     */
+    public static class ScoredConfigChooser implements GLSurfaceView.EGLConfigChooser {
+        private final EGLConfigScorer mScorer;
+        private final EGLConfigScorer mFallbackScorer;
+
+        public ScoredConfigChooser(EGLConfigScorer scorer) {
+            this(scorer, null);
+        }
+
+        /**
+         * @param fallbackScorer used when no config passes the scorer, e.g. when none can preserve
+         *                       swaps. May be null.
+         */
+        public ScoredConfigChooser(EGLConfigScorer scorer, EGLConfigScorer fallbackScorer) {
+            mScorer = scorer;
+            mFallbackScorer = fallbackScorer;
+        }
+
+        @Override
+        public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+            if (mFallbackScorer == null) {
+                return EglConfigSelector.select(egl, display, mScorer);
+            }
+            try {
+                return EglConfigSelector.select(egl, display, mScorer);
+            } catch (IllegalArgumentException e) {
+                return EglConfigSelector.select(egl, display, mFallbackScorer);
+            }
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        GLUtil.setDefaultCheckLevel((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+    }
+
     @Override
     public Engine onCreateEngine() {
         return new GLEngine();
     }
 
+    /**
+     * Adds the frame metrics of every live engine to {@code adb shell dumpsys wallpaper}.
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter out, String[] args) {
+        super.dump(fd, out, args);
+        out.println("  eglConfigSelections=" + EglConfigSelector.getSelectionCount()
+                + " cacheHits=" + EglConfigSelector.getCacheHitCount()
+                + " lastSelectionMs=" + EglConfigSelector.getSelectionNanos() / 1000000f);
+        out.println("  glErrorCheckLevel=" + GLUtil.getCheckLevel() + " glErrors=" + GLUtil.getErrorCount());
+        for (GLEngine engine : mEngines) {
+            engine.dumpMetrics("  ", out);
+        }
+    }
+
     public class GLEngine extends Engine {
         public final static int RENDERMODE_WHEN_DIRTY = 0;
         public final static int RENDERMODE_CONTINUOUSLY = 1;
+        public final static int FRAME_PACING_DEADLINE = FramePacer.PACING_DEADLINE;
+        public final static int FRAME_PACING_VSYNC = FramePacer.PACING_VSYNC;
+        public final static long DEFAULT_PRESERVED_MEMORY_BUDGET = 32 * 1024 * 1024;
 
-        private GLThread mGLThread;
+        private RenderSession mSession;
         private GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
         private GLSurfaceView.EGLContextFactory mEGLContextFactory;
         private GLSurfaceView.EGLWindowSurfaceFactory mEGLWindowSurfaceFactory;
         private GLSurfaceView.GLWrapper mGLWrapper;
         private int mDebugFlags;
+        // Scratch space for converting input, only used on the engine's looper thread.
+        private final float[] mInputValues = new float[InputEvent.MAX_VALUES];
 
         public GLEngine() {
             super();
@@ -152,33 +513,44 @@ public class GLWallpaperService extends WallpaperService {
         public void onCreate(SurfaceHolder surfaceHolder) {
             super.onCreate(surfaceHolder);
             // Log.d(TAG, "GLEngine.onCreate()");
+            mEngines.add(this);
+            WindowManager windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
+            mSession.setDisplayRefreshRate(windowManager.getDefaultDisplay().getRefreshRate());
         }
 
         @Override
         public void onDestroy() {
             super.onDestroy();
             // Log.d(TAG, "GLEngine.onDestroy()");
-            mGLThread.requestExitAndWait();
+            mEngines.remove(this);
+            // Don't wait, the render thread finishes up with this engine on its own time.
+            mSession.requestExit();
+        }
+
+        @Override
+        public void onTouchEvent(MotionEvent event) {
+            queueTouchEvent(event);
+            super.onTouchEvent(event);
         }
 
         @Override
         public void onSurfaceChanged(SurfaceHolder holder, int format, int width, int height) {
             // Log.d(TAG, "onSurfaceChanged()");
-            mGLThread.onWindowResize(width, height);
+            mSession.onWindowResize(width, height);
             super.onSurfaceChanged(holder, format, width, height);
         }
 
         @Override
         public void onSurfaceCreated(SurfaceHolder holder) {
             Log.d(TAG, "onSurfaceCreated()");
-            mGLThread.surfaceCreated(holder);
+            mSession.surfaceCreated(holder);
             super.onSurfaceCreated(holder);
         }
 
         @Override
         public void onSurfaceDestroyed(SurfaceHolder holder) {
             Log.d(TAG, "onSurfaceDestroyed()");
-            mGLThread.surfaceDestroyed();
+            mSession.surfaceDestroyed();
             super.onSurfaceDestroyed(holder);
         }
 
@@ -200,7 +572,15 @@ public class GLWallpaperService extends WallpaperService {
         public void setRenderer(GLSurfaceView.Renderer renderer) {
             checkRenderThreadState();
             if (mEGLConfigChooser == null) {
-                mEGLConfigChooser = new SimpleEGLConfigChooser(true);
+                // Only what the renderer says it needs, what SimpleEGLConfigChooser(true) asks for otherwise.
+                SurfaceFormat format = (renderer instanceof SurfaceFormatProvider)
+                        ? ((SurfaceFormatProvider) renderer).getSurfaceFormat() : SurfaceFormat.LEGACY;
+                if (renderer instanceof DamageReporter) {
+                    // Partial redraws need the last frame kept, take a config that can't if there is no other.
+                    mEGLConfigChooser = new ScoredConfigChooser(format.toScorer(true), format.toScorer(false));
+                } else {
+                    mEGLConfigChooser = new ScoredConfigChooser(format.toScorer());
+                }
             }
             if (mEGLContextFactory == null) {
                 mEGLContextFactory = new DefaultContextFactory();
@@ -208,8 +588,19 @@ public class GLWallpaperService extends WallpaperService {
             if (mEGLWindowSurfaceFactory == null) {
                 mEGLWindowSurfaceFactory = new DefaultWindowSurfaceFactory();
             }
-            mGLThread = new GLThread(renderer, mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory, mGLWrapper);
-            mGLThread.start();
+            // Every engine of the process renders on one shared GLThread and EGL context, the first
+            // engine's config chooser and context factory decide what that context looks like.
+            mSession = new RenderSession(renderer, mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory, mGLWrapper);
+            if (renderer instanceof SceneRenderer) {
+                ((SceneRenderer) renderer).setSceneInvalidator(mSession);
+            }
+            if (renderer instanceof InputHandler) {
+                mSession.setInputHandler((InputHandler) renderer);
+            }
+            if (renderer instanceof ResolutionScaleListener) {
+                ((ResolutionScaleListener) renderer).setResolutionScaler(mSession.mResolutionScaler);
+            }
+            mSession.attach();
         }
 
         public void setEGLContextFactory(GLSurfaceView.EGLContextFactory factory) {
@@ -228,148 +619,1842 @@ public class GLWallpaperService extends WallpaperService {
         }
 
         public void setEGLConfigChooser(boolean needDepth) {
-            setEGLConfigChooser(new SimpleEGLConfigChooser(needDepth));
+            setEGLConfigChooser(new ScoredConfigChooser(new ComponentScorer(5, 6, 5, 0, needDepth ? 16 : 0, 0, 0,
+                    false)));
         }
 
         public void setEGLConfigChooser(int redSize, int greenSize, int blueSize, int alphaSize, int depthSize,
                                         int stencilSize) {
-            setEGLConfigChooser(new ComponentSizeChooser(redSize, greenSize, blueSize, alphaSize, depthSize,
-                    stencilSize));
+            setEGLConfigChooser(new ScoredConfigChooser(new ComponentScorer(redSize, greenSize, blueSize, alphaSize,
+                    depthSize, stencilSize, 0, false)));
+        }
+
+        /**
+         * Chooses the config with the lowest penalty from the scorer, see {@link ComponentScorer}.
+         */
+        public void setEGLConfigScorer(EGLConfigScorer scorer) {
+            setEGLConfigChooser(new ScoredConfigChooser(scorer));
         }
 
         public void setRenderMode(int renderMode) {
-            mGLThread.setRenderMode(renderMode);
+            mSession.setRenderMode(renderMode);
         }
 
         public int getRenderMode() {
-            return mGLThread.getRenderMode();
+            return mSession.getRenderMode();
         }
 
         public void requestRender() {
-            mGLThread.requestRender();
+            mSession.requestRender();
         }
 
-        public void onPause() {
-            mGLThread.onPause();
+        /**
+         * Caps how often the GLThread draws, e.g. 60, 30, 15 or 1 frames per second.
+         */
+        public void setTargetFrameRate(int framesPerSecond) {
+            mSession.setTargetFrameRate(framesPerSecond);
         }
 
-        public void onResume() {
-            mGLThread.onResume();
+        public int getTargetFrameRate() {
+            return mSession.getTargetFrameRate();
         }
 
-        public void queueEvent(Runnable r) {
-            mGLThread.queueEvent(r);
+        /**
+         * @param pacing {@link #FRAME_PACING_DEADLINE} to schedule frames on a plain monotonic
+         *               clock or {@link #FRAME_PACING_VSYNC} to align them to the display refresh.
+         *               Call from the engine's thread, vsync is only sampled while visible in
+         *               {@link #FRAME_PACING_VSYNC}.
+         */
+        public void setFramePacing(int pacing) {
+            mSession.setFramePacing(pacing);
         }
 
-        private void checkRenderThreadState() {
-            if (mGLThread != null) {
-                throw new IllegalStateException("setRenderer has already been called for this instance.");
-            }
+        public int getFramePacing() {
+            return mSession.getFramePacing();
         }
-    }
 
-    /**
-     * Empty wrapper for {@link GLSurfaceView.Renderer}.
-     *
-     * @deprecated Use {@link GLSurfaceView.Renderer} instead.
-     */
-    @Deprecated
-    public interface Renderer extends GLSurfaceView.Renderer {
-    }
-}
+        public long getLateFrameCount() {
+            return mSession.getLateFrameCount();
+        }
 
-class LogWriter extends Writer {
-    private StringBuilder mBuilder = new StringBuilder();
+        public long getDroppedFrameCount() {
+            return mSession.getDroppedFrameCount();
+        }
 
-    @Override
-    public void close() {
-        flushBuilder();
-    }
+        /**
+         * Lets the engine switch between continuous and when-dirty rendering on its own, based on
+         * what a {@link SceneRenderer} reports.  While enabled the governor owns the render mode.
+         */
+        public void setIdleGovernorEnabled(boolean enabled) {
+            mSession.setIdleGovernorEnabled(enabled);
+        }
 
-    @Override
-    public void flush() {
-        flushBuilder();
-    }
+        public boolean isIdleGovernorEnabled() {
+            return mSession.isIdleGovernorEnabled();
+        }
 
-    @Override
-    public void write(char[] buf, int offset, int count) {
-        for (int i = 0; i < count; i++) {
-            char c = buf[offset + i];
-            if (c == '\n') {
-                flushBuilder();
+        /**
+         * Marks the scene as changed, waking the GLThread if the idle governor suspended rendering.
+         */
+        public void invalidateScene() {
+            mSession.invalidateScene();
+        }
+
+        /**
+         * Hands a touch to the renderer's {@link InputHandler} with the next frame, merged with
+         * any other moves of the same pointer that arrive before then.  Touches are forwarded
+         * automatically from {@link #onTouchEvent(MotionEvent)}.
+         */
+        public void queueTouchEvent(MotionEvent event) {
+            if (!mSession.hasInputHandler()) {
+                return;
+            }
+            long timeNanos = event.getEventTime() * 1000000;
+            int action = event.getActionMasked();
+            if (action == MotionEvent.ACTION_MOVE) {
+                for (int i = 0; i < event.getPointerCount(); i++) {
+                    mInputValues[0] = event.getX(i);
+                    mInputValues[1] = event.getY(i);
+                    mSession.queueInput(InputEvent.TYPE_TOUCH, event.getPointerId(i), action, false,
+                            timeNanos, mInputValues, 2);
+                }
             } else {
-                mBuilder.append(c);
+                int index = event.getActionIndex();
+                mInputValues[0] = event.getX(index);
+                mInputValues[1] = event.getY(index);
+                mSession.queueInput(InputEvent.TYPE_TOUCH, event.getPointerId(index), action, true,
+                        timeNanos, mInputValues, 2);
             }
         }
-    }
 
-    private void flushBuilder() {
-        if (mBuilder.length() > 0) {
-            Log.v("GLSurfaceView", mBuilder.toString());
-            mBuilder.delete(0, mBuilder.length());
+        /**
+         * Hands a sensor sample to the renderer's {@link InputHandler} with the next frame, only
+         * the latest sample per sensor type is kept.
+         */
+        public void queueSensorEvent(SensorEvent event) {
+            if (!mSession.hasInputHandler()) {
+                return;
+            }
+            int count = Math.min(event.values.length, InputEvent.MAX_VALUES);
+            System.arraycopy(event.values, 0, mInputValues, 0, count);
+            mSession.queueInput(InputEvent.TYPE_SENSOR, event.sensor.getType(), 0, false,
+                    event.timestamp, mInputValues, count);
         }
-    }
-}
 
-class DefaultContextFactory implements GLSurfaceView.EGLContextFactory {
+        public long getInputEventsReceived() {
+            return mSession.getInputEventsReceived();
+        }
 
-    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
-        final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;  // missing in EGL10
-        int[] ctxAttrib = {
-                EGL_CONTEXT_CLIENT_VERSION, 2,
-                EGL10.EGL_NONE
-        };
-        return egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, ctxAttrib);
-    }
+        public long getInputEventsDelivered() {
+            return mSession.getInputEventsDelivered();
+        }
 
-    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
-        egl.eglDestroyContext(display, context);
-    }
-}
+        /**
+         * Keeps the EGL context, and with it the renderer's programs and textures, alive while
+         * the wallpaper is invisible, so resuming does not go through onSurfaceCreated and
+         * onSurfaceChanged again.  The context is released anyway if the renderers sharing it
+         * report more than the preserved memory budget, see {@link MemoryReporter}.
+         */
+        public void setPreserveEGLContextOnPause(boolean preserveOnPause) {
+            mSession.setPreserveEglContextOnPause(preserveOnPause);
+        }
 
-class DefaultWindowSurfaceFactory implements GLSurfaceView.EGLWindowSurfaceFactory {
+        public boolean getPreserveEGLContextOnPause() {
+            return mSession.getPreserveEglContextOnPause();
+        }
 
-    public EGLSurface createWindowSurface(EGL10 egl, EGLDisplay
-            display, EGLConfig config, Object nativeWindow) {
-        // this is a bit of a hack to work around Droid init problems - if you don't have this, it'll get hung up on orientation changes
-        EGLSurface eglSurface = null;
-        while (eglSurface == null) {
-            try {
-                eglSurface = egl.eglCreateWindowSurface(display,
-                        config, nativeWindow, null);
-            } catch (Throwable t) {
-            } finally {
-                if (eglSurface == null) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException t) {
-                    }
-                }
-            }
+        /**
+         * @param bytes the most GL memory, summed over every engine of the process, that may stay
+         *              allocated while paused.  Defaults to {@link #DEFAULT_PRESERVED_MEMORY_BUDGET}.
+         */
+        public void setPreservedMemoryBudget(long bytes) {
+            mSession.setPreservedMemoryBudget(bytes);
         }
-        return eglSurface;
-    }
 
-    public void destroySurface(EGL10 egl, EGLDisplay display, EGLSurface surface) {
-        egl.eglDestroySurface(display, surface);
-    }
-}
+        public long getPreservedMemoryBudget() {
+            return mSession.getPreservedMemoryBudget();
+        }
 
-class EglHelper {
+        /**
+         * @return the time from the last resume to the end of the first frame after it.
+         */
+        public long getLastResumeMillis() {
+            return mSession.getLastResumeNanos() / 1000000;
+        }
 
-    private EGL10 mEgl;
-    private EGLDisplay mEglDisplay;
-    private EGLSurface mEglSurface;
-    private EGLContext mEglContext;
-    EGLConfig mEglConfig;
+        /**
+         * @return how often this engine asked the GLThread to wake up.
+         */
+        public long getWakeRequestCount() {
+            return mSession.getWakeRequestCount();
+        }
+
+        /**
+         * @return how often the GLThread woke up, it is shared by every engine of the process.
+         */
+        public long getWakeupCount() {
+            return mSession.getWakeupCount();
+        }
+
+        /**
+         * @return GLThread wakeups that found nothing to do for any engine.
+         */
+        public long getSpuriousWakeupCount() {
+            return mSession.getSpuriousWakeupCount();
+        }
+
+        /**
+         * @return how often the GLThread moved this engine between waiting for a surface,
+         * paused and ready.  The latency of each move is in {@link FrameMetrics#PHASE_STATE}.
+         */
+        public long getStateTransitionCount() {
+            return mSession.getStateTransitionCount();
+        }
+
+        /**
+         * @return the memory taken by the window surface's colour, depth and stencil buffers, as
+         * configured by the chosen EGLConfig.
+         */
+        public long getSurfaceBytes() {
+            return mSession.getSurfaceBytes();
+        }
+
+        /**
+         * @return the depth buffer memory the window surface no longer has compared to the 16 bit
+         * depth buffer the engine used to ask for.  The same amount is saved in bandwidth on
+         * every frame, at least once for the clear.
+         */
+        public long getSavedSurfaceBytes() {
+            return mSession.getSavedSurfaceBytes();
+        }
+
+        /**
+         * @return the total time the engine's thread spent blocked waiting for the GLThread, in
+         * surface destruction and teardown.
+         */
+        public long getBlockedMillis() {
+            return mSession.getBlockedNanos() / 1000000;
+        }
+
+        public long getMaxBlockedMillis() {
+            return mSession.getMaxBlockedNanos() / 1000000;
+        }
+
+        /**
+         * @return how often the engine's thread stopped waiting for the GLThread after the handoff
+         * timeout.
+         */
+        public int getHandoffTimeoutCount() {
+            return mSession.getHandoffTimeoutCount();
+        }
+
+        /**
+         * @return how long the idle governor has kept rendering suspended.
+         */
+        public long getIdleTimeMillis() {
+            return mSession.getIdleTimeNanos() / 1000000;
+        }
+
+        /**
+         * @return how many times the idle governor resumed rendering after suspending it.
+         */
+        public long getIdleWakeCount() {
+            return mSession.getIdleWakeCount();
+        }
+
+        /**
+         * @return the live frame timing recorded for this engine by the GLThread.
+         */
+        public FrameMetrics getFrameMetrics() {
+            return mSession.getFrameMetrics();
+        }
+
+        /**
+         * Writes the frame metrics and the pacing, idle and input counters as text.
+         */
+        public void dumpMetrics(String prefix, PrintWriter out) {
+            out.print(prefix);
+            out.println(getClass().getSimpleName() + (isPreview() ? " (preview)" : "")
+                    + " visible=" + isVisible());
+            String innerPrefix = prefix + "  ";
+            mSession.getFrameMetrics().dump(innerPrefix, out);
+            out.print(innerPrefix);
+            out.println("targetFps=" + getTargetFrameRate() + " dropped=" + getDroppedFrameCount()
+                    + " idleMs=" + getIdleTimeMillis()
+                    + " idleWakes=" + getIdleWakeCount()
+                    + " resumeMs=" + getLastResumeMillis()
+                    + " inputReceived=" + getInputEventsReceived()
+                    + " inputDelivered=" + getInputEventsDelivered());
+            out.print(innerPrefix);
+            out.println("wakeRequests=" + getWakeRequestCount() + " wakeups=" + getWakeupCount()
+                    + " spuriousWakeups=" + getSpuriousWakeupCount()
+                    + " transitions=" + getStateTransitionCount()
+                    + " contextLosses=" + getContextLossCount());
+            FrameMetrics metrics = getFrameMetrics();
+            out.print(innerPrefix);
+            out.println("surfaceKb=" + getSurfaceBytes() / 1024 + " savedKb=" + getSavedSurfaceBytes() / 1024
+                    + " savedKbPerSecond=" + (long) (getSavedSurfaceBytes() * metrics.getFramesPerSecond() / 1024));
+            out.print(innerPrefix);
+            out.println("blockedMs=" + getBlockedMillis() + " maxBlockedMs=" + getMaxBlockedMillis()
+                    + " handoffTimeouts=" + getHandoffTimeoutCount());
+            out.print(innerPrefix);
+            out.println("offscreenSlices=" + getOffscreenSliceCount() + " offscreenMs=" + getOffscreenMillis());
+            out.print(innerPrefix);
+            out.println("swapPreserved=" + isSwapPreserved() + " partialFrames=" + getPartialFrameCount()
+                    + " redrawnPixels=" + getRedrawnPixelFraction());
+            out.print(innerPrefix);
+            out.println("renderPriority=" + getRenderThreadPriority()
+                    + " priorityChanges=" + mSession.getRenderThreadPriorityChangeCount()
+                    + " frameRunMs=" + getFrameRunMillis() + " frameRunQueueMs=" + getFrameRunQueueMillis()
+                    + " preferredCoreFrames=" + getPreferredCoreFrameFraction());
+            out.print(innerPrefix);
+            out.println("renderScale=" + getRenderScale() + " scaleChanges=" + getRenderScaleChangeCount()
+                    + " scaledFrameMs=" + mSession.mResolutionScaler.getMeanFrameNanos() / 1000000f);
+            out.print(innerPrefix);
+            out.println("stateCallsPerFrame=" + getStateCallsPerFrame()
+                    + " elidedStateCallsPerFrame=" + getElidedStateCallsPerFrame());
+            out.print(innerPrefix);
+            out.println("gpuFrameMs=" + getGpuFrameMillis() + " recentGpuFrameMs=" + getRecentGpuFrameMillis()
+                    + " gpuTimedFrames=" + mSession.getGpuTimedFrameCount());
+        }
+
+        public void onPause() {
+            mSession.onPause();
+            mSession.stopVsync();
+        }
+
+        public void onResume() {
+            mSession.startVsync();
+            mSession.onResume();
+        }
+
+        public void queueEvent(Runnable r) {
+            mSession.queueEvent(r);
+        }
+
+        /**
+         * Queue a job to run on the GLThread without a window surface. Jobs get the thread, at
+         * background priority, only when no engine has a frame, events or input to handle, one slice
+         * at a time, and keep the context alive until they are done. Jobs of a destroyed engine are
+         * dropped.
+         */
+        public void queueOffscreenJob(OffscreenJob job) {
+            mSession.queueOffscreenJob(job);
+        }
+
+        /**
+         * @return how often the render thread had to recreate its context after EGL_CONTEXT_LOST.
+         */
+        public int getContextLossCount() {
+            return mSession.getContextLossCount();
+        }
+
+        /**
+         * Sets how the render thread is scheduled for this engine, {@link RenderThreadPolicy#DEFAULT}
+         * unless changed.
+         */
+        public void setRenderThreadPolicy(RenderThreadPolicy policy) {
+            mSession.setRenderThreadPolicy(policy);
+        }
+
+        public RenderThreadPolicy getRenderThreadPolicy() {
+            return mSession.getRenderThreadPolicy();
+        }
+
+        /**
+         * @return the Android priority the render thread runs at now, for whichever engine.
+         */
+        public int getRenderThreadPriority() {
+            return mSession.getRenderThreadPriority();
+        }
+
+        /**
+         * @return the CPU time this engine's frames took.
+         */
+        public long getFrameRunMillis() {
+            return mSession.getFrameRunNanos() / 1000000;
+        }
+
+        /**
+         * @return how long this engine's frames waited for a CPU after they were preempted, compare
+         * with {@link #getFrameRunMillis()}.
+         */
+        public long getFrameRunQueueMillis() {
+            return mSession.getFrameRunQueueNanos() / 1000000;
+        }
+
+        /**
+         * @return the share of frames that ran on the kind of core the policy prefers.
+         */
+        public float getPreferredCoreFrameFraction() {
+            return mSession.getPreferredCoreFrameFraction();
+        }
+
+        /**
+         * @return true if the window surface keeps its content across swaps, so the frames of a
+         * {@link DamageReporter} are only redrawn where they changed.
+         */
+        public boolean isSwapPreserved() {
+            return mSession.isSwapPreserved();
+        }
+
+        /**
+         * @return frames drawn scissored to the damage the renderer reported.
+         */
+        public long getPartialFrameCount() {
+            return mSession.getPartialFrameCount();
+        }
+
+        /**
+         * @return the share of window pixels actually redrawn over all frames, 1 without partial
+         * redraws.
+         */
+        public float getRedrawnPixelFraction() {
+            return mSession.getRedrawnPixelFraction();
+        }
+
+        /**
+         * Limits how far a {@link ResolutionScaleListener} renderer may go below window resolution,
+         * 0.5 to 1 unless changed.
+         */
+        public void setRenderScaleRange(float minScale, float maxScale) {
+            mSession.mResolutionScaler.setScaleRange(minScale, maxScale);
+        }
+
+        /**
+         * @return the share of the window width and height the renderer's scaled pass is drawn at,
+         * 1 for renderers that don't scale.
+         */
+        public float getRenderScale() {
+            return mSession.mResolutionScaler.getScale();
+        }
+
+        public long getRenderScaleChangeCount() {
+            return mSession.mResolutionScaler.getScaleChangeCount();
+        }
+
+        /**
+         * @return GL state changes the engine and the renderer made per frame through the
+         * {@link GLStateCache}.
+         */
+        public float getStateCallsPerFrame() {
+            return mSession.getStateCallsPerFrame();
+        }
+
+        /**
+         * @return how long the GPU took per frame of this engine on average, 0 where the context
+         * can't time it (needs ES 3 and GL_EXT_disjoint_timer_query).
+         */
+        public float getGpuFrameMillis() {
+            return mSession.getGpuFrameNanos() / 1000000f;
+        }
+
+        /**
+         * @return the GPU time of the last frames, to compare before and after a change in what
+         * the renderer draws.
+         */
+        public float getRecentGpuFrameMillis() {
+            return mSession.getRecentGpuFrameNanos() / 1000000f;
+        }
+
+        /**
+         * @return state changes per frame the {@link GLStateCache} skipped, because GL was already
+         * in that state.
+         */
+        public float getElidedStateCallsPerFrame() {
+            return mSession.getElidedStateCallsPerFrame();
+        }
+
+        /**
+         * @return how many offscreen job slices ran for this engine.
+         */
+        public long getOffscreenSliceCount() {
+            return mSession.getOffscreenSliceCount();
+        }
+
+        public long getOffscreenMillis() {
+            return mSession.getOffscreenNanos() / 1000000;
+        }
+
+        private void checkRenderThreadState() {
+            if (mSession != null) {
+                throw new IllegalStateException("setRenderer has already been called for this instance.");
+            }
+        }
+    }
+
+    /**
+     * Empty wrapper for {@link GLSurfaceView.Renderer}.
+     *
+     * @deprecated Use {@link GLSurfaceView.Renderer} instead.
+     */
+    @Deprecated
+    public interface Renderer extends GLSurfaceView.Renderer {
+    }
+
+    /**
+     * A renderer that tells the engine when its scene changes, so a static scene is not redrawn
+     * over and over.  See {@link GLEngine#setIdleGovernorEnabled(boolean)}.
+     */
+    public interface SceneRenderer extends GLSurfaceView.Renderer {
+        /**
+         * Called once from {@link GLEngine#setRenderer} with the invalidator this renderer should
+         * poke whenever its scene changes because of something other than its own animation.
+         */
+        void setSceneInvalidator(SceneInvalidator invalidator);
+
+        /**
+         * Called on the GLThread after every frame.
+         *
+         * @return true if the next frame will differ from the one just drawn.
+         */
+        boolean isAnimating();
+    }
+
+    /**
+     * A renderer that wants touch and sensor input.  Input is coalesced between frames and
+     * delivered on the GLThread as at most one batch per frame, right before
+     * {@link GLSurfaceView.Renderer#onDrawFrame}.  Input alone does not make the idle governor
+     * draw, and while it has stopped drawing input waits for the next frame. If input changes
+     * the scene, invalidate it as it arrives, e.g. from the engine's onTouchEvent.
+     */
+    public interface InputHandler {
+        void onInputEvent(InputEvent event);
+    }
+
+    /**
+     * A renderer that can estimate how much memory its GL resources (textures, buffers, programs)
+     * take up, so the engine can decide whether keeping them across a pause fits the budget.  See
+     * {@link GLEngine#setPreserveEGLContextOnPause(boolean)}.
+     */
+    public interface MemoryReporter {
+        /**
+         * Called on the GLThread after every frame.
+         *
+         * @return the estimated size in bytes of everything this renderer keeps in the context.
+         */
+        long getGLMemoryBytes();
+    }
+
+    /**
+     * A renderer that wants to delete its GL objects when its engine goes away, rather than leave
+     * them in a context other engines keep using.
+     */
+    public interface GLResourceOwner {
+        /**
+         * Called once on the GLThread, with the context current, after the engine was destroyed.
+         * Not called if the context itself is destroyed first, that frees everything anyway.
+         */
+        void releaseGLResources();
+    }
+
+    /**
+     * A renderer that wants to know what the context can do before it creates anything in it.
+     */
+    public interface CapabilityListener {
+        /**
+         * Called on the GLThread with the context current, right before
+         * {@link GLSurfaceView.Renderer#onSurfaceCreated} for every new context.
+         */
+        void onCapabilitiesChanged(GLCapabilities capabilities);
+    }
+
+    /**
+     * A renderer that uploads textures in the background, see {@link TextureLoader}.
+     */
+    public interface TextureLoaderListener {
+        /**
+         * Called on the GLThread with the context current, right before
+         * {@link GLSurfaceView.Renderer#onSurfaceCreated} for every new context. Uploads of the
+         * loader before are gone with the old context.
+         */
+        void onTextureLoaderChanged(TextureLoader loader);
+    }
+
+    /**
+     * Work for the GLThread that needs the context but no window, e.g. filtering the next photo into
+     * a {@link FrameBuffer} while the wallpaper is hidden. See {@link GLEngine#queueOffscreenJob}.
+     */
+    public interface OffscreenJob {
+        /**
+         * Does one slice of the job on the GLThread, with the context current on an offscreen
+         * surface (a pbuffer, or none at all where EGL_KHR_surfaceless_context is supported), so
+         * only draw into framebuffer objects. Keep slices short, frames wait for them.
+         *
+         * @return true when the job is done, false to be called again later.
+         */
+        boolean runOffscreen(GL10 gl);
+    }
+
+    /**
+     * A renderer that knows which part of the window its next frame changes. Where the window
+     * surface keeps its content across swaps (EGL_SWAP_BEHAVIOR = EGL_BUFFER_PRESERVED) the engine
+     * then scissors the frame to that part and the rest of the last frame stays on screen.
+     */
+    public interface DamageReporter {
+        /**
+         * Called on the GLThread right before every {@link GLSurfaceView.Renderer#onDrawFrame},
+         * after {@link FramePreparer#prepareFrame}. Fill
+         * in what the frame will change, in window pixels with the origin at the top left, and start
+         * collecting damage for the next frame. An empty rect draws nothing new.
+         *
+         * The scissor test stays enabled for the whole frame, disable it around passes into
+         * framebuffers that don't map 1:1 onto the window.
+         *
+         * @return false to redraw the whole window, e.g. after a new photo or a size change.
+         */
+        boolean getDamage(Rect damage);
+    }
+
+    /**
+     * A renderer with state to bring up to date before a frame is set up, e.g. switching to a photo
+     * the {@link TextureLoader} finished, so what it reports for the frame, like its damage,
+     * already covers the change.
+     */
+    public interface FramePreparer {
+        /**
+         * Called on the GLThread at the start of every frame, after input is delivered and before
+         * {@link DamageReporter#getDamage}.
+         */
+        void prepareFrame();
+    }
+
+    /**
+     * A renderer with a pass worth drawing below window resolution, e.g. a filter into a
+     * {@link FrameBuffer} that is then stretched over the window. See {@link ResolutionScaler}.
+     */
+    public interface ResolutionScaleListener {
+        /**
+         * Called once from {@link GLEngine#setRenderer} with the scaler fed with this renderer's
+         * frame times. Read {@link ResolutionScaler#getScale()} at the start of every frame.
+         */
+        void setResolutionScaler(ResolutionScaler scaler);
+    }
+
+    public interface SceneInvalidator {
+        /**
+         * Marks the scene dirty and schedules a frame. Safe to call from any thread.
+         */
+        void invalidateScene();
+    }
+}
+
+class LogWriter extends Writer {
+    private StringBuilder mBuilder = new StringBuilder();
+
+    @Override
+    public void close() {
+        flushBuilder();
+    }
+
+    @Override
+    public void flush() {
+        flushBuilder();
+    }
+
+    @Override
+    public void write(char[] buf, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            char c = buf[offset + i];
+            if (c == '\n') {
+                flushBuilder();
+            } else {
+                mBuilder.append(c);
+            }
+        }
+    }
+
+    private void flushBuilder() {
+        if (mBuilder.length() > 0) {
+            Log.v("GLSurfaceView", mBuilder.toString());
+            mBuilder.delete(0, mBuilder.length());
+        }
+    }
+}
+
+/**
+ * Asks for the newest OpenGL ES context the device has: 3.2, then 3.0, then 2.0.
+ */
+class DefaultContextFactory implements GLSurfaceView.EGLContextFactory {
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;  // missing in EGL10
+    private static final int EGL_CONTEXT_MINOR_VERSION_KHR = 0x30FB;  // EGL_KHR_create_context
+
+    private static final int[][] VERSIONS = {
+            {3, 2},
+            {3, 0},
+            {2, 0},
+    };
+
+    public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+        // Strict drivers fail a 3.x context on a config without the ES 3 bit, or worse, hand one out.
+        int[] value = new int[1];
+        boolean es3Config = egl.eglGetConfigAttrib(display, config, EGL10.EGL_RENDERABLE_TYPE, value)
+                && (value[0] & GLWallpaperService.EGLConfigAttributes.EGL_OPENGL_ES3_BIT_KHR) != 0;
+        // A minor version can only be asked for with EGL_KHR_create_context.
+        String extensions = egl.eglQueryString(display, EGL10.EGL_EXTENSIONS);
+        boolean createContextKhr = extensions != null
+                && (" " + extensions + " ").contains(" EGL_KHR_create_context ");
+        for (int[] version : VERSIONS) {
+            if ((version[0] >= 3 && !es3Config) || (version[1] != 0 && !createContextKhr)) {
+                continue;
+            }
+            int[] ctxAttrib = version[1] == 0 ? new int[] {
+                    EGL_CONTEXT_CLIENT_VERSION, version[0],
+                    EGL10.EGL_NONE
+            } : new int[] {
+                    EGL_CONTEXT_CLIENT_VERSION, version[0],
+                    EGL_CONTEXT_MINOR_VERSION_KHR, version[1],
+                    EGL10.EGL_NONE
+            };
+            EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, ctxAttrib);
+            if (context != null && context != EGL10.EGL_NO_CONTEXT) {
+                return context;
+            }
+            // Clear the error the failed attempt left behind.
+            egl.eglGetError();
+        }
+        return EGL10.EGL_NO_CONTEXT;
+    }
+
+    public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+        egl.eglDestroyContext(display, context);
+    }
+}
+
+class DefaultWindowSurfaceFactory implements GLSurfaceView.EGLWindowSurfaceFactory {
+
+    public EGLSurface createWindowSurface(EGL10 egl, EGLDisplay
+            display, EGLConfig config, Object nativeWindow) {
+        // this is a bit of a hack to work around Droid init problems - if you don't have this, it'll get hung up on orientation changes
+        EGLSurface eglSurface = null;
+        while (eglSurface == null) {
+            try {
+                eglSurface = egl.eglCreateWindowSurface(display,
+                        config, nativeWindow, null);
+            } catch (Throwable t) {
+            } finally {
+                if (eglSurface == null) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException t) {
+                    }
+                }
+            }
+        }
+        return eglSurface;
+    }
+
+    public void destroySurface(EGL10 egl, EGLDisplay display, EGLSurface surface) {
+        egl.eglDestroySurface(display, surface);
+    }
+}
+
+class EglHelper {
+
+    EGL10 mEgl;
+    EGLDisplay mEglDisplay;
+    private EGLContext mEglContext;
+    EGLConfig mEglConfig;
+    private GL mGL;
+    private EGLSurface mOffscreenSurface;
+    // Whether the display supports EGL_KHR_surfaceless_context, null until asked.
+    private Boolean mSurfaceless;
+
+    private GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
+    private GLSurfaceView.EGLContextFactory mEGLContextFactory;
+    private GLSurfaceView.GLWrapper mGLWrapper;
+
+    /**
+     * @param egl the EGL to use, null for the platform's.
+     */
+    public EglHelper(EGL10 egl, GLSurfaceView.EGLConfigChooser chooser, GLSurfaceView.EGLContextFactory contextFactory,
+                     GLSurfaceView.GLWrapper wrapper) {
+        this.mEgl = egl;
+        this.mEGLConfigChooser = chooser;
+        this.mEGLContextFactory = contextFactory;
+        this.mGLWrapper = wrapper;
+    }
+
+    /**
+     * Connects to the display and chooses the config, everything but the context. Cheap to call again,
+     * the GLThread does it as soon as it starts so the first surface only has to wait for the context.
+     */
+    public void prepare() {
+        if (mEgl == null) {
+            // Log.d("EglHelper" + instanceId, "getting new EGL");
+			/*
+			 * Get an EGL instance
+			 */
+            mEgl = (EGL10) EGLContext.getEGL();
+        } else {
+            // Log.d("EglHelper" + instanceId, "reusing EGL");
+        }
+
+        if (mEglDisplay == null) {
+            // Log.d("EglHelper" + instanceId, "getting new display");
+			/*
+			 * Get to the default display and initialize EGL for it, finish() terminated the last one.
+			 */
+            mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
+            int[] version = new int[2];
+            mEgl.eglInitialize(mEglDisplay, version);
+        } else {
+            // Log.d("EglHelper" + instanceId, "reusing display");
+        }
+
+        if (mEglConfig == null) {
+            // Log.d("EglHelper" + instanceId, "getting new config");
+            mEglConfig = mEGLConfigChooser.chooseConfig(mEgl, mEglDisplay);
+        } else {
+            // Log.d("EglHelper" + instanceId, "reusing config");
+        }
+    }
+
+    /**
+     * Initialize EGL for a given configuration spec.
+     *
+     */
+    public void start() {
+        // Log.d("EglHelper" + instanceId, "start()");
+        prepare();
+
+        if (mEglContext == null) {
+            // Log.d("EglHelper" + instanceId, "creating new context");
+			/*
+			 * Create an OpenGL ES context. This must be done only once, an OpenGL context is a somewhat heavy object.
+			 */
+            mEglContext = mEGLContextFactory.createContext(mEgl, mEglDisplay, mEglConfig);
+            if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
+                throw new RuntimeException("createContext failed");
+            }
+            mGL = mEglContext.getGL();
+            if (mGLWrapper != null) {
+                mGL = mGLWrapper.wrap(mGL);
+            }
+            if (GLUtil.getCheckLevel() == GLUtil.CHECK_TRACE) {
+                mGL = GLDebugHelper.wrap(mGL, GLDebugHelper.CONFIG_CHECK_GL_ERROR
+                        | GLDebugHelper.CONFIG_LOG_ARGUMENT_NAMES, new LogWriter());
+            }
+        } else {
+            // Log.d("EglHelper" + instanceId, "reusing context");
+        }
+    }
+
+    /*
+     * React to the creation of a new surface by creating and returning a window surface of the shared context,
+     * current and ready to render to.
+     */
+    public EGLSurface createSurface(SurfaceHolder holder, GLSurfaceView.EGLWindowSurfaceFactory surfaceFactory,
+                                    EGLSurface oldSurface) {
+		/*
+		 * The window size has changed, so we need to create a new surface.
+		 */
+        if (oldSurface != null && oldSurface != EGL10.EGL_NO_SURFACE) {
+
+			/*
+			 * Unbind and destroy the old EGL surface, if there is one.
+			 */
+            mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            surfaceFactory.destroySurface(mEgl, mEglDisplay, oldSurface);
+        }
+
+		/*
+		 * Create an EGL surface we can render into.
+		 */
+        EGLSurface eglSurface = surfaceFactory.createWindowSurface(mEgl, mEglDisplay, mEglConfig, holder);
+
+        if (eglSurface == null || eglSurface == EGL10.EGL_NO_SURFACE) {
+            throw new RuntimeException("createWindowSurface failed");
+        }
+
+        makeCurrent(eglSurface);
+        return eglSurface;
+    }
+
+    /**
+     * Asks for the content of the current window surface to be kept across swaps, it is undefined
+     * after a swap otherwise. Only possible from API 17, EGL10 has no eglSurfaceAttrib.
+     *
+     * @return true if the surface now preserves its content.
+     */
+    public boolean setSwapPreserved() {
+        if (Build.VERSION.SDK_INT < 17) {
+            return false;
+        }
+        return EGL14.eglSurfaceAttrib(EGL14.eglGetCurrentDisplay(), EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+                EGL14.EGL_SWAP_BEHAVIOR, EGL14.EGL_BUFFER_PRESERVED);
+    }
+
+    /*
+     * Before we can issue GL commands, we need to make sure the context is current and bound to a surface.
+     */
+    public void makeCurrent(EGLSurface eglSurface) {
+        if (!mEgl.eglMakeCurrent(mEglDisplay, eglSurface, eglSurface, mEglContext)) {
+            throw new RuntimeException("eglMakeCurrent failed.");
+        }
+    }
+
+    /**
+     * @return false if the surface could not be made current, e.g. because its window is gone.
+     */
+    public boolean tryMakeCurrent(EGLSurface eglSurface) {
+        return mEgl.eglMakeCurrent(mEglDisplay, eglSurface, eglSurface, mEglContext);
+    }
+
+    /**
+     * @return a 1x1 pbuffer surface to make the context current with when no window surface is left,
+     * null if the config does not support pbuffers.
+     */
+    public EGLSurface getOffscreenSurface() {
+        if (mOffscreenSurface == null) {
+            mOffscreenSurface = createPbufferSurface(1, 1);
+        }
+        return mOffscreenSurface;
+    }
+
+    /**
+     * @return a pbuffer surface of the given size in the shared context's config, null if the config
+     * does not support pbuffers. Destroy it with {@link #destroyPbufferSurface}.
+     */
+    public EGLSurface createPbufferSurface(int width, int height) {
+        int[] attribs = {
+                EGL10.EGL_WIDTH, width,
+                EGL10.EGL_HEIGHT, height,
+                EGL10.EGL_NONE
+        };
+        EGLSurface surface = mEgl.eglCreatePbufferSurface(mEglDisplay, mEglConfig, attribs);
+        if (surface == null || surface == EGL10.EGL_NO_SURFACE) {
+            return null;
+        }
+        return surface;
+    }
+
+    public void destroyPbufferSurface(EGLSurface surface) {
+        mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+        mEgl.eglDestroySurface(mEglDisplay, surface);
+    }
+
+    /**
+     * @return true if the context can be made current without any surface.
+     */
+    public boolean isSurfacelessSupported() {
+        if (mSurfaceless == null) {
+            String extensions = mEgl.eglQueryString(mEglDisplay, EGL10.EGL_EXTENSIONS);
+            mSurfaceless = extensions != null
+                    && (" " + extensions + " ").contains(" EGL_KHR_surfaceless_context ");
+        }
+        return mSurfaceless;
+    }
+
+    /**
+     * Makes the context current for rendering into framebuffer objects only: without a surface where
+     * the display allows that, with the 1x1 pbuffer otherwise.
+     *
+     * @return false if neither works.
+     */
+    public boolean makeCurrentOffscreen() {
+        if (isSurfacelessSupported()
+                && mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, mEglContext)) {
+            return true;
+        }
+        EGLSurface surface = getOffscreenSurface();
+        return surface != null && tryMakeCurrent(surface);
+    }
+
+    /**
+     * @return the shared context, null before {@link #start()}.
+     */
+    public EGLContext getContext() {
+        return mEglContext;
+    }
+
+    /**
+     * @return the OpenGL interface of the shared context, valid after {@link #start()}.
+     */
+    public GL getGL() {
+        return mGL;
+    }
+
+    /**
+     * Display the given render surface.
+     *
+     * @return false if the context has been lost.
+     */
+    public boolean swap(EGLSurface eglSurface) {
+        mEgl.eglSwapBuffers(mEglDisplay, eglSurface);
+
+		/*
+		 * Always check for EGL_CONTEXT_LOST, which means the context and all associated data were lost (For instance
+		 * because the device went to sleep). We need to sleep until we get a new surface.
+		 */
+        return mEgl.eglGetError() != EGL11.EGL_CONTEXT_LOST;
+    }
+
+    public void destroySurface(EGLSurface eglSurface, GLSurfaceView.EGLWindowSurfaceFactory surfaceFactory) {
+        if (eglSurface != null && eglSurface != EGL10.EGL_NO_SURFACE) {
+            mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            surfaceFactory.destroySurface(mEgl, mEglDisplay, eglSurface);
+        }
+    }
+
+    public void finish() {
+        if (mOffscreenSurface != null) {
+            mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            mEgl.eglDestroySurface(mEglDisplay, mOffscreenSurface);
+            mOffscreenSurface = null;
+        }
+        if (mEglContext != null) {
+            mEGLContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
+            mEglContext = null;
+            mGL = null;
+        }
+        if (mEglDisplay != null) {
+            mEgl.eglTerminate(mEglDisplay);
+            mEglDisplay = null;
+            mSurfaceless = null;
+        }
+    }
+}
+
+/**
+ * The render thread of the process. It owns the one EGL context and renders the window surface of
+ * every attached {@link RenderSession}, one per engine, in turn.
+ */
+class GLThread extends Thread {
+    private final static boolean LOG_THREADS = false;
+    public final static int DEBUG_CHECK_GL_ERROR = 1;
+    public final static int DEBUG_LOG_GL_CALLS = 2;
+    final static int EVENT_QUEUE_CAPACITY = 256;
+
+    final static int WORK_NONE = 0;
+    final static int WORK_EVENTS = 1;
+    final static int WORK_INPUT = 2;
+    final static int WORK_FRAME = 3;
+    final static int WORK_RELEASE = 4;
+    final static int WORK_OFFSCREEN = 5;
+
+    /*
+     * Process wide: hands out the render thread and guards its state and the state of every session.
+     */
+    static final GLThreadManager sGLThreadManager = new GLThreadManager();
+
+    private final GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
+    private final GLSurfaceView.EGLContextFactory mEGLContextFactory;
+    private final GLSurfaceView.GLWrapper mGLWrapper;
+
+    // Once the thread is started, all accesses to the following member
+    // variables are protected by the sGLThreadManager monitor
+    private boolean mDone;
+    private boolean mHaveEglContext;
+    private final ArrayList<RenderSession> mSessions = new ArrayList<RenderSession>();
+    // Round robin position, the session after the one that got the last turn goes first.
+    private int mNextSession;
+    // End of member variables protected by the sGLThreadManager monitor.
+
+    private final Runnable[] mEventBatch = new Runnable[EVENT_QUEUE_CAPACITY];
+    private EglHelper mEglHelper;
+    private final GLWallpaperService.EGLConfigAttributes mConfigAttributes = new GLWallpaperService.EGLConfigAttributes();
+    // What the current context can do, read once it is first current.
+    private GLCapabilities mCapabilities;
+    // Made with the capabilities, one per context.
+    private TextureLoader mTextureLoader;
+    private GpuTimer mGpuTimer;
+
+    private final ThreadSchedStats mSchedStats = new ThreadSchedStats();
+    // What the policies of the sessions add up to, applied by the GLThread to itself.
+    private int mCorePreference = RenderThreadPolicy.CORES_ANY;
+
+    // Only written by the GLThread.
+    private volatile int mPriority = Integer.MIN_VALUE;
+    private volatile long mPriorityChangeCount;
+    private volatile long mWakeupCount;
+    private volatile long mSpuriousWakeupCount;
+    private volatile int mContextLossCount;
+
+    /*
+     * The first session's config chooser and context factory define the context every later session shares.
+     */
+    private GLThread(GLSurfaceView.EGLConfigChooser chooser, GLSurfaceView.EGLContextFactory contextFactory,
+                     GLSurfaceView.GLWrapper wrapper) {
+        super();
+        this.mEGLConfigChooser = chooser;
+        this.mEGLContextFactory = contextFactory;
+        this.mGLWrapper = wrapper;
+    }
+
+    @Override
+    public void run() {
+        setName("GLThread " + getId());
+        if (LOG_THREADS) {
+            Log.i("GLThread", "starting tid=" + getId());
+        }
+
+        try {
+            guardedRun();
+        } catch (InterruptedException e) {
+            // fall thru and exit normally
+        } finally {
+            sGLThreadManager.threadExiting(this);
+        }
+    }
+
+    /*
+     * This private method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    boolean isDone() {
+        return mDone;
+    }
+
+    private void stopEglSurfaceLocked(RenderSession session) {
+        if (session.mHaveEglSurface) {
+            session.mHaveEglSurface = false;
+            mEglHelper.destroySurface(session.mEglSurface, session.mEGLWindowSurfaceFactory);
+            session.mEglSurface = null;
+        }
+    }
+
+    /*
+     * This private method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    private boolean hasEglSurfaceLocked() {
+        for (RenderSession session : mSessions) {
+            if (session.mHaveEglSurface) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * This private method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    private boolean hasOffscreenWorkLocked() {
+        for (RenderSession session : mSessions) {
+            if (session.hasOffscreenWorkLocked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Creates the shared context. This private method should only be called inside a
+     * synchronized(sGLThreadManager) block.
+     */
+    private void startEglContextLocked() {
+        mEglHelper.start();
+        mHaveEglContext = true;
+        mCapabilities = null;
+        GLStateCache.invalidate();
+        // Resources live in the context, a new one means every renderer starts over.
+        for (RenderSession session : mSessions) {
+            session.mTellRendererSurfaceCreated = true;
+        }
+    }
+
+    /*
+     * Sets the priority of the GLThread to the most favourable one the sessions' policies ask for,
+     * for their engines visible or not. The core preference of the first visible session with one
+     * is what frames are counted against. This private method should only be called inside a
+     * synchronized(sGLThreadManager) block.
+     */
+    private void applyThreadPolicyLocked() {
+        int priority = Integer.MAX_VALUE;
+        int corePreference = RenderThreadPolicy.CORES_ANY;
+        for (RenderSession s : mSessions) {
+            boolean visible = s.targetStateLocked() == RenderSession.STATE_READY;
+            RenderThreadPolicy policy = s.mThreadPolicy;
+            priority = Math.min(priority, policy.getPriority(visible));
+            if (visible && corePreference == RenderThreadPolicy.CORES_ANY) {
+                corePreference = policy.getCorePreference();
+            }
+        }
+        mCorePreference = corePreference;
+        if (priority != Integer.MAX_VALUE && priority != mPriority) {
+            Process.setThreadPriority(priority);
+            mPriority = priority;
+            mPriorityChangeCount++;
+        }
+    }
+
+    /**
+     * @return the priority the thread last set for itself from the sessions' policies.
+     */
+    public int getThreadPriority() {
+        return mPriority;
+    }
+
+    public long getPriorityChangeCount() {
+        return mPriorityChangeCount;
+    }
+
+    /*
+     * Destroys the shared context, the texture loader's first. This private method should only be
+     * called inside a synchronized(sGLThreadManager) block.
+     */
+    private void finishEglContextLocked() {
+        if (mTextureLoader != null) {
+            mTextureLoader.shutdown();
+            mTextureLoader = null;
+        }
+        // Its queries went with the context.
+        mGpuTimer = null;
+        mEglHelper.finish();
+        mHaveEglContext = false;
+    }
+
+    /*
+     * Whether the context and the EGL surfaces of paused sessions should be kept: some session asks
+     * for it and what all renderers keep in the context fits that session's budget. This private
+     * method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    private boolean shouldPreserveLocked() {
+        long totalBytes = 0;
+        for (RenderSession session : mSessions) {
+            totalBytes += session.mGLMemoryBytes;
+        }
+        for (RenderSession session : mSessions) {
+            if (session.mPreserveEglContextOnPause && !session.mExitRequested
+                    && totalBytes <= session.mPreservedMemoryBudget) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void guardedRun() throws InterruptedException {
+        mEglHelper = new EglHelper(sGLThreadManager.getEgl(), mEGLConfigChooser, mEGLContextFactory, mGLWrapper);
+        // Get config selection out of the way while the engine is still waiting for its surface.
+        mEglHelper.prepare();
+        mConfigAttributes.read(mEglHelper.mEgl, mEglHelper.mEglDisplay, mEglHelper.mEglConfig);
+        mSchedStats.open();
+        try {
+            long parkedNanos = 0;
+            boolean woke = false;
+
+			/*
+			 * This is our main activity thread's loop, we go until asked to quit.
+			 */
+            while (true) {
+                RenderSession session = null;
+                int work = WORK_NONE;
+                // 0: park until woken, positive: park at most that long.
+                long parkNanos = 0;
+
+                synchronized (sGLThreadManager) {
+                    if (mDone) {
+                        return;
+                    }
+
+                    boolean preserve = shouldPreserveLocked();
+
+                    // Move every session to the state its engine asked for, acquiring and
+                    // releasing the SurfaceView surface and the EGL surface on the way.
+                    long now = System.nanoTime();
+                    for (int i = mSessions.size() - 1; i >= 0; i--) {
+                        RenderSession s = mSessions.get(i);
+                        if (parkedNanos > 0) {
+                            s.mFrameMetrics.record(FrameMetrics.PHASE_WAIT, parkedNanos);
+                        }
+                        int state = s.targetStateLocked();
+                        switch (state) {
+                            case RenderSession.STATE_EXITED:
+                                if (!s.mReleased && mHaveEglContext && !s.mTellRendererSurfaceCreated
+                                        && s.mRenderer instanceof GLWallpaperService.GLResourceOwner) {
+                                    // Let the renderer free what it has in the context first. Not if
+                                    // it never drew in this context, what it has died with an older one.
+                                    s.mReleasePending = true;
+                                    continue;
+                                }
+                                stopEglSurfaceLocked(s);
+                                s.mOffscreenJobs.clear();
+                                mSessions.remove(i);
+                                break;
+                            case RenderSession.STATE_WAITING_FOR_SURFACE:
+                                stopEglSurfaceLocked(s);
+                                break;
+                            case RenderSession.STATE_PAUSED:
+                                if (!preserve) {
+                                    stopEglSurfaceLocked(s);
+                                }
+                                break;
+                            case RenderSession.STATE_READY:
+                                if (s.takeSurfaceReplacedLocked()) {
+                                    stopEglSurfaceLocked(s);
+                                }
+                                if (!s.mHaveEglSurface) {
+                                    if (!mHaveEglContext) {
+                                        startEglContextLocked();
+                                    }
+                                    s.mHaveEglSurface = true;
+                                    s.mRequestRender = true;
+                                    s.mNeedStart = true;
+                                }
+                                break;
+                        }
+                        s.enterStateLocked(state, now);
+                    }
+                    parkedNanos = 0;
+                    applyThreadPolicyLocked();
+
+                    // Drop the context once no engine is showing anything, unless it is
+                    // to be preserved or offscreen work still needs it.
+                    if (mHaveEglContext && !preserve && !hasEglSurfaceLocked() && !hasOffscreenWorkLocked()) {
+                        finishEglContextLocked();
+                    }
+
+                    if (mSessions.isEmpty()) {
+                        // Last engine is gone, a new one gets a new thread.
+                        sGLThreadManager.threadExiting(this);
+                        return;
+                    }
+
+                    // Give the first session with something to do, starting after the
+                    // one that had the last turn, one unit of work.
+                    int count = mSessions.size();
+                    for (int i = 0; i < count; i++) {
+                        int index = (mNextSession + i) % count;
+                        RenderSession s = mSessions.get(index);
+                        work = s.nextWorkLocked(now);
+                        if (work != WORK_NONE) {
+                            session = s;
+                            mNextSession = (index + 1) % count;
+                            if (work == WORK_FRAME) {
+                                s.beginFrameLocked();
+                            }
+                            break;
+                        }
+                        if (s.mWakeDelayNanos > 0 && (parkNanos == 0 || s.mWakeDelayNanos < parkNanos)) {
+                            parkNanos = s.mWakeDelayNanos;
+                        }
+                    }
+
+                    // Nothing visible to do, offscreen jobs may have the thread.
+                    for (int i = 0; session == null && i < count; i++) {
+                        int index = (mNextSession + i) % count;
+                        RenderSession s = mSessions.get(index);
+                        if (s.hasOffscreenWorkLocked()) {
+                            if (!mHaveEglContext) {
+                                startEglContextLocked();
+                            }
+                            session = s;
+                            work = WORK_OFFSCREEN;
+                            mNextSession = (index + 1) % count;
+                        }
+                    }
+
+                    if (session == null && LOG_THREADS) {
+                        Log.i("GLThread", "waiting tid=" + getId());
+                    }
+                    if (woke && session == null) {
+                        // Unparked (or timed out) only to find nothing to do.
+                        mSpuriousWakeupCount++;
+                    }
+                    woke = false;
+                } // end of synchronized(sGLThreadManager)
+
+                /*
+                 * By design, this is the only place where we wait. Every state change and every
+                 * queued event unparks us after it is published, so a wakeup between the checks
+                 * above and the park below is not lost, it just makes park return immediately.
+                 */
+                if (session == null) {
+                    long parkStartNanos = System.nanoTime();
+                    if (parkNanos > 0) {
+                        LockSupport.parkNanos(this, parkNanos);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                    parkedNanos = System.nanoTime() - parkStartNanos;
+                    mWakeupCount++;
+                    woke = true;
+                    if (Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    continue;
+                }
+
+                switch (work) {
+                    case WORK_EVENTS:
+                        runEvents(session);
+                        break;
+                    case WORK_INPUT:
+                        long deliverStartNanos = System.nanoTime();
+                        session.mInputCoalescer.deliver(session.mInputHandler, deliverStartNanos);
+                        session.mFrameMetrics.record(FrameMetrics.PHASE_EVENTS, System.nanoTime() - deliverStartNanos);
+                        break;
+                    case WORK_FRAME:
+                        boolean sampled = mSchedStats.sample();
+                        long runNanos = mSchedStats.getRunNanos();
+                        long runQueueNanos = mSchedStats.getRunQueueNanos();
+                        drawFrame(session);
+                        if (sampled && mSchedStats.sample()) {
+                            session.recordSchedStats(mSchedStats.getRunNanos() - runNanos,
+                                    mSchedStats.getRunQueueNanos() - runQueueNanos);
+                        }
+                        if (mCorePreference != RenderThreadPolicy.CORES_ANY) {
+                            session.recordPlacement(ThreadSchedStats.isPreferredCore(mSchedStats.readCpu(),
+                                    mCorePreference));
+                        }
+                        break;
+                    case WORK_RELEASE:
+                        releaseResources(session);
+                        break;
+                    case WORK_OFFSCREEN:
+                        runOffscreenJob(session);
+                        break;
+                }
+            }
+        } finally {
+			/*
+			 * clean-up everything...
+			 */
+            synchronized (sGLThreadManager) {
+                for (RenderSession s : mSessions) {
+                    stopEglSurfaceLocked(s);
+                }
+                finishEglContextLocked();
+            }
+            mSchedStats.close();
+        }
+    }
+
+    /*
+     * Handle the events queued for one session, with its surface current if it has one.
+     */
+    private void runEvents(RenderSession session) {
+        long drainStartNanos = System.nanoTime();
+        if (session.mEglSurface != null) {
+            mEglHelper.makeCurrent(session.mEglSurface);
+        }
+        int count = session.mEventQueue.drainTo(mEventBatch);
+        if (count == 0) {
+            // A producer claimed a slot but has not published into it yet.
+            Thread.yield();
+        }
+        for (int i = 0; i < count; i++) {
+            Runnable r = mEventBatch[i];
+            mEventBatch[i] = null;
+            r.run();
+        }
+        if (count > 0) {
+            // Events may change GL state directly.
+            GLStateCache.invalidate();
+        }
+        session.mFrameMetrics.record(FrameMetrics.PHASE_EVENTS, System.nanoTime() - drainStartNanos);
+    }
+
+    /*
+     * Hands the context to an exiting session's renderer so it can delete what it created. Uses the
+     * session's own surface if it still has one, any other surface otherwise.
+     */
+    private void releaseResources(RenderSession session) {
+        EGLSurface surface = session.mEglSurface;
+        if (surface == null) {
+            synchronized (sGLThreadManager) {
+                for (RenderSession other : mSessions) {
+                    if (other.mEglSurface != null) {
+                        surface = other.mEglSurface;
+                        break;
+                    }
+                }
+            }
+        }
+        boolean current = surface != null ? mEglHelper.tryMakeCurrent(surface) : mEglHelper.makeCurrentOffscreen();
+        if (current) {
+            ((GLWallpaperService.GLResourceOwner) session.mRenderer).releaseGLResources();
+        }
+        synchronized (sGLThreadManager) {
+            session.mReleasePending = false;
+            session.mReleased = true;
+        }
+    }
 
-    private GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
-    private GLSurfaceView.EGLContextFactory mEGLContextFactory;
-    private GLSurfaceView.EGLWindowSurfaceFactory mEGLWindowSurfaceFactory;
-    private GLSurfaceView.GLWrapper mGLWrapper;
+    /*
+     * Runs one slice of the session's oldest offscreen job at background priority, with the context
+     * current but no window surface, so a visible engine's surface is never touched.
+     */
+    private void runOffscreenJob(RenderSession session) {
+        GLWallpaperService.OffscreenJob job;
+        synchronized (sGLThreadManager) {
+            job = session.mOffscreenJobs.peek();
+        }
+        if (job == null) {
+            return;
+        }
+        boolean done;
+        long startNanos = System.nanoTime();
+        if (mEglHelper.makeCurrentOffscreen()) {
+            int priority = Process.getThreadPriority(Process.myTid());
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            try {
+                done = job.runOffscreen((GL10) mEglHelper.getGL());
+            } finally {
+                Process.setThreadPriority(priority);
+                GLStateCache.invalidate();
+            }
+        } else {
+            Log.w("GLThread", "no pbuffer or surfaceless context for offscreen work, dropping job");
+            done = true;
+        }
+        session.recordOffscreenSlice(System.nanoTime() - startNanos);
+        if (done) {
+            synchronized (sGLThreadManager) {
+                session.mOffscreenJobs.remove(job);
+            }
+        }
+    }
+
+    private void drawFrame(RenderSession session) {
+        boolean changed = session.mFrameSizeChanged;
+        int w = session.mFrameWidth;
+        int h = session.mFrameHeight;
+        GL10 gl = (GL10) mEglHelper.getGL();
+
+        if (session.mNeedStart) {
+            changed = true;
+            session.mNeedStart = false;
+        }
+        if (changed) {
+            session.mEglSurface = mEglHelper.createSurface(session.mHolder, session.mEGLWindowSurfaceFactory,
+                    session.mEglSurface);
+            session.mTellRendererSurfaceChanged = true;
+            session.setSurfaceSize(w, h, mConfigAttributes);
+            // A new surface starts out with nothing worth keeping, its first frame is drawn in full.
+            session.mSwapPreserved = session.mRenderer instanceof GLWallpaperService.DamageReporter
+                    && mConfigAttributes.canPreserveSwap() && mEglHelper.setSwapPreserved();
+            session.mDrawnInFull = false;
+        } else {
+            mEglHelper.makeCurrent(session.mEglSurface);
+        }
+        if (session.mTellRendererSurfaceCreated) {
+            if (mCapabilities == null) {
+                mCapabilities = GLCapabilities.query();
+                GLStateCache.setVertexArraysSupported(mCapabilities.hasVertexArrayObjects());
+                mTextureLoader = new TextureLoader(mEglHelper, mCapabilities);
+                mGpuTimer = new GpuTimer(mCapabilities);
+                if (LOG_THREADS) {
+                    Log.i("GLThread", "context " + mCapabilities);
+                }
+            }
+            if (session.mRenderer instanceof GLWallpaperService.CapabilityListener) {
+                ((GLWallpaperService.CapabilityListener) session.mRenderer).onCapabilitiesChanged(mCapabilities);
+            }
+            if (session.mRenderer instanceof GLWallpaperService.TextureLoaderListener) {
+                ((GLWallpaperService.TextureLoaderListener) session.mRenderer).onTextureLoaderChanged(mTextureLoader);
+            }
+            session.mRenderer.onSurfaceCreated(gl, mEglHelper.mEglConfig);
+            session.mTellRendererSurfaceCreated = false;
+        }
+        if (session.mTellRendererSurfaceChanged) {
+            session.mRenderer.onSurfaceChanged(gl, w, h);
+            session.mTellRendererSurfaceChanged = false;
+        }
+
+        FramePacer pacer = session.mFramePacer;
+        FrameMetrics metrics = session.mFrameMetrics;
+        long frameStartNanos = System.nanoTime();
+        pacer.beginFrame(frameStartNanos);
+        if (session.mInputHandler != null) {
+            session.mInputCoalescer.deliver(session.mInputHandler, frameStartNanos);
+        }
+        long drawStartNanos = System.nanoTime();
+        metrics.record(FrameMetrics.PHASE_EVENTS, drawStartNanos - frameStartNanos);
+
+        long issuedStateCalls = GLStateCache.getIssuedCount();
+        long elidedStateCalls = GLStateCache.getElidedCount();
+        if (session.mRenderer instanceof GLWallpaperService.FramePreparer) {
+            ((GLWallpaperService.FramePreparer) session.mRenderer).prepareFrame();
+        }
+        long pixels = (long) w * h;
+        long redrawnPixels = pixels;
+        boolean scissored = false;
+        Rect damage = session.mDamage;
+        if (session.mRenderer instanceof GLWallpaperService.DamageReporter) {
+            // Always asked, so the renderer starts over collecting damage for the next frame.
+            boolean partial = ((GLWallpaperService.DamageReporter) session.mRenderer).getDamage(damage);
+            if (partial && session.mSwapPreserved && session.mDrawnInFull) {
+                if (!damage.intersect(0, 0, w, h)) {
+                    damage.setEmpty();
+                }
+                // GL counts rows from the bottom.
+                GLStateCache.enable(GLES20.GL_SCISSOR_TEST);
+                GLES20.glScissor(damage.left, h - damage.bottom, damage.width(), damage.height());
+                redrawnPixels = (long) damage.width() * damage.height();
+                scissored = true;
+            }
+        }
+
+        GpuTimer gpuTimer = mGpuTimer;
+        if (gpuTimer != null) {
+            gpuTimer.begin(session);
+        }
+		/* draw a frame here */
+        session.mRenderer.onDrawFrame(gl);
+        if (scissored) {
+            GLStateCache.disable(GLES20.GL_SCISSOR_TEST);
+        }
+        if (gpuTimer != null) {
+            gpuTimer.end();
+        }
+        session.recordStateCalls(GLStateCache.getIssuedCount() - issuedStateCalls,
+                GLStateCache.getElidedCount() - elidedStateCalls);
+        session.mDrawnInFull = true;
+        session.recordRedrawnPixels(scissored, redrawnPixels, pixels);
+        long swapStartNanos = System.nanoTime();
+        metrics.record(FrameMetrics.PHASE_DRAW, swapStartNanos - drawStartNanos);
+
+		/*
+		 * Once we're done with GL, we need to call swapBuffers() to instruct the system to display the
+		 * rendered frame
+		 */
+        if (!mEglHelper.swap(session.mEglSurface)) {
+            loseEglContext();
+            return;
+        }
+        // The swap has flushed the frame, so the one check per frame does not stall behind it.
+        GLUtil.checkFrameErrors("frame");
+        if (gpuTimer != null) {
+            gpuTimer.collect();
+        }
+        long frameEndNanos = System.nanoTime();
+        metrics.record(FrameMetrics.PHASE_SWAP, frameEndNanos - swapStartNanos);
+        metrics.recordFrame(frameEndNanos, pacer.endFrame(frameEndNanos));
+        if (session.mRenderer instanceof GLWallpaperService.ResolutionScaleListener) {
+            // What the frame cost to draw, not the wait in the swap for a buffer to draw the next one
+            // into. The GPU's time comes a few frames late, which the scaler's window evens out.
+            long costNanos = swapStartNanos - drawStartNanos;
+            if (gpuTimer != null) {
+                costNanos += session.mLastGpuNanos;
+            }
+            session.mResolutionScaler.recordFrame(costNanos, pacer.getFrameIntervalNanos());
+        }
+
+        if (session.mFrameResumeStartNanos != 0) {
+            session.mLastResumeNanos = frameEndNanos - session.mFrameResumeStartNanos;
+        }
+
+        boolean animating = (session.mRenderer instanceof GLWallpaperService.SceneRenderer)
+                && ((GLWallpaperService.SceneRenderer) session.mRenderer).isAnimating();
+        long memoryBytes = (session.mRenderer instanceof GLWallpaperService.MemoryReporter)
+                ? ((GLWallpaperService.MemoryReporter) session.mRenderer).getGLMemoryBytes() : 0;
+        synchronized (sGLThreadManager) {
+            session.mIdleGovernor.onFrameDrawn(animating, System.nanoTime());
+            session.mGLMemoryBytes = memoryBytes;
+        }
+    }
+
+    /*
+     * The context is gone with everything in it (e.g. the device slept). Drop it and every EGL surface,
+     * the main loop starts over with a new context and every renderer is told the surface was created.
+     */
+    private void loseEglContext() {
+        Log.w("GLThread", "EGL context lost, recreating it");
+        synchronized (sGLThreadManager) {
+            for (RenderSession s : mSessions) {
+                stopEglSurfaceLocked(s);
+            }
+            finishEglContextLocked();
+            mContextLossCount++;
+        }
+    }
+
+    public int getContextLossCount() {
+        return mContextLossCount;
+    }
+
+    /**
+     * @return how often the thread came back from parking, for whichever session.
+     */
+    public long getWakeupCount() {
+        return mWakeupCount;
+    }
+
+    /**
+     * @return wakeups that found no session with anything to do.
+     */
+    public long getSpuriousWakeupCount() {
+        return mSpuriousWakeupCount;
+    }
+
+    static class GLThreadManager {
+        private GLThread mThread;
+        // Tests swap in a fake EGL here.
+        private EGL10 mEgl;
+
+        /*
+         * Attaches a session to the render thread of the process, starting one if there is none.
+         *
+         * @return the thread that will render the session.
+         */
+        public synchronized GLThread attach(RenderSession session) {
+            if (mThread == null) {
+                mThread = new GLThread(session.mEGLConfigChooser, session.mEGLContextFactory, session.mGLWrapper);
+                mThread.mSessions.add(session);
+                mThread.start();
+            } else {
+                mThread.mSessions.add(session);
+                LockSupport.unpark(mThread);
+            }
+            return mThread;
+        }
+
+        public synchronized void threadExiting(GLThread thread) {
+            if (LOG_THREADS) {
+                Log.i("GLThread", "exiting tid=" + thread.getId());
+            }
+            thread.mDone = true;
+            if (mThread == thread) {
+                mThread = null;
+            }
+            // Nobody is going to move these sessions anywhere any more.
+            for (RenderSession session : thread.mSessions) {
+                session.wakeWaiterLocked();
+            }
+        }
+
+        synchronized void setEgl(EGL10 egl) {
+            mEgl = egl;
+        }
+
+        synchronized EGL10 getEgl() {
+            return mEgl;
+        }
+    }
+}
+
+/**
+ * What the render thread knows about one engine: its renderer, its window surface and its
+ * rendering state. The public methods are called from the engine's thread.
+ */
+class RenderSession implements GLWallpaperService.SceneInvalidator {
+    private final static boolean LOG_THREADS = false;
+
+    /*
+     * The states the render thread moves a session through. The engine thread only asks for a
+     * state (surface, pause and exit requests), the render thread acts on it and enters it.
+     */
+    final static int STATE_WAITING_FOR_SURFACE = 0;
+    final static int STATE_PAUSED = 1;
+    final static int STATE_READY = 2;
+    final static int STATE_EXITED = 3;
+
+    /*
+     * How long surfaceDestroyed() waits for the render thread to let go of the window surface. Past
+     * that we return anyway rather than risk an ANR behind a slow frame, the render thread drops the
+     * EGL surface once the frame is done.
+     */
+    private final static long SURFACE_HANDOFF_TIMEOUT_NANOS = 500 * 1000000L;
+
+    private final GLThread.GLThreadManager sGLThreadManager = GLThread.sGLThreadManager;
+
+    final GLSurfaceView.Renderer mRenderer;
+    final GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
+    final GLSurfaceView.EGLContextFactory mEGLContextFactory;
+    final GLSurfaceView.EGLWindowSurfaceFactory mEGLWindowSurfaceFactory;
+    final GLSurfaceView.GLWrapper mGLWrapper;
+    private GLThread mThread;
+
+    volatile SurfaceHolder mHolder;
 
-    public EglHelper(GLSurfaceView.EGLConfigChooser chooser, GLSurfaceView.EGLContextFactory contextFactory,
-                     GLSurfaceView.EGLWindowSurfaceFactory surfaceFactory, GLSurfaceView.GLWrapper wrapper) {
+    // Once the session is attached, all accesses to the following member
+    // variables are protected by the sGLThreadManager monitor
+    boolean mExitRequested;
+    boolean mPaused;
+    boolean mHasSurface;
+    boolean mHaveEglSurface;
+    // Written by the render thread only, volatile for the getters.
+    private volatile int mState = STATE_WAITING_FOR_SURFACE;
+    private volatile long mStateTransitionCount;
+    // When the oldest request the render thread has not acted on yet was made, 0 if none.
+    private long mStateRequestNanos;
+    // The engine thread parked until the render thread enters a state.
+    private Thread mWaiter;
+    // The window surface was replaced, the EGL surface made for the old one has to go.
+    private boolean mSurfaceReplaced;
+    boolean mReleasePending;
+    boolean mReleased;
+    private int mWidth;
+    private int mHeight;
+    private boolean mSizeChanged = true;
+    private int mRenderMode;
+    boolean mRequestRender;
+    long mWakeDelayNanos;
+    boolean mPreserveEglContextOnPause;
+    long mPreservedMemoryBudget = GLWallpaperService.GLEngine.DEFAULT_PRESERVED_MEMORY_BUDGET;
+    long mGLMemoryBytes;
+    RenderThreadPolicy mThreadPolicy = RenderThreadPolicy.DEFAULT;
+    private long mResumeStartNanos;
+    final ArrayDeque<GLWallpaperService.OffscreenJob> mOffscreenJobs =
+            new ArrayDeque<GLWallpaperService.OffscreenJob>();
+    // End of member variables protected by the sGLThreadManager monitor.
+
+    // Only touched by the render thread.
+    EGLSurface mEglSurface;
+    boolean mNeedStart;
+    boolean mTellRendererSurfaceCreated = true;
+    boolean mTellRendererSurfaceChanged = true;
+    int mFrameWidth;
+    int mFrameHeight;
+    boolean mFrameSizeChanged;
+    long mFrameResumeStartNanos;
+    // The window surface holds a full frame to draw partial ones over.
+    boolean mDrawnInFull;
+    final Rect mDamage = new Rect();
+
+    volatile long mLastResumeNanos;
+
+    private final AtomicLong mWakeRequestCount = new AtomicLong();
+
+    // Only written by the render thread.
+    private volatile long mSurfaceBytes;
+    private volatile long mSavedSurfaceBytes;
+
+    private volatile long mOffscreenSliceCount;
+    private volatile long mOffscreenNanos;
+
+    private volatile long mFrameRunNanos;
+    private volatile long mFrameRunQueueNanos;
+    private volatile long mPlacedFrameCount;
+    private volatile long mPreferredCoreFrameCount;
+
+    private volatile long mStateCallFrameCount;
+    private volatile long mStateCalls;
+    private volatile long mElidedStateCalls;
+
+    private volatile long mGpuNanos;
+    private volatile long mGpuFrameCount;
+    // Moving average, so it follows a change in what frames draw.
+    private volatile long mRecentGpuNanos;
+    // GLThread only, the latest sample for the resolution scaler.
+    long mLastGpuNanos;
+
+    // The window surface keeps its content across swaps.
+    volatile boolean mSwapPreserved;
+    private volatile long mPartialFrameCount;
+    private volatile long mRedrawnPixels;
+    private volatile long mDrawnPixels;
+
+    // Only written by the engine thread.
+    private volatile long mBlockedNanos;
+    private volatile long mMaxBlockedNanos;
+    private volatile int mHandoffTimeoutCount;
+
+    // Lock free, producers only unpark the render thread and it drains the queue in batches.
+    final EventQueue mEventQueue = new EventQueue(GLThread.EVENT_QUEUE_CAPACITY);
+    final FramePacer mFramePacer = new FramePacer();
+    final ResolutionScaler mResolutionScaler = new ResolutionScaler();
+    final IdleGovernor mIdleGovernor = new IdleGovernor();
+    final InputCoalescer mInputCoalescer = new InputCoalescer();
+    GLWallpaperService.InputHandler mInputHandler;
+    final FrameMetrics mFrameMetrics = new FrameMetrics();
+
+    RenderSession(GLSurfaceView.Renderer renderer, GLSurfaceView.EGLConfigChooser chooser,
+                  GLSurfaceView.EGLContextFactory contextFactory, GLSurfaceView.EGLWindowSurfaceFactory surfaceFactory,
+                  GLSurfaceView.GLWrapper wrapper) {
+        mRequestRender = true;
+        mRenderMode = GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY;
+        mRenderer = renderer;
         this.mEGLConfigChooser = chooser;
         this.mEGLContextFactory = contextFactory;
         this.mEGLWindowSurfaceFactory = surfaceFactory;
@@ -377,425 +2462,637 @@ class EglHelper {
     }
 
     /**
-     * Initialize EGL for a given configuration spec.
-     *
+     * Hands the session to the render thread, set up input handling before this.
      */
-    public void start() {
-        // Log.d("EglHelper" + instanceId, "start()");
-        if (mEgl == null) {
-            // Log.d("EglHelper" + instanceId, "getting new EGL");
-			/*
-			 * Get an EGL instance
-			 */
-            mEgl = (EGL10) EGLContext.getEGL();
-        } else {
-            // Log.d("EglHelper" + instanceId, "reusing EGL");
+    public void attach() {
+        mThread = sGLThreadManager.attach(this);
+    }
+
+    /*
+     * Decides what the render thread should do for this session next, see GLThread.WORK_*. Sets
+     * mWakeDelayNanos when there is work that is not due yet. This method should only be called
+     * inside a synchronized(sGLThreadManager) block.
+     */
+    int nextWorkLocked(long nowNanos) {
+        mWakeDelayNanos = 0;
+        if (mExitRequested) {
+            return mReleasePending ? GLThread.WORK_RELEASE : GLThread.WORK_NONE;
+        }
+        if (!mEventQueue.isEmpty()) {
+            return GLThread.WORK_EVENTS;
+        }
+        if ((mState == STATE_READY) && mHaveEglSurface && (mWidth > 0) && (mHeight > 0)
+                && (mRequestRender || (getRenderModeLocked() == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY))) {
+            // Hold the frame back until its slot comes up, anything that changes
+            // our state unparks the render thread early.
+            long delayNanos = mFramePacer.nanosUntilNextFrame(nowNanos);
+            if (delayNanos > 0 && !mSizeChanged) {
+                mWakeDelayNanos = delayNanos;
+                return GLThread.WORK_NONE;
+            }
+            return GLThread.WORK_FRAME;
+        }
+        if (mInputCoalescer.hasPending() && deliversInputLocked()) {
+            // Not drawing, but still hand input over so the renderer can decide
+            // whether it changes the scene. No more often than we would draw.
+            long delayNanos = mInputCoalescer.nanosUntilNextDelivery(nowNanos,
+                    mFramePacer.getFrameIntervalNanos());
+            if (delayNanos > 0) {
+                mWakeDelayNanos = delayNanos;
+                return GLThread.WORK_NONE;
+            }
+            return GLThread.WORK_INPUT;
         }
+        return GLThread.WORK_NONE;
+    }
 
-        if (mEglDisplay == null) {
-            // Log.d("EglHelper" + instanceId, "getting new display");
-			/*
-			 * Get to the default display.
-			 */
-            mEglDisplay = mEgl.eglGetDisplay(EGL10.EGL_DEFAULT_DISPLAY);
-        } else {
-            // Log.d("EglHelper" + instanceId, "reusing display");
+    /*
+     * This method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    boolean hasOffscreenWorkLocked() {
+        return !mExitRequested && !mOffscreenJobs.isEmpty();
+    }
+
+    /*
+     * @return true once after every surfaceCreated(). This method should only be called inside a
+     * synchronized(sGLThreadManager) block.
+     */
+    boolean takeSurfaceReplacedLocked() {
+        boolean replaced = mSurfaceReplaced;
+        mSurfaceReplaced = false;
+        return replaced;
+    }
+
+    /*
+     * The state the engine asked for. This method should only be called inside a
+     * synchronized(sGLThreadManager) block.
+     */
+    int targetStateLocked() {
+        if (mExitRequested) {
+            return STATE_EXITED;
+        }
+        if (!mHasSurface) {
+            return STATE_WAITING_FOR_SURFACE;
+        }
+        if (mPaused) {
+            return STATE_PAUSED;
         }
+        return STATE_READY;
+    }
 
-        if (mEglConfig == null) {
-            // Log.d("EglHelper" + instanceId, "getting new config");
-			/*
-			 * We can now initialize EGL for that display
-			 */
-            int[] version = new int[2];
-            mEgl.eglInitialize(mEglDisplay, version);
-            mEglConfig = mEGLConfigChooser.chooseConfig(mEgl, mEglDisplay);
-        } else {
-            // Log.d("EglHelper" + instanceId, "reusing config");
+    /*
+     * Called by the render thread once it has acted on the target state. Records how long that took
+     * and wakes an engine thread waiting for it. This method should only be called inside a
+     * synchronized(sGLThreadManager) block.
+     */
+    void enterStateLocked(int state, long nowNanos) {
+        if (mState != state) {
+            if (mStateRequestNanos != 0) {
+                mFrameMetrics.record(FrameMetrics.PHASE_STATE, nowNanos - mStateRequestNanos);
+            }
+            mStateTransitionCount++;
+            mState = state;
+            wakeWaiterLocked();
         }
+        mStateRequestNanos = 0;
+    }
 
-        if (mEglContext == null) {
-            // Log.d("EglHelper" + instanceId, "creating new context");
-			/*
-			 * Create an OpenGL ES context. This must be done only once, an OpenGL context is a somewhat heavy object.
-			 */
-            mEglContext = mEGLContextFactory.createContext(mEgl, mEglDisplay, mEglConfig);
-            if (mEglContext == null || mEglContext == EGL10.EGL_NO_CONTEXT) {
-                throw new RuntimeException("createContext failed");
+    /*
+     * This method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    void wakeWaiterLocked() {
+        if (mWaiter != null) {
+            LockSupport.unpark(mWaiter);
+        }
+    }
+
+    /*
+     * Parks the calling thread until the render thread has entered the given state or exited, for at
+     * most timeoutNanos. The time spent here counts as blocked engine thread time. This method must
+     * not be called inside a synchronized(sGLThreadManager) block.
+     *
+     * @return false if the render thread did not get there in time.
+     */
+    private boolean awaitState(int state, long timeoutNanos) {
+        if (mThread == null) {
+            return true;
+        }
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + timeoutNanos;
+        boolean reached = false;
+        while (true) {
+            synchronized (sGLThreadManager) {
+                if (mState == state || mState == STATE_EXITED || mThread.isDone()) {
+                    reached = true;
+                }
+                mWaiter = reached ? null : Thread.currentThread();
             }
-        } else {
-            // Log.d("EglHelper" + instanceId, "reusing context");
+            long remainingNanos = deadlineNanos - System.nanoTime();
+            if (reached || remainingNanos <= 0 || Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            LockSupport.parkNanos(this, remainingNanos);
+        }
+        synchronized (sGLThreadManager) {
+            mWaiter = null;
+        }
+
+        long blockedNanos = System.nanoTime() - startNanos;
+        mBlockedNanos += blockedNanos;
+        if (blockedNanos > mMaxBlockedNanos) {
+            mMaxBlockedNanos = blockedNanos;
+        }
+        if (!reached) {
+            mHandoffTimeoutCount++;
+            Log.w("GLThread", "render thread did not hand over within "
+                    + (timeoutNanos / 1000000) + "ms, not waiting any longer");
+        }
+        return reached;
+    }
+
+    /*
+     * Works out what the window surface costs with the chosen config, render thread only.
+     */
+    void setSurfaceSize(int width, int height, GLWallpaperService.EGLConfigAttributes config) {
+        long pixels = (long) width * height;
+        int colorBits = config.getRedSize() + config.getGreenSize() + config.getBlueSize() + config.getAlphaSize();
+        int ancillaryBits = config.getDepthSize() + config.getStencilSize();
+        mSurfaceBytes = pixels * (colorBits + ancillaryBits) / 8;
+        int legacyBits = GLWallpaperService.SurfaceFormat.LEGACY.getAncillaryBytesPerPixel() * 8;
+        mSavedSurfaceBytes = pixels * Math.max(0, legacyBits - ancillaryBits) / 8;
+    }
+
+    public long getSurfaceBytes() {
+        return mSurfaceBytes;
+    }
+
+    /*
+     * Called by the render thread after every frame with how much of the window it redrew.
+     */
+    void recordRedrawnPixels(boolean partial, long redrawnPixels, long pixels) {
+        if (partial) {
+            mPartialFrameCount++;
+        }
+        mRedrawnPixels += redrawnPixels;
+        mDrawnPixels += pixels;
+    }
+
+    public boolean isSwapPreserved() {
+        return mSwapPreserved;
+    }
+
+    public long getPartialFrameCount() {
+        return mPartialFrameCount;
+    }
+
+    public float getRedrawnPixelFraction() {
+        long drawnPixels = mDrawnPixels;
+        return drawnPixels == 0 ? 1f : mRedrawnPixels / (float) drawnPixels;
+    }
+
+    public long getSavedSurfaceBytes() {
+        return mSavedSurfaceBytes;
+    }
+
+    /**
+     * @return the total time engine threads spent waiting for the render thread.
+     */
+    public long getBlockedNanos() {
+        return mBlockedNanos;
+    }
+
+    public long getMaxBlockedNanos() {
+        return mMaxBlockedNanos;
+    }
+
+    /**
+     * @return how often an engine thread gave up waiting for the render thread.
+     */
+    public int getHandoffTimeoutCount() {
+        return mHandoffTimeoutCount;
+    }
+
+    /*
+     * This private method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    private void requestStateLocked() {
+        if (targetStateLocked() == mState) {
+            // Asked for where we already are, e.g. a pause undone by a resume before the render
+            // thread got to it. Nothing to act on.
+            mStateRequestNanos = 0;
+        } else if (mStateRequestNanos == 0) {
+            mStateRequestNanos = System.nanoTime();
+        }
+        wakeLocked();
+    }
+
+    public int getState() {
+        return mState;
+    }
+
+    public long getStateTransitionCount() {
+        return mStateTransitionCount;
+    }
+
+    /**
+     * @return how often the engine asked the render thread to wake up, state changes, events and
+     * input alike.
+     */
+    public long getWakeRequestCount() {
+        return mWakeRequestCount.get();
+    }
+
+    public long getWakeupCount() {
+        return mThread == null ? 0 : mThread.getWakeupCount();
+    }
+
+    public long getSpuriousWakeupCount() {
+        return mThread == null ? 0 : mThread.getSpuriousWakeupCount();
+    }
+
+    public int getContextLossCount() {
+        return mThread == null ? 0 : mThread.getContextLossCount();
+    }
+
+    public void setRenderThreadPolicy(RenderThreadPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy");
+        }
+        synchronized (sGLThreadManager) {
+            mThreadPolicy = policy;
+            wakeLocked();
+        }
+    }
+
+    public RenderThreadPolicy getRenderThreadPolicy() {
+        synchronized (sGLThreadManager) {
+            return mThreadPolicy;
+        }
+    }
+
+    public int getRenderThreadPriority() {
+        return mThread == null ? 0 : mThread.getThreadPriority();
+    }
+
+    public long getRenderThreadPriorityChangeCount() {
+        return mThread == null ? 0 : mThread.getPriorityChangeCount();
+    }
+
+    /*
+     * Called by the render thread after every frame with how long it ran and how long it waited
+     * for a CPU while drawing it.
+     */
+    void recordSchedStats(long runNanos, long runQueueNanos) {
+        mFrameRunNanos += runNanos;
+        mFrameRunQueueNanos += runQueueNanos;
+    }
+
+    /*
+     * Called by the render thread after every frame while a core preference is set.
+     */
+    void recordPlacement(boolean preferredCore) {
+        mPlacedFrameCount++;
+        if (preferredCore) {
+            mPreferredCoreFrameCount++;
         }
+    }
 
-        mEglSurface = null;
+    /*
+     * Called by the render thread with how long the GPU took for a frame, some frames after it.
+     */
+    void recordGpuTime(long nanos) {
+        mGpuNanos += nanos;
+        mRecentGpuNanos = mGpuFrameCount == 0 ? nanos : mRecentGpuNanos + (nanos - mRecentGpuNanos) / 16;
+        mLastGpuNanos = nanos;
+        mGpuFrameCount++;
     }
 
-    /*
-     * React to the creation of a new surface by creating and returning an OpenGL interface that renders to that
-     * surface.
+    /**
+     * @return frames of this session the GPU timed, 0 where the context has no timer queries.
      */
-    public GL createSurface(SurfaceHolder holder) {
-		/*
-		 * The window size has changed, so we need to create a new surface.
-		 */
-        if (mEglSurface != null && mEglSurface != EGL10.EGL_NO_SURFACE) {
+    public long getGpuTimedFrameCount() {
+        return mGpuFrameCount;
+    }
 
-			/*
-			 * Unbind and destroy the old EGL surface, if there is one.
-			 */
-            mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
-            mEGLWindowSurfaceFactory.destroySurface(mEgl, mEglDisplay, mEglSurface);
-        }
+    public long getGpuFrameNanos() {
+        long frames = mGpuFrameCount;
+        return frames == 0 ? 0 : mGpuNanos / frames;
+    }
 
-		/*
-		 * Create an EGL surface we can render into.
-		 */
-        mEglSurface = mEGLWindowSurfaceFactory.createWindowSurface(mEgl, mEglDisplay, mEglConfig, holder);
+    /**
+     * @return the GPU time of the last frames, weighted towards the latest.
+     */
+    public long getRecentGpuFrameNanos() {
+        return mRecentGpuNanos;
+    }
 
-        if (mEglSurface == null || mEglSurface == EGL10.EGL_NO_SURFACE) {
-            throw new RuntimeException("createWindowSurface failed");
-        }
+    /*
+     * Called by the render thread after every frame with the state changes made through the
+     * GLStateCache while drawing it.
+     */
+    void recordStateCalls(long issued, long elided) {
+        mStateCalls += issued;
+        mElidedStateCalls += elided;
+        mStateCallFrameCount++;
+    }
 
-		/*
-		 * Before we can issue GL commands, we need to make sure the context is current and bound to a surface.
-		 */
-        if (!mEgl.eglMakeCurrent(mEglDisplay, mEglSurface, mEglSurface, mEglContext)) {
-            throw new RuntimeException("eglMakeCurrent failed.");
-        }
+    public float getStateCallsPerFrame() {
+        long frames = mStateCallFrameCount;
+        return frames == 0 ? 0 : mStateCalls / (float) frames;
+    }
 
-        GL gl = mEglContext.getGL();
-        if (mGLWrapper != null) {
-            gl = mGLWrapper.wrap(gl);
-        }
+    public float getElidedStateCallsPerFrame() {
+        long frames = mStateCallFrameCount;
+        return frames == 0 ? 0 : mElidedStateCalls / (float) frames;
+    }
 
-		/*
-		 * if ((mDebugFlags & (DEBUG_CHECK_GL_ERROR | DEBUG_LOG_GL_CALLS))!= 0) { int configFlags = 0; Writer log =
-		 * null; if ((mDebugFlags & DEBUG_CHECK_GL_ERROR) != 0) { configFlags |= GLDebugHelper.CONFIG_CHECK_GL_ERROR; }
-		 * if ((mDebugFlags & DEBUG_LOG_GL_CALLS) != 0) { log = new LogWriter(); } gl = GLDebugHelper.wrap(gl,
-		 * configFlags, log); }
-		 */
-        return gl;
+    /**
+     * @return the CPU time frames of this session took, 0 where the kernel keeps no schedstats.
+     */
+    public long getFrameRunNanos() {
+        return mFrameRunNanos;
     }
 
     /**
-     * Display the current render surface.
-     *
-     * @return false if the context has been lost.
+     * @return how long frames of this session were runnable but waited for a CPU.
      */
-    public boolean swap() {
-        mEgl.eglSwapBuffers(mEglDisplay, mEglSurface);
+    public long getFrameRunQueueNanos() {
+        return mFrameRunQueueNanos;
+    }
 
-		/*
-		 * Always check for EGL_CONTEXT_LOST, which means the context and all associated data were lost (For instance
-		 * because the device went to sleep). We need to sleep until we get a new surface.
-		 */
-        return mEgl.eglGetError() != EGL11.EGL_CONTEXT_LOST;
+    /**
+     * @return the share of frames that ended on the preferred kind of core, 1 without a preference.
+     */
+    public float getPreferredCoreFrameFraction() {
+        long placed = mPlacedFrameCount;
+        return placed == 0 ? 1f : mPreferredCoreFrameCount / (float) placed;
     }
 
-    public void destroySurface() {
-        if (mEglSurface != null && mEglSurface != EGL10.EGL_NO_SURFACE) {
-            mEgl.eglMakeCurrent(mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
-            mEGLWindowSurfaceFactory.destroySurface(mEgl, mEglDisplay, mEglSurface);
-            mEglSurface = null;
-        }
+    /*
+     * Copies the state the next frame needs. This method should only be called inside a
+     * synchronized(sGLThreadManager) block.
+     */
+    void beginFrameLocked() {
+        mFrameSizeChanged = mSizeChanged;
+        mFrameWidth = mWidth;
+        mFrameHeight = mHeight;
+        mSizeChanged = false;
+        mRequestRender = false;
+        mFrameResumeStartNanos = mResumeStartNanos;
+        mResumeStartNanos = 0;
     }
 
-    public void finish() {
-        if (mEglContext != null) {
-            mEGLContextFactory.destroyContext(mEgl, mEglDisplay, mEglContext);
-            mEglContext = null;
+    public void setRenderMode(int renderMode) {
+        if (!((GLWallpaperService.GLEngine.RENDERMODE_WHEN_DIRTY <= renderMode) && (renderMode <= GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY))) {
+            throw new IllegalArgumentException("renderMode");
         }
-        if (mEglDisplay != null) {
-            mEgl.eglTerminate(mEglDisplay);
-            mEglDisplay = null;
+        synchronized (sGLThreadManager) {
+            mRenderMode = renderMode;
+            if (renderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY) {
+                wakeLocked();
+            }
         }
     }
-}
 
-class GLThread extends Thread {
-    private final static boolean LOG_THREADS = false;
-    public final static int DEBUG_CHECK_GL_ERROR = 1;
-    public final static int DEBUG_LOG_GL_CALLS = 2;
-
-    private final GLThreadManager sGLThreadManager = new GLThreadManager();
-    private GLThread mEglOwner;
+    public int getRenderMode() {
+        synchronized (sGLThreadManager) {
+            return getRenderModeLocked();
+        }
+    }
 
-    private GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
-    private GLSurfaceView.EGLContextFactory mEGLContextFactory;
-    private GLSurfaceView.EGLWindowSurfaceFactory mEGLWindowSurfaceFactory;
-    private GLSurfaceView.GLWrapper mGLWrapper;
+    /*
+     * This private method should only be called inside a synchronized(sGLThreadManager) block.
+     */
+    private int getRenderModeLocked() {
+        return mIdleGovernor.isEnabled() ? mIdleGovernor.getRenderMode() : mRenderMode;
+    }
 
-    public SurfaceHolder mHolder;
-    private boolean mSizeChanged = true;
+    public void setIdleGovernorEnabled(boolean enabled) {
+        synchronized (sGLThreadManager) {
+            mIdleGovernor.setEnabled(enabled, System.nanoTime());
+            mRequestRender = true;
+            wakeLocked();
+        }
+    }
 
-    // Once the thread is started, all accesses to the following member
-    // variables are protected by the sGLThreadManager monitor
-    public boolean mDone;
-    private boolean mPaused;
-    private boolean mHasSurface;
-    private boolean mWaitingForSurface;
-    private boolean mHaveEgl;
-    private int mWidth;
-    private int mHeight;
-    private int mRenderMode;
-    private boolean mRequestRender;
-    private boolean mEventsWaiting;
-    // End of member variables protected by the sGLThreadManager monitor.
+    public boolean isIdleGovernorEnabled() {
+        synchronized (sGLThreadManager) {
+            return mIdleGovernor.isEnabled();
+        }
+    }
 
-    private GLSurfaceView.Renderer mRenderer;
-    private ArrayList<Runnable> mEventQueue = new ArrayList<Runnable>();
-    private EglHelper mEglHelper;
+    public void invalidateScene() {
+        synchronized (sGLThreadManager) {
+            mIdleGovernor.onSceneInvalidated(System.nanoTime());
+            mRequestRender = true;
+            wakeLocked();
+        }
+    }
 
-    GLThread(GLSurfaceView.Renderer renderer, GLSurfaceView.EGLConfigChooser chooser, GLSurfaceView.EGLContextFactory contextFactory,
-             GLSurfaceView.EGLWindowSurfaceFactory surfaceFactory, GLSurfaceView.GLWrapper wrapper) {
-        super();
-        mDone = false;
-        mWidth = 0;
-        mHeight = 0;
-        mRequestRender = true;
-        mRenderMode = GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY;
-        mRenderer = renderer;
-        this.mEGLConfigChooser = chooser;
-        this.mEGLContextFactory = contextFactory;
-        this.mEGLWindowSurfaceFactory = surfaceFactory;
-        this.mGLWrapper = wrapper;
+    public void setInputHandler(GLWallpaperService.InputHandler handler) {
+        mInputHandler = handler;
     }
 
-    @Override
-    public void run() {
-        setName("GLThread " + getId());
-        if (LOG_THREADS) {
-            Log.i("GLThread", "starting tid=" + getId());
-        }
+    public boolean hasInputHandler() {
+        return mInputHandler != null;
+    }
 
-        try {
-            guardedRun();
-        } catch (InterruptedException e) {
-            // fall thru and exit normally
-        } finally {
-            sGLThreadManager.threadExiting(this);
+    /**
+     * Input only wakes the render thread while the session is ready and not idle. Otherwise it
+     * waits for the next frame, so an engine whose input changes the scene should also call
+     * {@link #invalidateScene()} for it.
+     */
+    public void queueInput(int type, int source, int action, boolean ordered, long timeNanos,
+                           float[] values, int valueCount) {
+        mInputCoalescer.add(type, source, action, ordered, timeNanos, values, valueCount);
+        synchronized (sGLThreadManager) {
+            if (deliversInputLocked()) {
+                wake();
+            }
         }
     }
 
     /*
-     * This private method should only be called inside a synchronized(sGLThreadManager) block.
+     * Whether input is handed over between frames. Not while paused or without a surface, and not
+     * while the idle governor has stopped drawing, or input would keep the thread waking at the
+     * input rate. This private method should only be called inside a synchronized(sGLThreadManager)
+     * block.
      */
-    private void stopEglLocked() {
-        if (mHaveEgl) {
-            mHaveEgl = false;
-            mEglHelper.destroySurface();
-            sGLThreadManager.releaseEglSurface(this);
+    private boolean deliversInputLocked() {
+        return mState == STATE_READY && !(mIdleGovernor.isEnabled() && mIdleGovernor.isIdle());
+    }
+
+    public long getInputEventsReceived() {
+        return mInputCoalescer.getReceivedCount();
+    }
+
+    public long getInputEventsDelivered() {
+        return mInputCoalescer.getDeliveredCount();
+    }
+
+    public FrameMetrics getFrameMetrics() {
+        return mFrameMetrics;
+    }
+
+    public long getIdleTimeNanos() {
+        synchronized (sGLThreadManager) {
+            return mIdleGovernor.getIdleTimeNanos(System.nanoTime());
         }
     }
 
-    private void guardedRun() throws InterruptedException {
-        mEglHelper = new EglHelper(mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory, mGLWrapper);
-        try {
-            GL10 gl = null;
-            boolean tellRendererSurfaceCreated = true;
-            boolean tellRendererSurfaceChanged = true;
+    public long getIdleWakeCount() {
+        synchronized (sGLThreadManager) {
+            return mIdleGovernor.getWakeCount();
+        }
+    }
 
-			/*
-			 * This is our main activity thread's loop, we go until asked to quit.
-			 */
-            while (!isDone()) {
-				/*
-				 * Update the asynchronous state (window size)
-				 */
-                int w = 0;
-                int h = 0;
-                boolean changed = false;
-                boolean needStart = false;
-                boolean eventsWaiting = false;
+    public void requestRender() {
+        synchronized (sGLThreadManager) {
+            mRequestRender = true;
+            wakeLocked();
+        }
+    }
 
-                synchronized (sGLThreadManager) {
-                    while (true) {
-                        // Manage acquiring and releasing the SurfaceView
-                        // surface and the EGL surface.
-                        if (mPaused) {
-                            stopEglLocked();
-                        }
-                        if (!mHasSurface) {
-                            if (!mWaitingForSurface) {
-                                stopEglLocked();
-                                mWaitingForSurface = true;
-                                sGLThreadManager.notifyAll();
-                            }
-                        } else {
-                            if (!mHaveEgl) {
-                                if (sGLThreadManager.tryAcquireEglSurface(this)) {
-                                    mHaveEgl = true;
-                                    mEglHelper.start();
-                                    mRequestRender = true;
-                                    needStart = true;
-                                }
-                            }
-                        }
+    public void setTargetFrameRate(int framesPerSecond) {
+        synchronized (sGLThreadManager) {
+            mFramePacer.setTargetFrameRate(framesPerSecond);
+            wakeLocked();
+        }
+    }
 
-                        // Check if we need to wait. If not, update any state
-                        // that needs to be updated, copy any state that
-                        // needs to be copied, and use "break" to exit the
-                        // wait loop.
+    public int getTargetFrameRate() {
+        return mFramePacer.getTargetFrameRate();
+    }
 
-                        if (mDone) {
-                            return;
-                        }
+    public void setFramePacing(int pacing) {
+        synchronized (sGLThreadManager) {
+            mFramePacer.setPacingMode(pacing);
+            wakeLocked();
+        }
+    }
 
-                        if (mEventsWaiting) {
-                            eventsWaiting = true;
-                            mEventsWaiting = false;
-                            break;
-                        }
+    public int getFramePacing() {
+        return mFramePacer.getPacingMode();
+    }
 
-                        if ((!mPaused) && mHasSurface && mHaveEgl && (mWidth > 0) && (mHeight > 0)
-                                && (mRequestRender || (mRenderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY))) {
-                            changed = mSizeChanged;
-                            w = mWidth;
-                            h = mHeight;
-                            mSizeChanged = false;
-                            mRequestRender = false;
-                            if (mHasSurface && mWaitingForSurface) {
-                                changed = true;
-                                mWaitingForSurface = false;
-                                sGLThreadManager.notifyAll();
-                            }
-                            break;
-                        }
+    public void setDisplayRefreshRate(float refreshRate) {
+        mFramePacer.setDisplayRefreshRate(refreshRate);
+    }
 
-                        // By design, this is the only place where we wait().
+    /*
+     * Vsync sampling has to be started and stopped from the engine's looper thread.
+     */
+    public void startVsync() {
+        mFramePacer.startVsync();
+    }
 
-                        if (LOG_THREADS) {
-                            Log.i("GLThread", "waiting tid=" + getId());
-                        }
-                        sGLThreadManager.wait();
-                    }
-                } // end of synchronized(sGLThreadManager)
+    public void stopVsync() {
+        mFramePacer.stopVsync();
+    }
 
-				/*
-				 * Handle queued events
-				 */
-                if (eventsWaiting) {
-                    Runnable r;
-                    while ((r = getEvent()) != null) {
-                        r.run();
-                        if (isDone()) {
-                            return;
-                        }
-                    }
-                    // Go back and see if we need to wait to render.
-                    continue;
-                }
+    public long getLateFrameCount() {
+        return mFramePacer.getLateFrameCount();
+    }
 
-                if (needStart) {
-                    tellRendererSurfaceCreated = true;
-                    changed = true;
-                }
-                if (changed) {
-                    gl = (GL10) mEglHelper.createSurface(mHolder);
-                    tellRendererSurfaceChanged = true;
-                }
-                if (tellRendererSurfaceCreated) {
-                    mRenderer.onSurfaceCreated(gl, mEglHelper.mEglConfig);
-                    tellRendererSurfaceCreated = false;
-                }
-                if (tellRendererSurfaceChanged) {
-                    mRenderer.onSurfaceChanged(gl, w, h);
-                    tellRendererSurfaceChanged = false;
-                }
-                if ((w > 0) && (h > 0)) {
-					/* draw a frame here */
-                    mRenderer.onDrawFrame(gl);
-
-					/*
-					 * Once we're done with GL, we need to call swapBuffers() to instruct the system to display the
-					 * rendered frame
-					 */
-                    mEglHelper.swap();
-                    Thread.sleep(10);
-                }
-            }
-        } finally {
-			/*
-			 * clean-up everything...
-			 */
-            synchronized (sGLThreadManager) {
-                stopEglLocked();
-                mEglHelper.finish();
-            }
+    public void setPreserveEglContextOnPause(boolean preserveOnPause) {
+        synchronized (sGLThreadManager) {
+            mPreserveEglContextOnPause = preserveOnPause;
+            // Paused sessions may have to give up their surface now.
+            wake();
         }
     }
 
-    private boolean isDone() {
+    public boolean getPreserveEglContextOnPause() {
         synchronized (sGLThreadManager) {
-            return mDone;
+            return mPreserveEglContextOnPause;
         }
     }
 
-    public void setRenderMode(int renderMode) {
-        if (!((GLWallpaperService.GLEngine.RENDERMODE_WHEN_DIRTY <= renderMode) && (renderMode <= GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY))) {
-            throw new IllegalArgumentException("renderMode");
+    public void setPreservedMemoryBudget(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("bytes");
         }
         synchronized (sGLThreadManager) {
-            mRenderMode = renderMode;
-            if (renderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY) {
-                sGLThreadManager.notifyAll();
-            }
+            mPreservedMemoryBudget = bytes;
+            wake();
         }
     }
 
-    public int getRenderMode() {
+    public long getPreservedMemoryBudget() {
         synchronized (sGLThreadManager) {
-            return mRenderMode;
+            return mPreservedMemoryBudget;
         }
     }
 
-    public void requestRender() {
+    public long getLastResumeNanos() {
+        return mLastResumeNanos;
+    }
+
+    public long getDroppedFrameCount() {
+        return mFramePacer.getDroppedFrameCount();
+    }
+
+    public void queueOffscreenJob(GLWallpaperService.OffscreenJob job) {
         synchronized (sGLThreadManager) {
-            mRequestRender = true;
-            sGLThreadManager.notifyAll();
+            mOffscreenJobs.add(job);
+            wake();
         }
     }
 
+    /*
+     * Render thread only.
+     */
+    void recordOffscreenSlice(long nanos) {
+        mOffscreenSliceCount++;
+        mOffscreenNanos += nanos;
+    }
+
+    public long getOffscreenSliceCount() {
+        return mOffscreenSliceCount;
+    }
+
+    public long getOffscreenNanos() {
+        return mOffscreenNanos;
+    }
+
     public void surfaceCreated(SurfaceHolder holder) {
         mHolder = holder;
         synchronized (sGLThreadManager) {
             if (LOG_THREADS) {
-                Log.i("GLThread", "surfaceCreated tid=" + getId());
+                Log.i("GLThread", "surfaceCreated tid=" + mThread.getId());
             }
             mHasSurface = true;
-            sGLThreadManager.notifyAll();
+            mSurfaceReplaced = true;
+            requestStateLocked();
         }
     }
 
     public void surfaceDestroyed() {
         synchronized (sGLThreadManager) {
             if (LOG_THREADS) {
-                Log.i("GLThread", "surfaceDestroyed tid=" + getId());
+                Log.i("GLThread", "surfaceDestroyed tid=" + mThread.getId());
             }
             mHasSurface = false;
-            sGLThreadManager.notifyAll();
-            while (!mWaitingForSurface && isAlive() && !mDone) {
-                try {
-                    sGLThreadManager.wait();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }
+            requestStateLocked();
         }
+        awaitState(STATE_WAITING_FOR_SURFACE, SURFACE_HANDOFF_TIMEOUT_NANOS);
     }
 
     public void onPause() {
         synchronized (sGLThreadManager) {
             mPaused = true;
-            sGLThreadManager.notifyAll();
+            requestStateLocked();
         }
     }
 
     public void onResume() {
         synchronized (sGLThreadManager) {
+            if (mPaused) {
+                mResumeStartNanos = System.nanoTime();
+            }
             mPaused = false;
             mRequestRender = true;
-            sGLThreadManager.notifyAll();
+            requestStateLocked();
         }
     }
 
@@ -804,24 +3101,35 @@ class GLThread extends Thread {
             mWidth = w;
             mHeight = h;
             mSizeChanged = true;
-            sGLThreadManager.notifyAll();
+            mRequestRender = true;
+            wakeLocked();
         }
     }
 
-    public void requestExitAndWait() {
-        // don't call this from GLThread thread or it is a guaranteed
-        // deadlock!
+    /*
+     * Detaches the session from the render thread without waiting for it. The render thread lets the
+     * renderer release its GL resources and drops the EGL surface when it gets to it, and exits once
+     * its last session is detached.
+     */
+    public void requestExit() {
         synchronized (sGLThreadManager) {
-            mDone = true;
-            sGLThreadManager.notifyAll();
-        }
-        try {
-            join();
-        } catch (InterruptedException ex) {
-            Thread.currentThread().interrupt();
+            mExitRequested = true;
+            requestStateLocked();
         }
     }
 
+    /*
+     * Like requestExit(), then waits at most timeoutMillis for the render thread to detach the session.
+     *
+     * @return false on timeout.
+     */
+    public boolean requestExitAndWait(long timeoutMillis) {
+        // don't call this from GLThread thread or it is a guaranteed
+        // deadlock!
+        requestExit();
+        return awaitState(STATE_EXITED, timeoutMillis * 1000000);
+    }
+
     /**
      * Queue an "event" to be run on the GL rendering thread.
      *
@@ -829,58 +3137,35 @@ class GLThread extends Thread {
      * the runnable to be run on the GL rendering thread.
      */
     public void queueEvent(Runnable r) {
-        synchronized (this) {
-            mEventQueue.add(r);
-            synchronized (sGLThreadManager) {
-                mEventsWaiting = true;
-                sGLThreadManager.notifyAll();
+        while (!mEventQueue.offer(r)) {
+            if (Thread.currentThread() == mThread) {
+                // Nobody else is going to drain the queue for us.
+                r.run();
+                return;
             }
-        }
-    }
-
-    private Runnable getEvent() {
-        synchronized (this) {
-            if (mEventQueue.size() > 0) {
-                return mEventQueue.remove(0);
+            if (!mThread.isAlive()) {
+                return;
             }
-
+            wake();
+            Thread.yield();
         }
-        return null;
+        wake();
     }
 
-    private class GLThreadManager {
-
-        public synchronized void threadExiting(GLThread thread) {
-            if (LOG_THREADS) {
-                Log.i("GLThread", "exiting tid=" + thread.getId());
-            }
-            thread.mDone = true;
-            if (mEglOwner == thread) {
-                mEglOwner = null;
-            }
-            notifyAll();
-        }
-
-        /*
-         * Tries once to acquire the right to use an EGL surface. Does not block.
-         *
-         * @return true if the right to use an EGL surface was acquired.
-         */
-        public synchronized boolean tryAcquireEglSurface(GLThread thread) {
-            if (mEglOwner == thread || mEglOwner == null) {
-                mEglOwner = thread;
-                notifyAll();
-                return true;
-            }
-            return false;
+    /*
+     * Wakes the render thread after a state change, if it has anything to act on: a state to move to,
+     * or something to draw. This private method should only be called inside a
+     * synchronized(sGLThreadManager) block, after the new state is written.
+     */
+    private void wakeLocked() {
+        if (mState == STATE_READY || mStateRequestNanos != 0) {
+            wake();
         }
+    }
 
-        public synchronized void releaseEglSurface(GLThread thread) {
-            if (mEglOwner == thread) {
-                mEglOwner = null;
-            }
-            notifyAll();
-        }
+    private void wake() {
+        mWakeRequestCount.incrementAndGet();
+        LockSupport.unpark(mThread);
     }
 }
 
@@ -0,0 +1,86 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+/**
+ * Measures how long the GPU spends on the frames of each session, with
+ * GL_EXT_disjoint_timer_query. A frame's result is only read once the GPU has it, some frames
+ * later, so timing never makes the GLThread wait for the GPU; while every query is still waiting
+ * frames go untimed. Results the GPU reports as disjoint, e.g. across a clock change, are dropped.
+ *
+ * Needs ES 3 for the query entry points. Belongs to one context, GLThread only.
+ */
+class GpuTimer {
+    static final String EXTENSION = "GL_EXT_disjoint_timer_query";
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int QUERIES = 4;
+
+    private final boolean mSupported;
+    private final int[] mQueries = new int[QUERIES];
+    private final RenderSession[] mSessions = new RenderSession[QUERIES];
+    private final int[] mValue = new int[1];
+    // The query to begin next, the oldest of those waiting for a result is mPending before it.
+    private int mNext;
+    private int mPending;
+    private boolean mRunning;
+
+    GpuTimer(GLCapabilities capabilities) {
+        mSupported = capabilities.isAtLeast(3, 0) && capabilities.hasExtension(EXTENSION);
+        if (mSupported) {
+            GLES30.glGenQueries(QUERIES, mQueries, 0);
+        }
+    }
+
+    boolean isSupported() {
+        return mSupported;
+    }
+
+    /**
+     * Starts timing a frame of the session, unless no query is free.
+     */
+    void begin(RenderSession session) {
+        if (!mSupported || mPending == QUERIES) {
+            return;
+        }
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mNext]);
+        mSessions[mNext] = session;
+        mRunning = true;
+    }
+
+    void end() {
+        if (!mRunning) {
+            return;
+        }
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mRunning = false;
+        mNext = (mNext + 1) % QUERIES;
+        mPending++;
+    }
+
+    /**
+     * Hands the results the GPU has by now to their sessions.
+     */
+    void collect() {
+        if (mPending == 0) {
+            return;
+        }
+        // Reading the flag clears it. Whatever was in flight when it was set can't be trusted.
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mValue, 0);
+        boolean disjoint = mValue[0] != 0;
+        while (mPending > 0) {
+            int slot = (mNext - mPending + QUERIES) % QUERIES;
+            if (!disjoint) {
+                GLES30.glGetQueryObjectuiv(mQueries[slot], GLES30.GL_QUERY_RESULT_AVAILABLE, mValue, 0);
+                if (mValue[0] == 0) {
+                    return;
+                }
+                GLES30.glGetQueryObjectuiv(mQueries[slot], GLES30.GL_QUERY_RESULT, mValue, 0);
+                mSessions[slot].recordGpuTime(mValue[0] & 0xffffffffL);
+            }
+            mSessions[slot] = null;
+            mPending--;
+        }
+    }
+}
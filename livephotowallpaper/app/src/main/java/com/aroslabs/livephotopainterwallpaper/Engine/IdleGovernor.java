@@ -0,0 +1,95 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+/**
+ * Decides the GLThread render mode from what the renderer reports about its scene.
+ *
+ * While the scene animates the GLThread renders continuously.  Once a few frames in a row came
+ * out unchanged the governor drops to {@link GLWallpaperService.GLEngine#RENDERMODE_WHEN_DIRTY}
+ * and the thread sleeps until the scene is invalidated again (photo swap, touch, animation start).
+ *
+ * Accesses are guarded by the owning GLThread's manager monitor.
+ */
+class IdleGovernor {
+    // A couple of quiet frames before going idle, so a renderer that flips between animating and
+    // static on alternate frames does not make us bounce between the two modes.
+    private static final int IDLE_FRAME_THRESHOLD = 3;
+
+    private boolean mEnabled;
+    private boolean mIdle;
+    private int mQuietFrames;
+    private long mIdleSinceNanos;
+    private long mIdleNanos;
+    private long mWakeCount;
+
+    public void setEnabled(boolean enabled, long nowNanos) {
+        if (!enabled) {
+            wake(nowNanos);
+        }
+        mEnabled = enabled;
+        mQuietFrames = 0;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * @return the render mode the GLThread should use for the next frame.
+     */
+    public int getRenderMode() {
+        return mIdle ? GLWallpaperService.GLEngine.RENDERMODE_WHEN_DIRTY
+                : GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY;
+    }
+
+    /**
+     * Called after every frame.
+     *
+     * @param animating whether the renderer expects the next frame to differ from this one.
+     */
+    public void onFrameDrawn(boolean animating, long nowNanos) {
+        if (!mEnabled) {
+            return;
+        }
+        if (animating) {
+            mQuietFrames = 0;
+            wake(nowNanos);
+        } else if (!mIdle && ++mQuietFrames >= IDLE_FRAME_THRESHOLD) {
+            mIdle = true;
+            mIdleSinceNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Called whenever something outside of the renderer's own animation changed the scene.
+     */
+    public void onSceneInvalidated(long nowNanos) {
+        mQuietFrames = 0;
+        wake(nowNanos);
+    }
+
+    public boolean isIdle() {
+        return mIdle;
+    }
+
+    /**
+     * @return total time spent with rendering suspended, including the current idle stretch.
+     */
+    public long getIdleTimeNanos(long nowNanos) {
+        return mIdle ? mIdleNanos + (nowNanos - mIdleSinceNanos) : mIdleNanos;
+    }
+
+    /**
+     * @return how many times an idle stretch was ended.
+     */
+    public long getWakeCount() {
+        return mWakeCount;
+    }
+
+    private void wake(long nowNanos) {
+        if (mIdle) {
+            mIdle = false;
+            mIdleNanos += nowNanos - mIdleSinceNanos;
+            mWakeCount++;
+        }
+    }
+}
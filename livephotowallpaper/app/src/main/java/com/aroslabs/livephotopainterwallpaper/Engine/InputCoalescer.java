@@ -0,0 +1,125 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+/**
+ * Collects touch and sensor input between frames and hands it to the GLThread as one batch.
+ *
+ * Samples with the same key (type and pointer id / sensor type) are merged, the latest one wins.
+ * Ordered events such as touch down and up are never merged and act as a barrier: a move after an
+ * up does not replace a move from before it.  Across different keys, merged samples keep the
+ * position of the first sample of their key.
+ *
+ * Producers (the engine's looper thread) and the GLThread each own one of two pooled buffers
+ * that are swapped on delivery, so nothing is allocated per event.
+ */
+class InputCoalescer {
+    private static final int CAPACITY = 64;
+
+    private InputEvent[] mPending = newPool();
+    private InputEvent[] mDelivering = newPool();
+    private int mPendingCount;
+    // Merging only looks at slots after the last ordered event.
+    private int mFirstMergeableIndex;
+    private long mLastDeliveryNanos;
+
+    private long mReceivedCount;
+    private long mMergedCount;
+    private long mDroppedCount;
+    // Only written by the GLThread.
+    private volatile long mDeliveredCount;
+
+    /**
+     * Adds a sample, called from the thread that receives input.
+     *
+     * @param ordered true for events whose order matters (touch down/up), they are never merged.
+     */
+    public synchronized void add(int type, int source, int action, boolean ordered, long timeNanos,
+                                 float[] values, int valueCount) {
+        mReceivedCount++;
+        if (!ordered) {
+            for (int i = mPendingCount - 1; i >= mFirstMergeableIndex; i--) {
+                InputEvent event = mPending[i];
+                if (event.sameKey(type, source)) {
+                    event.set(type, source, action, timeNanos, values, valueCount);
+                    event.mMergedCount++;
+                    mMergedCount++;
+                    return;
+                }
+            }
+        }
+        if (mPendingCount == CAPACITY) {
+            mDroppedCount++;
+            return;
+        }
+        InputEvent event = mPending[mPendingCount++];
+        event.set(type, source, action, timeNanos, values, valueCount);
+        event.mMergedCount = 1;
+        if (ordered) {
+            mFirstMergeableIndex = mPendingCount;
+        }
+    }
+
+    public synchronized boolean hasPending() {
+        return mPendingCount > 0;
+    }
+
+    /**
+     * @return how long until the next batch may be delivered without going over one batch per
+     * frame interval.
+     */
+    public synchronized long nanosUntilNextDelivery(long nowNanos, long frameIntervalNanos) {
+        return Math.max(0, mLastDeliveryNanos + frameIntervalNanos - nowNanos);
+    }
+
+    /**
+     * Hands everything collected since the last call to the handler, GLThread only.
+     */
+    public void deliver(GLWallpaperService.InputHandler handler, long nowNanos) {
+        int count;
+        synchronized (this) {
+            count = mPendingCount;
+            if (count == 0) {
+                return;
+            }
+            InputEvent[] batch = mPending;
+            mPending = mDelivering;
+            mDelivering = batch;
+            mPendingCount = 0;
+            mFirstMergeableIndex = 0;
+            mLastDeliveryNanos = nowNanos;
+        }
+        for (int i = 0; i < count; i++) {
+            handler.onInputEvent(mDelivering[i]);
+        }
+        mDeliveredCount += count;
+    }
+
+    public synchronized long getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return events handed to the renderer, each of them may stand for several received ones.
+     */
+    public long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    public synchronized long getMergedCount() {
+        return mMergedCount;
+    }
+
+    /**
+     * @return events thrown away because a frame's worth of unmergeable input did not fit.
+     */
+    public synchronized long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private static InputEvent[] newPool() {
+        InputEvent[] pool = new InputEvent[CAPACITY];
+        for (int i = 0; i < CAPACITY; i++) {
+            pool[i] = new InputEvent();
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,87 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+/**
+ * A touch or sensor sample as delivered to a {@link GLWallpaperService.InputHandler} on the
+ * GLThread.
+ *
+ * Instances are pooled by the engine and only valid for the duration of
+ * {@link GLWallpaperService.InputHandler#onInputEvent(InputEvent)}, copy what you need to keep.
+ */
+public class InputEvent {
+    public static final int TYPE_TOUCH = 1;
+    public static final int TYPE_SENSOR = 2;
+
+    public static final int MAX_VALUES = 3;
+
+    int mType;
+    int mSource;
+    int mAction;
+    long mTimeNanos;
+    final float[] mValues = new float[MAX_VALUES];
+    int mValueCount;
+    int mMergedCount;
+
+    /**
+     * @return {@link #TYPE_TOUCH} or {@link #TYPE_SENSOR}.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return the pointer id for touches, the sensor type for sensor samples.
+     */
+    public int getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return the masked MotionEvent action for touches, 0 for sensor samples.
+     */
+    public int getAction() {
+        return mAction;
+    }
+
+    /**
+     * @return the event time in nanoseconds, in the time base of its source (uptime for
+     * touches, the sensor timestamp for sensor samples).
+     */
+    public long getTimeNanos() {
+        return mTimeNanos;
+    }
+
+    /**
+     * Touches carry x and y, sensor samples their first {@link #MAX_VALUES} values.
+     */
+    public float getValue(int index) {
+        if (index >= mValueCount) {
+            throw new IndexOutOfBoundsException("index " + index + " >= " + mValueCount);
+        }
+        return mValues[index];
+    }
+
+    public int getValueCount() {
+        return mValueCount;
+    }
+
+    /**
+     * @return how many received events this one stands for, more than 1 if newer samples
+     * replaced older ones before the frame picked them up.
+     */
+    public int getMergedCount() {
+        return mMergedCount;
+    }
+
+    boolean sameKey(int type, int source) {
+        return mType == type && mSource == source;
+    }
+
+    void set(int type, int source, int action, long timeNanos, float[] values, int valueCount) {
+        mType = type;
+        mSource = source;
+        mAction = action;
+        mTimeNanos = timeNanos;
+        mValueCount = Math.min(valueCount, MAX_VALUES);
+        System.arraycopy(values, 0, mValues, 0, mValueCount);
+    }
+}
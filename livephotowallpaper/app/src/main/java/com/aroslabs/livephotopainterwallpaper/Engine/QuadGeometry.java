@@ -0,0 +1,176 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * A textured quad kept on the GPU: positions and texture coordinates interleaved in one vertex
+ * buffer, drawn as a four vertex triangle strip. Where the context has vertex array objects the
+ * attribute setup is recorded once in one as well, so drawing it again is a bind and a draw call.
+ *
+ * The vertices are only uploaded again after they changed, e.g. with a new crop. Get one from
+ * {@link GLResourceRegistry#registerQuad} so a new context gets it back. Only use it on the GLThread.
+ */
+public class QuadGeometry implements GLResourceRegistry.Resource {
+    private static final int VERTEX_COUNT = 4;
+    // x, y, u, v
+    private static final int FLOATS_PER_VERTEX = 4;
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+    private static final int SIZE = VERTEX_COUNT * STRIDE;
+
+    private final GLResourceRegistry mRegistry;
+    private final float[] mVertices = new float[VERTEX_COUNT * FLOATS_PER_VERTEX];
+    private final FloatBuffer mStaging;
+    private final int[] mIds = new int[1];
+    private int mBuffer;
+    private int mVertexArray;
+    // The attributes the vertex array was set up for, -1 before it was.
+    private int mPositionLocation = -1;
+    private int mTextureCoordLocation = -1;
+    private boolean mBufferBound;
+    private boolean mDirty;
+    private long mUploadCount;
+
+    QuadGeometry(GLResourceRegistry registry, float[] positions, float[] textureCoords) {
+        mRegistry = registry;
+        mStaging = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        setPositions(positions);
+        setTextureCoords(textureCoords);
+    }
+
+    /**
+     * @param positions x and y of the four strip vertices. Uploaded with the next bind if they
+     *                  differ from the ones before.
+     */
+    public void setPositions(float[] positions) {
+        set(positions, 0);
+    }
+
+    /**
+     * @param textureCoords u and v of the four strip vertices.
+     */
+    public void setTextureCoords(float[] textureCoords) {
+        set(textureCoords, 2);
+    }
+
+    private void set(float[] values, int offset) {
+        for (int i = 0; i < VERTEX_COUNT; i++) {
+            for (int j = 0; j < 2; j++) {
+                int index = i * FLOATS_PER_VERTEX + offset + j;
+                float value = values[i * 2 + j];
+                if (mVertices[index] != value) {
+                    mVertices[index] = value;
+                    mDirty = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void create() {
+        GLES20.glGenBuffers(1, mIds, 0);
+        mBuffer = mIds[0];
+        mStaging.put(mVertices).position(0);
+        GLStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, SIZE, mStaging, GLES20.GL_STATIC_DRAW);
+        GLStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mDirty = false;
+        mUploadCount++;
+
+        mVertexArray = 0;
+        mPositionLocation = -1;
+        mTextureCoordLocation = -1;
+        GLCapabilities capabilities = mRegistry.getCapabilities();
+        if (capabilities != null && capabilities.hasVertexArrayObjects()) {
+            GLES30.glGenVertexArrays(1, mIds, 0);
+            mVertexArray = mIds[0];
+        }
+    }
+
+    /**
+     * Makes the quad the vertex source of the attributes, for {@link #draw()}. Pass -1 for a
+     * texture coordinate attribute the program doesn't have.
+     */
+    public void bind(int positionLocation, int textureCoordLocation) {
+        boolean recorded = false;
+        if (mVertexArray != 0) {
+            GLStateCache.bindVertexArray(mVertexArray);
+            recorded = positionLocation == mPositionLocation && textureCoordLocation == mTextureCoordLocation;
+            if (recorded && !mDirty) {
+                return;
+            }
+        }
+        // Not part of the vertex array's state, bound for the upload and the attribute pointers.
+        GLStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffer);
+        mBufferBound = true;
+        if (mDirty) {
+            mStaging.put(mVertices).position(0);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, SIZE, mStaging);
+            mDirty = false;
+            mUploadCount++;
+        }
+        if (!recorded) {
+            GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 0);
+            GLStateCache.enableVertexAttribArray(positionLocation);
+            if (textureCoordLocation >= 0) {
+                GLES20.glVertexAttribPointer(textureCoordLocation, 2, GLES20.GL_FLOAT, false, STRIDE, 8);
+                GLStateCache.enableVertexAttribArray(textureCoordLocation);
+            }
+            mPositionLocation = positionLocation;
+            mTextureCoordLocation = textureCoordLocation;
+        }
+    }
+
+    public void draw() {
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, VERTEX_COUNT);
+    }
+
+    /**
+     * Puts back the client array state, for code that draws from client memory afterwards (e.g.
+     * GPUImage filters).
+     */
+    public void unbind() {
+        if (mVertexArray != 0) {
+            GLStateCache.bindVertexArray(0);
+        } else {
+            GLStateCache.disableVertexAttribArray(mPositionLocation);
+            if (mTextureCoordLocation >= 0) {
+                GLStateCache.disableVertexAttribArray(mTextureCoordLocation);
+            }
+        }
+        if (mBufferBound) {
+            GLStateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            mBufferBound = false;
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mVertexArray != 0) {
+            mIds[0] = mVertexArray;
+            GLStateCache.deleteVertexArrays(1, mIds, 0);
+            mVertexArray = 0;
+        }
+        if (mBuffer != 0) {
+            mIds[0] = mBuffer;
+            GLStateCache.deleteBuffers(1, mIds, 0);
+            mBuffer = 0;
+        }
+    }
+
+    @Override
+    public long getRetainedBytes() {
+        return SIZE;
+    }
+
+    /**
+     * @return how often the vertices went to the GPU, once per context and once per change.
+     */
+    public long getUploadCount() {
+        return mUploadCount;
+    }
+}
@@ -0,0 +1,224 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.graphics.RectF;
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Where a photo quad ends up on screen: the crop of the photo to show, the rotation the photo was
+ * taken at (EXIF, a multiple of 90 degrees) and the rotation the user gave it. The matrix and
+ * positions are only worked out again after one of those changed, and the matrix only goes to its
+ * uniform again after it changed or the program did.
+ *
+ * The math is done here rather than with android.opengl.Matrix, so it runs, and is tested, on the
+ * host too. It gives the same result as the renderer's orthoM, rotateM and translateM calls did.
+ * Only use it on the GLThread.
+ */
+public class QuadTransform {
+    private final float[] mMatrix = new float[16];
+    private final float[] mProjection = new float[16];
+    private final float[] mRotation = new float[16];
+    private final float[] mProduct = new float[16];
+    private final float[] mPositions = new float[8];
+
+    private float mLeft;
+    private float mTop;
+    private float mRight = 1f;
+    private float mBottom = 1f;
+    private int mPreRotationDegrees;
+    private float mRotationDegrees;
+
+    private boolean mMatrixDirty = true;
+    private boolean mPositionsDirty = true;
+    private boolean mPositionsWritten;
+    private boolean mUploadDirty = true;
+    private int mUploadedLocation = -1;
+    private long mComputeCount;
+    private long mUploadCount;
+
+    /**
+     * @param crop the part of the photo to show, in texture coordinates. Top below bottom, as a
+     *             crop from {@link Bitmaps#getDefaultFillCrop} is.
+     */
+    public void setCrop(RectF crop) {
+        setCrop(crop.left, crop.top, crop.right, crop.bottom);
+    }
+
+    public void setCrop(float left, float top, float right, float bottom) {
+        if (left == mLeft && top == mTop && right == mRight && bottom == mBottom) {
+            return;
+        }
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+        mMatrixDirty = true;
+        mPositionsDirty = true;
+    }
+
+    /**
+     * @param degrees the EXIF rotation of the photo: 0, 90, 180 or 270.
+     */
+    public void setPreRotation(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("pre-rotation " + degrees);
+        }
+        if (degrees != mPreRotationDegrees) {
+            mPreRotationDegrees = degrees;
+            mMatrixDirty = true;
+        }
+    }
+
+    /**
+     * @param degrees the rotation about the centre of the quad, counter-clockwise.
+     */
+    public void setRotation(float degrees) {
+        if (degrees != mRotationDegrees) {
+            mRotationDegrees = degrees;
+            mMatrixDirty = true;
+        }
+    }
+
+    /**
+     * @return the crop projection, then the pre-rotation, applied to the user rotated quad. Column
+     * major, like GL takes it. Don't modify.
+     */
+    public float[] getMatrix() {
+        if (mMatrixDirty) {
+            computeMatrix();
+            mMatrixDirty = false;
+            mUploadDirty = true;
+            mComputeCount++;
+        }
+        return mMatrix;
+    }
+
+    /**
+     * Sets the uniform of the current program to {@link #getMatrix()}, unless it already is.
+     * Another program, or anything else setting the uniform, needs {@link #invalidateUpload()}
+     * first.
+     */
+    public void upload(int location) {
+        float[] matrix = getMatrix();
+        if (!mUploadDirty && location == mUploadedLocation) {
+            return;
+        }
+        GLES20.glUniformMatrix4fv(location, 1, false, matrix, 0);
+        mUploadedLocation = location;
+        mUploadDirty = false;
+        mUploadCount++;
+    }
+
+    public void invalidateUpload() {
+        mUploadDirty = true;
+    }
+
+    /**
+     * For drawing without a matrix uniform, e.g. with a GPUImage filter: the crop projection
+     * applied to the quad on the CPU. As the renderer always did, the vertices go in with w = 0,
+     * so the projection scales them by the size of the crop but its offset does not move them.
+     * The rotations don't apply.
+     *
+     * @param quad      x, y, z, w of the four vertices.
+     * @param positions receives x and y of the four vertices, only if they changed since the
+     *                  last call.
+     * @return true if positions were written.
+     */
+    public boolean updatePositions(float[] quad, FloatBuffer positions) {
+        if (!mPositionsDirty && mPositionsWritten) {
+            return false;
+        }
+        float scaleX = 2f / (mRight - mLeft);
+        float scaleY = 2f / (mTop - mBottom);
+        for (int i = 0; i < 4; i++) {
+            mPositions[i * 2] = scaleX * quad[i * 4];
+            mPositions[i * 2 + 1] = scaleY * quad[i * 4 + 1];
+        }
+        positions.put(mPositions).position(0);
+        mPositionsDirty = false;
+        mPositionsWritten = true;
+        mComputeCount++;
+        return true;
+    }
+
+    /**
+     * @return how often the matrix or the positions were worked out.
+     */
+    public long getComputeCount() {
+        return mComputeCount;
+    }
+
+    /**
+     * @return how often the matrix went to a uniform.
+     */
+    public long getUploadCount() {
+        return mUploadCount;
+    }
+
+    private void computeMatrix() {
+        // A photo on its side is cropped on the other axes.
+        if (mPreRotationDegrees == 90 || mPreRotationDegrees == 270) {
+            ortho(mProjection, mTop, mBottom, mRight, mLeft);
+        } else {
+            ortho(mProjection, mLeft, mRight, mBottom, mTop);
+        }
+        if (mPreRotationDegrees != 0) {
+            rotation(mRotation, -mPreRotationDegrees, 0f);
+            multiply(mProduct, mRotation, mProjection);
+            System.arraycopy(mProduct, 0, mProjection, 0, 16);
+        }
+        rotation(mRotation, mRotationDegrees, 0.5f);
+        multiply(mMatrix, mProjection, mRotation);
+    }
+
+    /*
+     * orthoM with near 0 and far 1.
+     */
+    private static void ortho(float[] m, float left, float right, float bottom, float top) {
+        for (int i = 0; i < 16; i++) {
+            m[i] = 0f;
+        }
+        float width = 1f / (right - left);
+        float height = 1f / (top - bottom);
+        m[0] = 2f * width;
+        m[5] = 2f * height;
+        m[10] = -2f;
+        m[12] = -(right + left) * width;
+        m[13] = -(top + bottom) * height;
+        m[14] = -1f;
+        m[15] = 1f;
+    }
+
+    /*
+     * A rotation about the z axis through (center, center).
+     */
+    private static void rotation(float[] m, float degrees, float center) {
+        float radians = degrees * (float) (Math.PI / 180.0f);
+        float sin = (float) Math.sin(radians);
+        float cos = (float) Math.cos(radians);
+        for (int i = 0; i < 16; i++) {
+            m[i] = 0f;
+        }
+        m[0] = cos;
+        m[1] = sin;
+        m[4] = -sin;
+        m[5] = cos;
+        m[10] = 1f;
+        m[12] = center - center * cos + center * sin;
+        m[13] = center - center * sin - center * cos;
+        m[15] = 1f;
+    }
+
+    private static void multiply(float[] result, float[] lhs, float[] rhs) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[k * 4 + row] * rhs[column * 4 + k];
+                }
+                result[column * 4 + row] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.os.Process;
+
+/**
+ * How the render thread is scheduled: its Android thread priority while the engine is visible and
+ * while it is not, and which kind of core frames should run on. Set per engine with
+ * {@link GLWallpaperService.GLEngine#setRenderThreadPolicy}. Every engine of the process shares the
+ * thread, the most favourable priority any of them asks for wins.
+ */
+public class RenderThreadPolicy {
+    public static final int CORES_ANY = 0;
+    public static final int CORES_BIG = 1;
+    public static final int CORES_LITTLE = 2;
+
+    /**
+     * Display priority while visible, background priority while hidden, any core.
+     */
+    public static final RenderThreadPolicy DEFAULT = new RenderThreadPolicy(Process.THREAD_PRIORITY_DISPLAY,
+            Process.THREAD_PRIORITY_BACKGROUND, CORES_ANY);
+
+    private final int mVisiblePriority;
+    private final int mHiddenPriority;
+    private final int mCorePreference;
+
+    /**
+     * @param visiblePriority e.g. {@link Process#THREAD_PRIORITY_DISPLAY} or
+     *                        {@link Process#THREAD_PRIORITY_URGENT_DISPLAY}.
+     * @param hiddenPriority  what the thread is demoted to while the engine is not visible, only
+     *                        events, input and offscreen jobs run then.
+     * @param corePreference  {@link #CORES_ANY}, {@link #CORES_BIG} or {@link #CORES_LITTLE}.
+     */
+    public RenderThreadPolicy(int visiblePriority, int hiddenPriority, int corePreference) {
+        if (!isValidPriority(visiblePriority)) {
+            throw new IllegalArgumentException("visiblePriority");
+        }
+        if (!isValidPriority(hiddenPriority)) {
+            throw new IllegalArgumentException("hiddenPriority");
+        }
+        if (corePreference < CORES_ANY || corePreference > CORES_LITTLE) {
+            throw new IllegalArgumentException("corePreference");
+        }
+        mVisiblePriority = visiblePriority;
+        mHiddenPriority = hiddenPriority;
+        mCorePreference = corePreference;
+    }
+
+    private static boolean isValidPriority(int priority) {
+        return priority >= Process.THREAD_PRIORITY_URGENT_AUDIO && priority <= Process.THREAD_PRIORITY_LOWEST;
+    }
+
+    public int getVisiblePriority() {
+        return mVisiblePriority;
+    }
+
+    public int getHiddenPriority() {
+        return mHiddenPriority;
+    }
+
+    public int getPriority(boolean visible) {
+        return visible ? mVisiblePriority : mHiddenPriority;
+    }
+
+    /**
+     * Java has no way to pin a thread to cores, the preference is not enforced. The render thread
+     * counts how many frames ended up on the preferred kind of core instead, see
+     * {@link GLWallpaperService.GLEngine#getPreferredCoreFrameFraction()}.
+     */
+    public int getCorePreference() {
+        return mCorePreference;
+    }
+}
@@ -0,0 +1,135 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+/**
+ * Picks the resolution a renderer draws its expensive passes at, from how long frames take against
+ * the frame interval of the pacer.
+ *
+ * The GLThread records the cost of every frame of a
+ * {@link GLWallpaperService.ResolutionScaleListener}: its CPU draw time plus, where the context has
+ * timer queries, its GPU time. The swap is left out, it waits for the display as much as for work.
+ * Once a window of frames averages above {@link #DOWNSCALE_LOAD} of the budget the scale drops,
+ * straight to where the frames should take
+ * {@link #TARGET_LOAD} of it; cost is taken to go with the pixel count, the square of the scale.
+ * It only goes up again, one step at a time, while the next step is expected to stay at
+ * {@link #TARGET_LOAD} or below, so it does not flip between two steps. Scales are multiples of
+ * {@link #SCALE_STEP}, a framebuffer is only reallocated for a real change.
+ *
+ * Recording is done by the GLThread only, other threads read a best effort view.
+ */
+public class ResolutionScaler {
+    public static final float DEFAULT_MIN_SCALE = 0.5f;
+    public static final float DEFAULT_MAX_SCALE = 1f;
+    public static final float SCALE_STEP = 0.125f;
+
+    static final float DOWNSCALE_LOAD = 0.9f;
+    static final float TARGET_LOAD = 0.75f;
+    static final int WINDOW_FRAMES = 16;
+
+    private volatile float mMinScale = DEFAULT_MIN_SCALE;
+    private volatile float mMaxScale = DEFAULT_MAX_SCALE;
+    private volatile float mScale = DEFAULT_MAX_SCALE;
+    private volatile long mScaleChangeCount;
+    private volatile long mMeanFrameNanos;
+
+    // Only touched by the GLThread.
+    private final long[] mFrameNanos = new long[WINDOW_FRAMES];
+    private int mFrames;
+    private long mWindowNanos;
+
+    /**
+     * Limits the scale to within (0, 1]. Takes effect with the next frame.
+     */
+    public void setScaleRange(float minScale, float maxScale) {
+        if (minScale <= 0 || minScale > maxScale || maxScale > 1) {
+            throw new IllegalArgumentException("scale range " + minScale + ".." + maxScale);
+        }
+        mMinScale = minScale;
+        mMaxScale = maxScale;
+    }
+
+    public float getMinScale() {
+        return mMinScale;
+    }
+
+    public float getMaxScale() {
+        return mMaxScale;
+    }
+
+    /**
+     * @return the share of the window width and height to draw at.
+     */
+    public float getScale() {
+        return mScale;
+    }
+
+    /**
+     * @return a window dimension at the current scale, at least one pixel.
+     */
+    public int scale(int size) {
+        return Math.max(1, Math.round(size * mScale));
+    }
+
+    /**
+     * @return how often the scale changed.
+     */
+    public long getScaleChangeCount() {
+        return mScaleChangeCount;
+    }
+
+    /**
+     * @return the mean frame time of the last full window of frames.
+     */
+    public long getMeanFrameNanos() {
+        return mMeanFrameNanos;
+    }
+
+    /**
+     * Adds one frame, GLThread only.
+     *
+     * @param frameNanos  how long the frame took to draw, on the CPU and the GPU.
+     * @param budgetNanos how long it may take, the frame interval.
+     */
+    void recordFrame(long frameNanos, long budgetNanos) {
+        float scale = mScale;
+        float clamped = Math.max(mMinScale, Math.min(mMaxScale, scale));
+        if (clamped != scale) {
+            setScale(clamped);
+            return;
+        }
+
+        int slot = mFrames % WINDOW_FRAMES;
+        if (mFrames >= WINDOW_FRAMES) {
+            mWindowNanos -= mFrameNanos[slot];
+        }
+        mFrameNanos[slot] = frameNanos;
+        mWindowNanos += frameNanos;
+        mFrames++;
+        if (mFrames < WINDOW_FRAMES) {
+            return;
+        }
+        long mean = mWindowNanos / WINDOW_FRAMES;
+        mMeanFrameNanos = mean;
+
+        if (mean > budgetNanos * DOWNSCALE_LOAD && scale > mMinScale) {
+            float target = scale * (float) Math.sqrt(budgetNanos * TARGET_LOAD / mean);
+            float down = Math.min(scale - SCALE_STEP, (float) Math.floor(target / SCALE_STEP) * SCALE_STEP);
+            setScale(Math.max(mMinScale, down));
+        } else if (scale < mMaxScale) {
+            float up = Math.min(mMaxScale, scale + SCALE_STEP);
+            float ratio = up / scale;
+            if (mean * ratio * ratio <= budgetNanos * TARGET_LOAD) {
+                setScale(up);
+            }
+        }
+    }
+
+    /*
+     * Starts a new window, so the next decision only sees frames drawn at the new scale.
+     */
+    private void setScale(float scale) {
+        mScale = scale;
+        mScaleChangeCount++;
+        mFrames = 0;
+        mWindowNanos = 0;
+    }
+}
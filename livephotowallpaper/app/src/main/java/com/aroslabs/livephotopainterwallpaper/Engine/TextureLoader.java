@@ -0,0 +1,452 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLSurface;
+
+/**
+ * Decodes and uploads textures on a thread of its own, in a second context that shares objects with
+ * the render thread's, so a full screen photo never holds up a frame.
+ *
+ * The GLThread makes one per context and hands it to renderers through
+ * {@link GLWallpaperService.TextureLoaderListener}; the thread and its context only start with the
+ * first load. Every upload is fenced, {@link Upload#isReady()} polls the fence without waiting and
+ * the render thread switches to the new texture once the GPU has all of it. The loader invalidates
+ * the scene when an upload is done or failed, so the render thread needn't draw to find out.
+ */
+public class TextureLoader {
+    private static final String TAG = "TextureLoader";
+    private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;  // missing in EGL10
+
+    /**
+     * Where the pixels of an upload come from.
+     */
+    public interface Source {
+        /**
+         * Called on the loader thread, without a context current, so it can take its time.
+         *
+         * @return the pixels to upload, the loader recycles them. Null to give up.
+         */
+        Bitmap load() throws IOException;
+    }
+
+    /**
+     * One texture on its way to the GPU. Poll it from the GLThread.
+     */
+    public static class Upload {
+        private static final int STATE_QUEUED = 0;
+        private static final int STATE_UPLOADED = 1;
+        private static final int STATE_READY = 2;
+        private static final int STATE_FAILED = 3;
+        private static final int STATE_CANCELLED = 4;
+
+        private final TextureLoader mLoader;
+        private final Source mSource;
+        private final GLWallpaperService.SceneInvalidator mInvalidator;
+        // All of the following are protected by the loader's monitor.
+        private int mState = STATE_QUEUED;
+        private int mTextureId;
+        private long mSync;
+        private Bitmap mPixels;
+        private int mWidth;
+        private int mHeight;
+        private Bitmap.Config mConfig;
+        private long mUploadedBytes;
+
+        Upload(TextureLoader loader, Source source, GLWallpaperService.SceneInvalidator invalidator) {
+            mLoader = loader;
+            mSource = source;
+            mInvalidator = invalidator;
+        }
+
+        /**
+         * Checks the fence of a finished upload, never waits for it. Call on the GLThread.
+         *
+         * @return true once the texture can be drawn with, see
+         * {@link GLResourceRegistry.Texture#adopt}.
+         */
+        public boolean isReady() {
+            synchronized (mLoader) {
+                if (mState == STATE_UPLOADED) {
+                    if (mSync != 0) {
+                        if (GLES30.glClientWaitSync(mSync, 0, 0) == GLES30.GL_TIMEOUT_EXPIRED) {
+                            return false;
+                        }
+                        GLES30.glDeleteSync(mSync);
+                        mSync = 0;
+                    }
+                    mState = STATE_READY;
+                }
+                return mState == STATE_READY;
+            }
+        }
+
+        /**
+         * @return true once the pixels went to the GPU, {@link #isReady()} follows within a few
+         * frames.
+         */
+        public boolean isUploaded() {
+            synchronized (mLoader) {
+                return mState == STATE_UPLOADED || mState == STATE_READY;
+            }
+        }
+
+        /**
+         * @return true if the pixels could not be loaded, or the context went away first.
+         */
+        public boolean isFailed() {
+            synchronized (mLoader) {
+                return mState == STATE_FAILED;
+            }
+        }
+
+        /**
+         * Drops the upload and whatever it made so far. Call on the GLThread.
+         */
+        public void cancel() {
+            synchronized (mLoader) {
+                if (mState == STATE_UPLOADED || mState == STATE_READY) {
+                    if (mSync != 0) {
+                        GLES30.glDeleteSync(mSync);
+                    }
+                    deleteTexture();
+                    release();
+                }
+                mState = STATE_CANCELLED;
+                mLoader.mOutstanding.remove(this);
+            }
+        }
+
+        int takeTextureId() {
+            synchronized (mLoader) {
+                int textureId = mTextureId;
+                mTextureId = 0;
+                return textureId;
+            }
+        }
+
+        Bitmap takePixels() {
+            synchronized (mLoader) {
+                Bitmap pixels = mPixels;
+                mPixels = null;
+                mLoader.mOutstanding.remove(this);
+                return pixels;
+            }
+        }
+
+        int getWidth() {
+            return mWidth;
+        }
+
+        int getHeight() {
+            return mHeight;
+        }
+
+        Bitmap.Config getConfig() {
+            return mConfig;
+        }
+
+        long getUploadedBytes() {
+            return mUploadedBytes;
+        }
+
+        /*
+         * Deletes the texture in whichever context of the share group is current.
+         */
+        private void deleteTexture() {
+            if (mTextureId != 0) {
+                GLES20.glDeleteTextures(1, new int[] {mTextureId}, 0);
+                mTextureId = 0;
+            }
+        }
+
+        /*
+         * Forgets the GL objects without deleting them, they are gone with the share group.
+         */
+        private void release() {
+            mTextureId = 0;
+            mSync = 0;
+            if (mPixels != null) {
+                mPixels.recycle();
+                mPixels = null;
+            }
+        }
+    }
+
+    private final EglHelper mEglHelper;
+    private final GLCapabilities mCapabilities;
+    private EGLContext mContext;
+    private EGLSurface mSurface;
+    private boolean mUnavailable;
+    private Thread mThread;
+
+    // Protected by this monitor.
+    private final ArrayDeque<Upload> mQueue = new ArrayDeque<Upload>();
+    private final ArrayList<Upload> mOutstanding = new ArrayList<Upload>();
+    private boolean mShutdown;
+    // The loader thread has its context current and is using it.
+    private boolean mUploading;
+
+    private volatile long mUploadCount;
+    private volatile long mLastUploadNanos;
+
+    TextureLoader(EglHelper eglHelper, GLCapabilities capabilities) {
+        mEglHelper = eglHelper;
+        mCapabilities = capabilities;
+    }
+
+    /**
+     * Queues the pixels for upload. Call on the GLThread.
+     *
+     * @param invalidator told from the loader thread once the upload is done or failed, may be
+     *                    null.
+     * @return the upload to poll, or null if no context can share objects with the render thread's,
+     * upload on the GLThread then.
+     */
+    public Upload load(Source source, GLWallpaperService.SceneInvalidator invalidator) {
+        if (mContext == null && !startContext()) {
+            return null;
+        }
+        synchronized (this) {
+            if (mShutdown) {
+                return null;
+            }
+            Upload upload = new Upload(this, source, invalidator);
+            mQueue.add(upload);
+            mOutstanding.add(upload);
+            notifyAll();
+            return upload;
+        }
+    }
+
+    /**
+     * @return how many textures the loader thread has uploaded.
+     */
+    public long getUploadCount() {
+        return mUploadCount;
+    }
+
+    /**
+     * @return how long the last upload kept the loader thread busy, without decoding.
+     */
+    public long getLastUploadNanos() {
+        return mLastUploadNanos;
+    }
+
+    /*
+     * Creates the loader's context in the render context's share group, and a 1x1 pbuffer to make it
+     * current with unless it needs no surface at all.
+     */
+    private boolean startContext() {
+        if (mUnavailable) {
+            return false;
+        }
+        EGL10 egl = mEglHelper.mEgl;
+        int[] attribs = {
+                EGL_CONTEXT_CLIENT_VERSION, mCapabilities.getMajorVersion(),
+                EGL10.EGL_NONE
+        };
+        EGLContext context = egl.eglCreateContext(mEglHelper.mEglDisplay, mEglHelper.mEglConfig,
+                mEglHelper.getContext(), attribs);
+        if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+            Log.w(TAG, "no shared context, eglError " + egl.eglGetError());
+            mUnavailable = true;
+            return false;
+        }
+        EGLSurface surface = EGL10.EGL_NO_SURFACE;
+        if (!mEglHelper.isSurfacelessSupported()) {
+            surface = mEglHelper.createPbufferSurface(1, 1);
+            if (surface == null) {
+                egl.eglDestroyContext(mEglHelper.mEglDisplay, context);
+                mUnavailable = true;
+                return false;
+            }
+        }
+        mContext = context;
+        mSurface = surface;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runUploads();
+            }
+        }, TAG);
+        mThread.start();
+        return true;
+    }
+
+    private void runUploads() {
+        while (true) {
+            Upload upload;
+            synchronized (this) {
+                while (!mShutdown && mQueue.isEmpty()) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mShutdown) {
+                    return;
+                }
+                upload = mQueue.poll();
+            }
+
+            try {
+                runUpload(upload);
+            } catch (Throwable t) {
+                // Out of memory decoding, or a broken source. Only this upload fails, the loader
+                // carries on with the next one.
+                Log.w(TAG, "cannot load texture", t);
+                fail(upload);
+            }
+            boolean cancelled;
+            synchronized (this) {
+                cancelled = upload.mState == Upload.STATE_CANCELLED;
+            }
+            if (upload.mInvalidator != null && !cancelled) {
+                upload.mInvalidator.invalidateScene();
+            }
+        }
+    }
+
+    private void runUpload(Upload upload) throws IOException {
+        EGL10 egl = mEglHelper.mEgl;
+        Bitmap bitmap = upload.mSource.load();
+
+        synchronized (this) {
+            if (bitmap == null || mShutdown || upload.mState == Upload.STATE_CANCELLED) {
+                if (upload.mState == Upload.STATE_QUEUED) {
+                    upload.mState = Upload.STATE_FAILED;
+                }
+                mOutstanding.remove(upload);
+                if (bitmap != null) {
+                    bitmap.recycle();
+                }
+                return;
+            }
+            mUploading = true;
+        }
+
+        long startNanos = System.nanoTime();
+        boolean current = egl.eglMakeCurrent(mEglHelper.mEglDisplay, mSurface, mSurface, mContext);
+        int[] textureId = new int[1];
+        long sync = 0;
+        if (current) {
+            GLES20.glGenTextures(1, textureId, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId[0]);
+            GLResourceRegistry.Texture.texImage(bitmap, true, mCapabilities);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+            if (mCapabilities.isAtLeast(3, 0)) {
+                // Shared with the render context, which polls it. Flushed so it gets signalled
+                // without this context doing anything else.
+                sync = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+                GLES20.glFlush();
+            } else {
+                // No fences in ES 2, this thread waits instead.
+                GLES20.glFinish();
+            }
+        }
+        Bitmap pixels = bitmap.hasAlpha() || bitmap.getConfig() == Bitmap.Config.RGB_565
+                ? bitmap : GLResourceRegistry.Texture.retainedCopy(bitmap);
+
+        synchronized (this) {
+            upload.mTextureId = textureId[0];
+            upload.mSync = sync;
+            upload.mPixels = pixels;
+            upload.mWidth = bitmap.getWidth();
+            upload.mHeight = bitmap.getHeight();
+            upload.mConfig = bitmap.getConfig();
+            upload.mUploadedBytes = bitmap.getByteCount();
+            if (!current || upload.mState == Upload.STATE_CANCELLED) {
+                if (current) {
+                    if (sync != 0) {
+                        GLES30.glDeleteSync(sync);
+                    }
+                    upload.deleteTexture();
+                }
+                upload.release();
+                if (upload.mState == Upload.STATE_QUEUED) {
+                    upload.mState = Upload.STATE_FAILED;
+                }
+                mOutstanding.remove(upload);
+            } else {
+                upload.mState = Upload.STATE_UPLOADED;
+            }
+            if (current) {
+                egl.eglMakeCurrent(mEglHelper.mEglDisplay, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE,
+                        EGL10.EGL_NO_CONTEXT);
+            }
+            mUploading = false;
+            notifyAll();
+        }
+        if (pixels != bitmap) {
+            bitmap.recycle();
+        }
+        if (current) {
+            mLastUploadNanos = System.nanoTime() - startNanos;
+            mUploadCount++;
+        }
+    }
+
+    /*
+     * Fails an upload that threw, letting go of the context if it had it.
+     */
+    private synchronized void fail(Upload upload) {
+        if (mUploading) {
+            mEglHelper.mEgl.eglMakeCurrent(mEglHelper.mEglDisplay, EGL10.EGL_NO_SURFACE,
+                    EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+            mUploading = false;
+            notifyAll();
+        }
+        if (upload.mState == Upload.STATE_QUEUED) {
+            upload.mState = Upload.STATE_FAILED;
+            mOutstanding.remove(upload);
+        }
+    }
+
+    /*
+     * Stops the loader thread and destroys its context, before the render context goes. Waits for
+     * an upload in progress, never for a decode. Uploads not taken yet fail, what they made is gone
+     * with the share group. Called on the GLThread.
+     */
+    void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+            notifyAll();
+            while (mUploading) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (Upload upload : mOutstanding) {
+                upload.release();
+                upload.mState = Upload.STATE_FAILED;
+            }
+            mOutstanding.clear();
+            mQueue.clear();
+        }
+        if (mContext != null) {
+            EGL10 egl = mEglHelper.mEgl;
+            if (mSurface != EGL10.EGL_NO_SURFACE) {
+                egl.eglDestroySurface(mEglHelper.mEglDisplay, mSurface);
+            }
+            egl.eglDestroyContext(mEglHelper.mEglDisplay, mContext);
+            mContext = null;
+            mSurface = null;
+        }
+    }
+}
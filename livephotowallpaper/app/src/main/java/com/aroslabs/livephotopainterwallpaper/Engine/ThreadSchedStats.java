@@ -0,0 +1,195 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.os.Process;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads from the kernel how long the calling thread has been running on a CPU and how long it has
+ * been waiting on a run queue for one, and on which CPU it last ran. Wait time that grows during a
+ * frame means the frame was preempted, e.g. by photo decoding on the same cores.
+ *
+ * The files are opened once and read again into one buffer, a sample allocates nothing. Kernels
+ * built without schedstats have no /proc/.../schedstat, every sample fails then.
+ */
+class ThreadSchedStats {
+    private static final int MAX_CPUS = 64;
+
+    // Per CPU: faster than the slowest cluster. Null until first asked.
+    private static boolean[] sBigCores;
+    private static boolean sHeterogeneous;
+
+    private final byte[] mBuffer = new byte[512];
+    private RandomAccessFile mSchedStat;
+    private RandomAccessFile mStat;
+    private long mRunNanos;
+    private long mRunQueueNanos;
+
+    /**
+     * Opens the files of the calling thread, the only thread to sample from afterwards.
+     *
+     * @return false if the kernel does not keep schedstats.
+     */
+    boolean open() {
+        String task = "/proc/self/task/" + Process.myTid();
+        try {
+            mSchedStat = new RandomAccessFile(task + "/schedstat", "r");
+            mStat = new RandomAccessFile(task + "/stat", "r");
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    void close() {
+        mSchedStat = closeQuietly(mSchedStat);
+        mStat = closeQuietly(mStat);
+    }
+
+    private static RandomAccessFile closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the run and run queue times so far, see {@link #getRunNanos()} and
+     * {@link #getRunQueueNanos()}.
+     *
+     * @return false if they could not be read.
+     */
+    boolean sample() {
+        int length = read(mSchedStat);
+        if (length <= 0) {
+            return false;
+        }
+        // "<run ns> <run queue ns> <timeslices>"
+        int end = skipNumber(0, length);
+        mRunNanos = parseNumber(0, end);
+        int start = end + 1;
+        mRunQueueNanos = parseNumber(start, skipNumber(start, length));
+        return true;
+    }
+
+    long getRunNanos() {
+        return mRunNanos;
+    }
+
+    long getRunQueueNanos() {
+        return mRunQueueNanos;
+    }
+
+    /**
+     * @return the CPU the thread last ran on, -1 if unknown.
+     */
+    int readCpu() {
+        int length = read(mStat);
+        // The name in parentheses may contain spaces, fields are counted after it. The CPU is field
+        // 39, field 3 is the first after the name.
+        int position = -1;
+        for (int i = length - 1; i >= 0; i--) {
+            if (mBuffer[i] == ')') {
+                position = i + 2;
+                break;
+            }
+        }
+        if (position < 0) {
+            return -1;
+        }
+        for (int field = 3; field < 39 && position < length; position++) {
+            if (mBuffer[position] == ' ') {
+                field++;
+            }
+        }
+        if (position >= length) {
+            return -1;
+        }
+        return (int) parseNumber(position, skipNumber(position, length));
+    }
+
+    private int read(RandomAccessFile file) {
+        if (file == null) {
+            return -1;
+        }
+        try {
+            file.seek(0);
+            int length = 0;
+            int count;
+            while (length < mBuffer.length && (count = file.read(mBuffer, length, mBuffer.length - length)) > 0) {
+                length += count;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private int skipNumber(int position, int length) {
+        while (position < length && mBuffer[position] >= '0' && mBuffer[position] <= '9') {
+            position++;
+        }
+        return position;
+    }
+
+    private long parseNumber(int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            value = value * 10 + (mBuffer[i] - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return true if the CPU is of the kind asked for. On a device with only one kind of core
+     * every CPU is, and so is an unknown one.
+     */
+    static synchronized boolean isPreferredCore(int cpu, int corePreference) {
+        if (sBigCores == null) {
+            readTopology();
+        }
+        if (corePreference == RenderThreadPolicy.CORES_ANY || !sHeterogeneous || cpu < 0
+                || cpu >= sBigCores.length) {
+            return true;
+        }
+        return sBigCores[cpu] == (corePreference == RenderThreadPolicy.CORES_BIG);
+    }
+
+    private static void readTopology() {
+        long[] maxFrequencies = new long[MAX_CPUS];
+        int cpus = 0;
+        long highest = 0;
+        long lowest = Long.MAX_VALUE;
+        byte[] buffer = new byte[32];
+        for (int cpu = 0; cpu < MAX_CPUS; cpu++) {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile("/sys/devices/system/cpu/cpu" + cpu + "/cpufreq/cpuinfo_max_freq", "r");
+                int length = file.read(buffer);
+                long frequency = 0;
+                for (int i = 0; i < length && buffer[i] >= '0' && buffer[i] <= '9'; i++) {
+                    frequency = frequency * 10 + (buffer[i] - '0');
+                }
+                maxFrequencies[cpu] = frequency;
+                highest = Math.max(highest, frequency);
+                lowest = Math.min(lowest, frequency);
+                cpus = cpu + 1;
+            } catch (IOException e) {
+                // Not there, or offline and without cpufreq right now.
+            } finally {
+                closeQuietly(file);
+            }
+        }
+        sBigCores = new boolean[cpus];
+        for (int i = 0; i < cpus; i++) {
+            sBigCores[i] = maxFrequencies[i] > lowest;
+        }
+        sHeterogeneous = cpus > 0 && highest != lowest;
+    }
+}
@@ -3,17 +3,25 @@ package com.aroslabs.livephotopainterwallpaper;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.net.Uri;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
 import android.opengl.Matrix;
 import android.util.Log;
-import android.view.MotionEvent;
 
 import com.aroslabs.livephotopainterwallpaper.Engine.Bitmaps;
+import com.aroslabs.livephotopainterwallpaper.Engine.FrameBuffer;
+import com.aroslabs.livephotopainterwallpaper.Engine.GLCapabilities;
+import com.aroslabs.livephotopainterwallpaper.Engine.GLResourceRegistry;
+import com.aroslabs.livephotopainterwallpaper.Engine.GLStateCache;
 import com.aroslabs.livephotopainterwallpaper.Engine.GLUtil;
 import com.aroslabs.livephotopainterwallpaper.Engine.GLWallpaperService;
+import com.aroslabs.livephotopainterwallpaper.Engine.InputEvent;
+import com.aroslabs.livephotopainterwallpaper.Engine.QuadGeometry;
+import com.aroslabs.livephotopainterwallpaper.Engine.QuadTransform;
+import com.aroslabs.livephotopainterwallpaper.Engine.ResolutionScaler;
+import com.aroslabs.livephotopainterwallpaper.Engine.TextureLoader;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,6 +37,7 @@ import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
 import jp.co.cyberagent.android.gpuimage.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageFilterGroup;
 import jp.co.cyberagent.android.gpuimage.GPUImageKuwaharaFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageSketchFilter;
 import jp.co.cyberagent.android.gpuimage.GPUImageSmoothToonFilter;
@@ -37,7 +46,12 @@ import jp.co.cyberagent.android.gpuimage.GPUImageToonFilter;
 /**
  * Created by Ryan on 1/22/2017.
  */
-public class LivePhotoPainterRenderer implements GLWallpaperService.Renderer{
+public class LivePhotoPainterRenderer implements GLWallpaperService.SceneRenderer,
+        GLWallpaperService.InputHandler, GLWallpaperService.MemoryReporter,
+        GLWallpaperService.GLResourceOwner, GLWallpaperService.SurfaceFormatProvider,
+        GLWallpaperService.CapabilityListener, GLWallpaperService.DamageReporter,
+        GLWallpaperService.TextureLoaderListener, GLWallpaperService.ResolutionScaleListener,
+        GLWallpaperService.FramePreparer {
 
     private static String TAG = "LivePhotoPainterRenderer";
 
@@ -45,7 +59,8 @@ public class LivePhotoPainterRenderer implements GLWallpaperService.Renderer{
     private int viewWidth;
     private int viewHeight;
     private float viewAspectRatio;
-    private RectF crop;
+    //Whole photo until one is loaded and cropped to the view
+    private RectF crop = new RectF(0, 0, 1, 1);
 
     public static final String vertexShader =
             "uniform mat4 uMVPMatrix;\n" +
@@ -79,6 +94,21 @@ public class LivePhotoPainterRenderer implements GLWallpaperService.Renderer{
             1.0f, -1.0f, 0f, 0f,
     };
 
+    //Full window quad to stretch the scaled filter output over, GL framebuffer rows bottom up
+    private final float[] blitVertexData = {
+            -1.0f, -1.0f,
+            1.0f, -1.0f,
+            -1.0f, 1.0f,
+            1.0f, 1.0f,
+    };
+
+    private final float[] blitUvData = {
+            0.0f, 0.0f,
+            1.0f, 0.0f,
+            0.0f, 1.0f,
+            1.0f, 1.0f,
+    };
+
     private final float[] vertexData = {
             1.0f, 0.0f,
             0.0f, 0.0f,
@@ -93,22 +123,72 @@ public class LivePhotoPainterRenderer implements GLWallpaperService.Renderer{
     private int aTextureCoordLocation;
     private int uTextureSamplerLocation;
 
-    //data
-    private float[] MVPMatrix = new float[16];
-    private FloatBuffer vertexCoords;
-    private FloatBuffer uvCoords;
-    private int[] texIds = new int[1];
+    //data, allocated once so drawing a frame allocates nothing
+    private final FloatBuffer vertexCoords;
+    private final FloatBuffer uvCoords;
+    private final float[] identityMatrix = new float[16];
+    //Worked out again only when the crop or a rotation changes
+    private final QuadTransform filterTransform = new QuadTransform();
+    private boolean blitMatrixSet;
+    private long avoidedReloadCount;
+
+    //Everything we create in the context, kept so a new context gets the same photo back without a reload
+    private final GLResourceRegistry resources = new GLResourceRegistry();
+    private GLResourceRegistry.Program program;
+    private GLResourceRegistry.Texture photo;
+    //In GPU memory, drawn without copying vertices from the heap every frame
+    private QuadGeometry blitQuad;
+    //Next photo, decoded and uploaded on the loader thread while we keep drawing the current one
+    private TextureLoader textureLoader;
+    private TextureLoader.Upload pendingPhoto;
+    //The filter output below window resolution, null while drawing straight to the window
+    private GLResourceRegistry.FrameBufferResource filterTarget;
 
     //properties
     private int radius = 5;
 
     //GPUImage stuff
     private List<GPUImageFilter> filters = new ArrayList<>();
+    private final GLResourceRegistry.Resource filterChain = new GLResourceRegistry.Resource() {
+        @Override
+        public void create() {
+            for (GPUImageFilter filter : filters) {
+                filter.init();
+                filter.onOutputSizeChanged(renderWidth, renderHeight);
+            }
+        }
+
+        @Override
+        public void release() {
+            for (GPUImageFilter filter : filters) {
+                filter.destroy();
+            }
+            filters.clear();
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return 0;
+        }
+    };
     private int filterIndex = 0;
-    private boolean useOffscreenBuffer = false;
+    //Keep what the filter drew in filterTarget and blit it, instead of filtering every frame
+    private boolean useOffscreenBuffer = true;
+    private boolean filterOutputStale = true;
+    //The driver could not make the framebuffer, filter into the window
+    private boolean filterTargetFailed;
+    private long filterPassCount;
+    //Size the filter runs at, the view size scaled down when frames run over budget
+    private ResolutionScaler resolutionScaler;
+    private int renderWidth;
+    private int renderHeight;
 
     //Simulation logic
     private long lastLoadedTimeMs;
+    private GLWallpaperService.SceneInvalidator sceneInvalidator;
+    //Whether the next frame changes the picture. Nothing redraws only part of it, so there is
+    //no damage rectangle to keep, frames are either drawn in full or not at all
+    private boolean redrawFully = true;
 
     //Parameters
     private long intervalPeriodMs = 1000;
@@ -116,16 +196,39 @@ public class LivePhotoPainterRenderer implements GLWallpaperService.Renderer{
 
     public LivePhotoPainterRenderer(Context context) {
         this.context = context;
+        vertexCoords = ByteBuffer.allocateDirect(vertexDataGpuImage.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vertexCoords.put(vertexDataGpuImage).position(0);
+        uvCoords = ByteBuffer.allocateDirect(uvData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        uvCoords.put(uvData).position(0);
+        Matrix.setIdentityM(identityMatrix, 0);
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-        programId = GLUtil.createProgram(vertexShader, fragmentShader);
+        if (resources.isEmpty()) {
+            program = resources.registerProgram(vertexShader, fragmentShader);
+            photo = resources.registerTexture();
+            blitQuad = resources.registerQuad(blitVertexData, blitUvData);
+        } else {
+            //New context, whatever we had in the old one is gone. Build the same scene again from
+            //what the registry kept, no MediaStore query and no decode
+            resources.rebuild();
+        }
+        redrawFully = true;
+        //The framebuffer is back, but not what was drawn into it
+        filterOutputStale = true;
+        filterTargetFailed = false;
+        if (filterTarget != null && !filterTarget.isComplete()) {
+            //The new context could not have it, filter straight into the window
+            dropFilterTarget();
+        }
+        blitMatrixSet = false;
+        programId = program.getId();
         if (programId == 0) {
             return;
         }
 
-        GLES20.glUseProgram(programId);
+        GLStateCache.useProgram(programId);
 
         uMVPMatrixLocation = GLES20.glGetUniformLocation(programId, "uMVPMatrix");
         GLUtil.checkGlError("glGetUniformLocation uMVPMatrix");
@@ -148,220 +251,447 @@ public class LivePhotoPainterRenderer implements GLWallpaperService.Renderer{
         if (uTextureSamplerLocation == -1) {
             throw new RuntimeException("Couldn't get uniform location for sTexture");
         }
-
-        vertexCoords = ByteBuffer.allocateDirect(vertexDataGpuImage.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        vertexCoords.put(vertexDataGpuImage).position(0);
-        uvCoords = ByteBuffer.allocateDirect(uvData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        uvCoords.put(uvData).position(0);
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
+        if (width == viewWidth && height == viewHeight && photo.hasPixels()) {
+            //Same surface size again, e.g. a new window surface after a launcher transition
+            avoidedReloadCount++;
+            return;
+        }
+
+        setViewSize(width, height);
+
+        if (photo.hasPixels()) {
+            //The photo was scaled to the larger view dimension, which a rotation keeps, just crop it again
+            setCrop(Bitmaps.getDefaultFillCrop(photo.getWidth() / (float)photo.getHeight(), viewAspectRatio,
+                    photo.getWidth(), photo.getHeight()));
+            avoidedReloadCount++;
+            invalidateScene();
+        } else {
+            loadRandomBitmap(width, height);
+        }
+
+        GLUtil.checkGlError("init filter");
+    }
+
+    /*
+     * Sizes the filters for the view, compiling them the first time.
+     */
+    void setViewSize(int width, int height) {
         viewWidth = width;
         viewHeight = height;
         viewAspectRatio = (float)width / height;
-        GLES20.glGenTextures(texIds.length, texIds, 0);
+        redrawFully = true;
+
+        if (filters.isEmpty()) {
+            renderWidth = width;
+            renderHeight = height;
+            initializeFilters();
+        }
+        //Only the output size depends on the surface, keep the compiled programs
+        updateRenderSize();
+    }
 
-        initializeFilters(width, height);
+    /**
+     * @return how many times a surface change or a new context reused the loaded photo instead of
+     * loading a new one.
+     */
+    public long getAvoidedReloadCount() {
+        return avoidedReloadCount;
+    }
 
-        loadRandomBitmap(width, height);
+    /**
+     * Whether to filter each photo once into a framebuffer and blit that every frame (the default),
+     * or to filter every frame. Compare the engine's GPU frame time with either to see what it saves.
+     * Call on the GLThread, through queueEvent.
+     */
+    public void setUseOffscreenBuffer(boolean use) {
+        useOffscreenBuffer = use;
+        filterOutputStale = true;
+        redrawFully = true;
+        invalidateScene();
+    }
 
-        GLUtil.checkGlError("init filter");
+    public boolean getUseOffscreenBuffer() {
+        return useOffscreenBuffer;
+    }
+
+    /**
+     * @return how many times the filter ran, once per photo when its output is kept.
+     */
+    public long getFilterPassCount() {
+        return filterPassCount;
+    }
+
+    @Override
+    public void prepareFrame() {
+        //Before the engine asks for damage, so the frame with the new photo is drawn in full
+        if (pendingPhoto != null) {
+            if (pendingPhoto.isReady()) {
+                photo.adopt(pendingPhoto);
+                pendingPhoto = null;
+                onPhotoLoaded();
+            } else if (pendingPhoto.isFailed()) {
+                pendingPhoto = null;
+            }
+        }
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        if (!photo.hasPixels()) {
+            //Nothing to show until the first photo is up
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            return;
+        }
+        drawPhoto();
+    }
 
+    /*
+     * The frame once a photo is up. Called every frame, so it allocates nothing: every matrix and
+     * buffer is a field.
+     */
+    void drawPhoto() {
         if (System.currentTimeMillis() >= lastLoadedTimeMs + intervalPeriodMs) {
             //loadRandomBitmap(viewWidth, viewHeight);
         }
 
-        if (useOffscreenBuffer) {
-            //TODO: Have a current texture id and then have an offscreen buffer texture id where we
-            // work on the next frame.  Hook up gpuimage and filter that mofo.
-            //get exif rotation, width and height (for aspect)
-
-            GLES20.glUseProgram(programId);
-
-            // Clear Screen And Depth Buffer
-            gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
-
-            //Enable blending
-            GLES20.glEnable(GLES20.GL_BLEND);
-            GLUtil.checkGlError("enable blend");
-            GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-            GLUtil.checkGlError("blend func");
-
-            // No culling of back faces
-            GLES20.glDisable(GLES20.GL_CULL_FACE);
-            GLUtil.checkGlError("disable cull face");
-
-            //Disable depth testing
-            GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-            GLUtil.checkGlError("disable depth");
-
-            GLES20.glUniformMatrix4fv(uMVPMatrixLocation, 1, false, MVPMatrix, 0);
-
-            // Vertex positions
-            vertexCoords.position(0);
-            GLES20.glVertexAttribPointer(aPositionLocation, 2, GLES20.GL_FLOAT, false, 0, vertexCoords);
-            GLUtil.checkGlError("glVertexAttribPointer aPositionLocation");
-            GLES20.glEnableVertexAttribArray(aPositionLocation);
-            GLUtil.checkGlError("glEnableVertexAttribArray aPositionLocation");
-
-            // Texture coords
-            uvCoords.position(0);
-            GLES20.glVertexAttribPointer(aTextureCoordLocation, 2, GLES20.GL_FLOAT, false, 0, uvCoords);
-            GLUtil.checkGlError("glVertexAttribPointer attribTextureCoordLocation");
-            GLES20.glEnableVertexAttribArray(aTextureCoordLocation);
-            GLUtil.checkGlError("glEnableVertexAttribArray attribTextureCoordLocation");
-
-            //crop via ortho projection
-            float[] projectionMatrix = new float[16];
-
-            //crop via ortho projection
-            Matrix.setIdentityM(projectionMatrix, 0);
-            Matrix.setIdentityM(MVPMatrix, 0);
-
-            int preRotate = 90;
-            int rotation = 90;
-            RectF crop = new RectF(0, 0, 1, 1);
-
-            if(preRotate == 90){
-                Matrix.orthoM(projectionMatrix, 0, crop.top, crop.bottom, crop.right, crop.left, 0, 1);
-            } else if(preRotate == 180) {
-                Matrix.orthoM(projectionMatrix, 0, crop.left, crop.right, crop.bottom, crop.top, 0, 1);
+        boolean scaled = updateRenderSize();
+        if (cachesFilterOutput()) {
+            //The filter only runs again for a new photo, crop, filter or size, every other frame
+            //is a blit of what it drew last
+            FrameBuffer target = filterTarget.getFrameBuffer();
+            if (filterOutputStale) {
+                drawFilterInto(target);
+                filterOutputStale = false;
             }
-            else if(preRotate == 270) {
-                Matrix.orthoM(projectionMatrix, 0, crop.top, crop.bottom, crop.right, crop.left, 0, 1);
+            blit(target.getOffscreenTexture());
+        } else if (scaled) {
+            //Filter below window resolution, then stretch it over the window
+            FrameBuffer target = filterTarget.getFrameBuffer();
+            drawFilterInto(target);
+            blit(target.getOffscreenTexture());
+        } else {
+            drawFilter();
+        }
+    }
+
+    /*
+     * Filters the photo into the framebuffer at the render size. The engine's damage scissor is in
+     * window pixels, it must not clip the pass into the framebuffer.
+     */
+    private void drawFilterInto(FrameBuffer target) {
+        boolean scissor = GLStateCache.isEnabled(GLES20.GL_SCISSOR_TEST);
+        if (scissor) {
+            GLStateCache.disable(GLES20.GL_SCISSOR_TEST);
+        }
+        GLStateCache.bindFramebuffer(target.getFramebuffer());
+        GLStateCache.viewport(0, 0, renderWidth, renderHeight);
+        drawFilter();
+        GLStateCache.bindFramebuffer(0);
+        GLStateCache.viewport(0, 0, viewWidth, viewHeight);
+        if (scissor) {
+            GLStateCache.enable(GLES20.GL_SCISSOR_TEST);
+        }
+    }
+
+    /*
+     * Whether frames blit the filter output kept in filterTarget instead of filtering again. A
+     * filter group draws its last pass to the window whatever framebuffer is bound, so it is never
+     * kept.
+     */
+    private boolean cachesFilterOutput() {
+        return useOffscreenBuffer && !filterTargetFailed && !isFilterGroup();
+    }
+
+    private boolean isFilterGroup() {
+        return !filters.isEmpty() && filters.get(filterIndex) instanceof GPUImageFilterGroup;
+    }
+
+    private void drawFilter() {
+        //GPUImage filters only draw from client memory, so the positions stay in vertexCoords but
+        //are only worked out again when the crop changed
+        filterTransform.updatePositions(vertexDataGpuImage, vertexCoords);
+        filters.get(filterIndex).onDraw(photo.getId(), vertexCoords, uvCoords);
+        filterPassCount++;
+        //The filter switched program, textures and attribute arrays without the cache
+        GLStateCache.invalidateBindings();
+    }
+
+    /*
+     * Draws the texture over the whole window with the pass-through program.
+     */
+    private void blit(int textureId) {
+        GLStateCache.useProgram(programId);
+        if (!blitMatrixSet) {
+            //Nothing else draws with the program, the uniform keeps its value
+            GLES20.glUniformMatrix4fv(uMVPMatrixLocation, 1, false, identityMatrix, 0);
+            blitMatrixSet = true;
+        }
+        blitQuad.bind(aPositionLocation, aTextureCoordLocation);
+        GLStateCache.activeTexture(GLES20.GL_TEXTURE0);
+        GLStateCache.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(uTextureSamplerLocation, 0);
+        blitQuad.draw();
+        blitQuad.unbind();
+    }
+
+    /*
+     * Follows the scaler: resizes the filters and the framebuffer they draw into when the scale
+     * changed. The framebuffer is kept while the filter output is kept or scaled, and dropped
+     * otherwise.
+     *
+     * @return true if the filter draws below window resolution.
+     */
+    private boolean updateRenderSize() {
+        int width = viewWidth;
+        int height = viewHeight;
+        if (resolutionScaler != null && !filterTargetFailed) {
+            width = resolutionScaler.scale(viewWidth);
+            height = resolutionScaler.scale(viewHeight);
+        }
+        if (isFilterGroup()) {
+            //A group draws its last pass to whatever framebuffer is 0 at the time, the window, so
+            //it can only draw at full resolution
+            width = viewWidth;
+            height = viewHeight;
+        }
+        boolean scaled = width != viewWidth || height != viewHeight;
+        boolean resized = width != renderWidth || height != renderHeight;
+        if (resized) {
+            renderWidth = width;
+            renderHeight = height;
+            for (GPUImageFilter filter : filters) {
+                filter.onOutputSizeChanged(width, height);
             }
-            else {
-                Matrix.orthoM(projectionMatrix, 0, crop.left, crop.right, crop.bottom, crop.top, 0, 1);
+            //This frame may be scissored to what changed before, the next one shows all of it
+            redrawFully = true;
+            invalidateScene();
+        }
+        if (scaled || cachesFilterOutput()) {
+            if (filterTarget == null || resized) {
+                if (filterTarget == null) {
+                    filterTarget = resources.registerFrameBuffer();
+                }
+                filterTarget.prepare(width, height, getSurfaceFormat());
+                if (!filterTarget.isComplete()) {
+                    //Nothing to keep or scale the output in, filter straight into the window
+                    dropFilterTarget();
+                    return updateRenderSize();
+                }
+                filterOutputStale = true;
             }
+        } else if (filterTarget != null) {
+            resources.unregister(filterTarget);
+            filterTarget = null;
+        }
+        return scaled;
+    }
 
-            //pre-rotate if necessary
-            if(preRotate != 0) {
-                float[] preRotationMatrix = new float[16];
-                Matrix.setIdentityM(preRotationMatrix, 0);
-                Matrix.rotateM(preRotationMatrix, 0, -preRotate, 0f, 0f, 1f);
-                Matrix.multiplyMM(projectionMatrix, 0, preRotationMatrix, 0, projectionMatrix, 0);
-            }
+    private void dropFilterTarget() {
+        resources.unregister(filterTarget);
+        filterTarget = null;
+        filterTargetFailed = true;
+    }
 
-            //user rotation
-            float[] rotationMatrix = new float[16];
-            Matrix.setIdentityM(rotationMatrix, 0);
-            Matrix.translateM(rotationMatrix, 0, 0.5f, 0.5f, 0f);
-            Matrix.rotateM(rotationMatrix, 0, rotation, 0f, 0f, 1f);
-            Matrix.translateM(rotationMatrix, 0, -0.5f, -0.5f, 0f);
+    @Override
+    public void setResolutionScaler(ResolutionScaler scaler) {
+        resolutionScaler = scaler;
+    }
 
-            //compose
-            Matrix.multiplyMM(MVPMatrix, 0, projectionMatrix, 0, rotationMatrix, 0);
+    @Override
+    public void setSceneInvalidator(GLWallpaperService.SceneInvalidator invalidator) {
+        sceneInvalidator = invalidator;
+    }
 
-            GLES20.glUniformMatrix4fv(uMVPMatrixLocation, 1, false, MVPMatrix, 0);
+    @Override
+    public boolean isAnimating() {
+        //The photo is static between swaps. The loader invalidates the scene once the next one is
+        //uploaded, only the frames the GPU takes to finish it poll the fence
+        return pendingPhoto != null && pendingPhoto.isUploaded();
+    }
 
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texIds[0]);
-            GLES20.glUniform1i(uTextureSamplerLocation, 0);
-        } else {
-            Matrix.setIdentityM(MVPMatrix, 0);
-            Matrix.orthoM(MVPMatrix, 0, crop.left, crop.right, crop.bottom, crop.top, 0, 1);
+    @Override
+    public void onTextureLoaderChanged(TextureLoader loader) {
+        //An upload still pending went with the old context, onSurfaceChanged starts a new one
+        textureLoader = loader;
+        pendingPhoto = null;
+    }
+
+    @Override
+    public boolean getDamage(Rect frameDamage) {
+        //Only full or no redraws: a new photo, crop, filter or size redraws everything, and touches
+        //don't change the picture yet, so otherwise the damage is empty
+        boolean partial = !redrawFully;
+        frameDamage.setEmpty();
+        redrawFully = false;
+        return partial;
+    }
 
-            float [] twoDConvertedBuffer = new float[8];
-            float [] position = new float[16];
-            Matrix.multiplyMM(position, 0, MVPMatrix, 0, vertexDataGpuImage, 0);
+    @Override
+    public void onCapabilitiesChanged(GLCapabilities capabilities) {
+        resources.setCapabilities(capabilities);
+    }
 
-            //Extract x,y from the 4x4 ortho matrix
-            for (int i = 0; i < 4; i++) {
-                twoDConvertedBuffer[i*2] = position[i*4];
-                twoDConvertedBuffer[i*2+1] = position[i*4 + 1];
-            }
+    @Override
+    public GLWallpaperService.SurfaceFormat getSurfaceFormat() {
+        //Flat 2D quads, no depth or stencil testing, and the same 565 colour we always had
+        return new GLWallpaperService.SurfaceFormat(GLWallpaperService.SurfaceFormat.COLOR_RGB565, false, false);
+    }
 
-            vertexCoords.put(twoDConvertedBuffer).position(0);
-            filters.get(filterIndex).onDraw(texIds[0], vertexCoords, uvCoords);
+    @Override
+    public long getGLMemoryBytes() {
+        //Only the photo texture and the scaled filter output are big enough to matter
+        long bytes = photo == null ? 0 : photo.getUploadedBytes();
+        if (filterTarget != null) {
+            bytes += filterTarget.getFrameBuffer().getAllocatedBytes();
         }
+        return bytes;
     }
 
-    public void release() {
+    @Override
+    public void releaseGLResources() {
+        //The context outlives us when another engine (preview or home screen) still uses it
+        if (pendingPhoto != null) {
+            pendingPhoto.cancel();
+            pendingPhoto = null;
+        }
+        resources.releaseAll();
+        program = null;
+        photo = null;
+        blitQuad = null;
+        filterTarget = null;
+        programId = 0;
+        viewWidth = 0;
+        viewHeight = 0;
+        renderWidth = 0;
+        renderHeight = 0;
+    }
 
+    /**
+     * @return how often a new context was filled from the retained photo and shaders.
+     */
+    public int getRebuildCount() {
+        return resources.getRebuildCount();
     }
 
-    public void onTouchEvent(MotionEvent event) {
+    public void release() {
+
+    }
 
+    @Override
+    public void onInputEvent(InputEvent event) {
+        //Touches don't change the picture yet, so they don't cost a frame
     }
 
-    private void initializeFilters(int width, int height) {
-        for (GPUImageFilter filter : filters) {
-            filter.destroy();
+    private void invalidateScene() {
+        if (sceneInvalidator != null) {
+            sceneInvalidator.invalidateScene();
         }
+    }
 
-        filters.clear();
-
+    private void initializeFilters() {
         //setup filters
         filters.add(new GPUImageKuwaharaFilter(5));
         filters.add(new GPUImageSketchFilter());
         filters.add(new GPUImageToonFilter());
         filters.add(new GPUImageSmoothToonFilter());
 
-
-        for (GPUImageFilter filter : filters) {
-            filter.init();
-            filter.onOutputSizeChanged(width, height);
-        }
+        //Compiles them for the current view size, and again in every new context
+        resources.register(filterChain);
     }
 
     private void selectFilter() {
         Random random = new Random(System.currentTimeMillis());
-        filterIndex = random.nextInt(filters.size());
+        setFilterIndex(random.nextInt(filters.size()));
     }
 
-    private void loadRandomBitmap(int width, int height) {
-        //Get random bitmap uri
-        Uri uri = Bitmaps.getBitmapFromGallery(context);
+    void setFilterIndex(int index) {
+        filterIndex = index;
+        filterOutputStale = true;
+    }
+
+    void setCrop(RectF crop) {
+        this.crop = crop;
+        filterTransform.setCrop(crop);
+        filterOutputStale = true;
+    }
 
+    private void loadRandomBitmap(final int width, final int height) {
         //get filter
         selectFilter();
 
+        if (textureLoader != null) {
+            if (pendingPhoto != null) {
+                pendingPhoto.cancel();
+            }
+            pendingPhoto = textureLoader.load(new TextureLoader.Source() {
+                @Override
+                public Bitmap load() throws IOException {
+                    return decodeRandomBitmap(width, height);
+                }
+            }, sceneInvalidator);
+            if (pendingPhoto != null) {
+                //The loader invalidates the scene once the upload is done, prepareFrame takes it over
+                return;
+            }
+        }
 
+        //No shared context for the loader, upload here
         try {
-            //Scale by matching the largest dimension of both dimensions (view and bitmap) and making a ratio
-            int desiredWidth, desiredHeight;
-            float scaleRatio = 1.0f;
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(new File(uri.getPath()).getAbsolutePath(),
-                    options);
-
-            int largestDimension = width > height ? width : height;
-            int largestBitmapDimension = options.outWidth > options.outHeight ? options.outWidth :
-                    options.outHeight;
-
-            if (largestBitmapDimension > largestDimension) {
-                scaleRatio = largestDimension / (float)largestBitmapDimension;
-            }
+            Bitmap scaledBitmap = decodeRandomBitmap(width, height);
+            //Load into texture, the registry keeps a 565 copy for the next context
+            photo.upload(scaledBitmap);
+            scaledBitmap.recycle();
+            onPhotoLoaded();
+        } catch (IOException e) {
+            Log.d(TAG, "cannot open file?");
+            e.printStackTrace();
+        }
+    }
 
-            desiredWidth = (int)(options.outWidth * scaleRatio);
-            desiredHeight = (int)(options.outHeight * scaleRatio);
-            Bitmap scaledBitmap = Bitmaps.loadScaledBitmap(uri, desiredWidth, desiredHeight);
+    private void onPhotoLoaded() {
+        setCrop(Bitmaps.getDefaultFillCrop(photo.getWidth() / (float)photo.getHeight(), viewAspectRatio,
+                photo.getWidth(), photo.getHeight()));
 
-            crop = Bitmaps.getDefaultFillCrop(scaledBitmap.getWidth() / (float)scaledBitmap.getHeight(), viewAspectRatio, scaledBitmap.getWidth(), scaledBitmap.getHeight());
+        //TODO create crop
+        //float bitmapAspectRatio = bitmap.getWidth()/(float)bitmap.getHeight();
+        //float desiredAspectRatio = width/(float)height;
 
-            //Load into texture
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texIds[0]);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, scaledBitmap, 0);
+        lastLoadedTimeMs = System.currentTimeMillis();
+        redrawFully = true;
+        invalidateScene();
+    }
 
-            //TODO create crop
-            //float bitmapAspectRatio = bitmap.getWidth()/(float)bitmap.getHeight();
-            //float desiredAspectRatio = width/(float)height;
+    /*
+     * Picks a photo from the gallery and decodes it scaled to the larger view dimension. Runs on the
+     * loader thread when there is one.
+     */
+    private Bitmap decodeRandomBitmap(int width, int height) throws IOException {
+        //Get random bitmap uri
+        Uri uri = Bitmaps.getBitmapFromGallery(context);
 
-            lastLoadedTimeMs = System.currentTimeMillis();
-        } catch (IOException e) {
-            Log.d(TAG, "cannot open file?");
-            e.printStackTrace();
+        //Scale by matching the largest dimension of both dimensions (view and bitmap) and making a ratio
+        int desiredWidth, desiredHeight;
+        float scaleRatio = 1.0f;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(new File(uri.getPath()).getAbsolutePath(),
+                options);
+
+        int largestDimension = width > height ? width : height;
+        int largestBitmapDimension = options.outWidth > options.outHeight ? options.outWidth :
+                options.outHeight;
+
+        if (largestBitmapDimension > largestDimension) {
+            scaleRatio = largestDimension / (float)largestBitmapDimension;
         }
+
+        desiredWidth = (int)(options.outWidth * scaleRatio);
+        desiredHeight = (int)(options.outHeight * scaleRatio);
+        return Bitmaps.loadScaledBitmap(uri, desiredWidth, desiredHeight);
     }
 }
@@ -5,7 +5,6 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
-import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 
 import com.aroslabs.livephotopainterwallpaper.Engine.GLWallpaperService;
@@ -34,8 +33,11 @@ public class LivePhotoPainterService extends GLWallpaperService {
             // handle prefs, other initialization
             renderer = new LivePhotoPainterRenderer(getApplicationContext());
             setRenderer(renderer);
-            //TODO: set to dirty
-            setRenderMode(RENDERMODE_CONTINUOUSLY);
+            // Only redraw when the renderer reports a change, the photo is static in between
+            setIdleGovernorEnabled(true);
+            // Keep the filters and the photo texture while hidden, so coming back to the home
+            // screen does not recompile shaders and decode a new photo
+            setPreserveEGLContextOnPause(true);
         }
 
         public void onDestroy() {
@@ -56,12 +58,6 @@ public class LivePhotoPainterService extends GLWallpaperService {
 
         private SensorManager sm;
 
-        @Override
-        public void onTouchEvent(MotionEvent event) {
-            super.onTouchEvent(event);
-            renderer.onTouchEvent(event);
-        }
-
         @Override
         public void onCreate(SurfaceHolder surfaceHolder) {
             super.onCreate(surfaceHolder);
@@ -73,12 +69,22 @@ public class LivePhotoPainterService extends GLWallpaperService {
             // Add touch events
             setTouchEventsEnabled(true);
 
-            // Get sensormanager and register as listener.
+            // Get sensormanager, we listen while visible
             sm = (SensorManager) getSystemService(SENSOR_SERVICE);
-            Sensor orientationSensor = sm
-                    .getDefaultSensor(SensorManager.SENSOR_ORIENTATION);
-            sm.registerListener(this, orientationSensor,
-                    SensorManager.SENSOR_DELAY_GAME);
+        }
+
+        @Override
+        public void onVisibilityChanged(boolean visible) {
+            // Don't keep the sensor sampling for a wallpaper nobody sees
+            if (visible) {
+                Sensor orientationSensor = sm
+                        .getDefaultSensor(SensorManager.SENSOR_ORIENTATION);
+                sm.registerListener(this, orientationSensor,
+                        SensorManager.SENSOR_DELAY_GAME);
+            } else {
+                sm.unregisterListener(this);
+            }
+            super.onVisibilityChanged(visible);
         }
 
         public void onSharedPreferenceChanged(
@@ -89,7 +95,9 @@ public class LivePhotoPainterService extends GLWallpaperService {
         }
 
         public void onSensorChanged(SensorEvent event) {
-            // /renderer.onSensorChanged(event);
+            // Coalesced with the other samples until the next frame, it doesn't wake an idle
+            // GLThread
+            queueSensorEvent(event);
         }
     }
 
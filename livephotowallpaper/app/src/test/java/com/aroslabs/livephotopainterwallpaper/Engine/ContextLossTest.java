@@ -0,0 +1,205 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLSurfaceView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGL11;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import static com.aroslabs.livephotopainterwallpaper.Engine.GLThreadTests.*;
+import static org.junit.Assert.*;
+
+/**
+ * EGL_CONTEXT_LOST from a swap, and rebuilding a renderer's resources in the new context.
+ */
+public class ContextLossTest {
+
+    private FakeEgl mEgl;
+
+    @Before
+    public void setUp() {
+        mEgl = new FakeEgl();
+        GLThread.sGLThreadManager.setEgl(mEgl);
+    }
+
+    @After
+    public void tearDown() {
+        GLThread.sGLThreadManager.setEgl(null);
+        FrameBufferTests.resetFramebufferStatus();
+    }
+
+    @Test
+    public void lostContextIsRecreatedAndTheSceneRebuilt() throws Exception {
+        RebuildingRenderer renderer = new RebuildingRenderer();
+        RenderSession session = newSession(renderer);
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        waitForFrames(renderer.mFrames, 1);
+        assertEquals(1, renderer.mResource.mCreated.get());
+
+        mEgl.setNextError(EGL11.EGL_CONTEXT_LOST);
+        int frames = renderer.mFrames.get();
+        session.requestRender();
+        waitForFrames(renderer.mFrames, frames + 2);
+
+        assertEquals(1, session.getContextLossCount());
+        assertEquals(2, mEgl.getCreatedContextCount());
+        assertEquals(1, mEgl.getLiveContextCount());
+        assertEquals(1, mEgl.getLiveSurfaceCount());
+        assertEquals(2, renderer.mSurfaceCreatedCount.get());
+        // Built again from what was kept, not registered a second time.
+        assertEquals(2, renderer.mResource.mCreated.get());
+        assertEquals(1, renderer.mResources.getRebuildCount());
+        assertEquals(0, renderer.mMisplacedCalls.get());
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    @Test
+    public void framebufferTheNewContextCannotHaveLeavesTheThreadRunning() throws Exception {
+        FrameBufferTests.completeFramebuffers();
+        RebuildingRenderer renderer = new RebuildingRenderer();
+        renderer.mWithFrameBuffer = true;
+        RenderSession session = newSession(renderer);
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        waitForFrames(renderer.mFrames, 1);
+        assertTrue(renderer.mFrameBuffer.isComplete());
+
+        FrameBufferTests.incompleteFramebuffers();
+        mEgl.setNextError(EGL11.EGL_CONTEXT_LOST);
+        int frames = renderer.mFrames.get();
+        session.requestRender();
+        waitForFrames(renderer.mFrames, frames + 2);
+
+        assertEquals(2, renderer.mSurfaceCreatedCount.get());
+        assertEquals(1, renderer.mResources.getRebuildCount());
+        assertFalse(renderer.mFrameBuffer.isComplete());
+        assertEquals(0, renderer.mFrameBuffer.getFrameBuffer().getAllocatedBytes());
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    @Test
+    public void registryRebuildsInOrderAndReleasesInReverse() {
+        GLResourceRegistry registry = new GLResourceRegistry();
+        List<String> log = new ArrayList<String>();
+        registry.register(new LoggingResource("program", log));
+        registry.register(new LoggingResource("texture", log));
+        assertEquals(20, registry.getRetainedBytes());
+
+        log.clear();
+        registry.rebuild();
+        assertEquals("[create program, create texture]", log.toString());
+
+        log.clear();
+        registry.releaseAll();
+        assertEquals("[release texture, release program]", log.toString());
+        assertTrue(registry.isEmpty());
+        assertEquals(0, registry.getRetainedBytes());
+    }
+
+    private static class LoggingResource implements GLResourceRegistry.Resource {
+        private final String mName;
+        private final List<String> mLog;
+
+        LoggingResource(String name, List<String> log) {
+            mName = name;
+            mLog = log;
+        }
+
+        @Override
+        public void create() {
+            mLog.add("create " + mName);
+        }
+
+        @Override
+        public void release() {
+            mLog.add("release " + mName);
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return 10;
+        }
+    }
+
+    private class CountingResource implements GLResourceRegistry.Resource {
+        final AtomicInteger mCreated = new AtomicInteger();
+
+        @Override
+        public void create() {
+            mCreated.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public long getRetainedBytes() {
+            return 0;
+        }
+    }
+
+    /*
+     * Registers its resources with the first context and rebuilds them with every later one, like
+     * LivePhotoPainterRenderer.
+     */
+    private class RebuildingRenderer implements GLSurfaceView.Renderer {
+        final GLResourceRegistry mResources = new GLResourceRegistry();
+        final CountingResource mResource = new CountingResource();
+        final AtomicInteger mSurfaceCreatedCount = new AtomicInteger();
+        final AtomicInteger mFrames = new AtomicInteger();
+        final AtomicInteger mMisplacedCalls = new AtomicInteger();
+        // Set before the first context, registers a framebuffer too.
+        volatile boolean mWithFrameBuffer;
+        volatile GLResourceRegistry.FrameBufferResource mFrameBuffer;
+
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+            check();
+            if (mResources.isEmpty()) {
+                mResources.register(mResource);
+                if (mWithFrameBuffer) {
+                    GLResourceRegistry.FrameBufferResource frameBuffer = mResources.registerFrameBuffer();
+                    frameBuffer.prepare(64, 64, new GLWallpaperService.SurfaceFormat(
+                            GLWallpaperService.SurfaceFormat.COLOR_RGB565, false, false));
+                    mFrameBuffer = frameBuffer;
+                }
+            } else {
+                mResources.rebuild();
+            }
+            mSurfaceCreatedCount.incrementAndGet();
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+            check();
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+            check();
+            mFrames.incrementAndGet();
+        }
+
+        private void check() {
+            if (!mEgl.isCurrent()) {
+                mMisplacedCalls.incrementAndGet();
+            }
+        }
+    }
+}
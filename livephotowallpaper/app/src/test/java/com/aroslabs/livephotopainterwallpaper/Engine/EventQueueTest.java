@@ -0,0 +1,213 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * The GLThread event queue with a touch and a sensor producer feeding a single render thread
+ * consumer: every event arrives, in the order each producer queued it.
+ *
+ * The throughput comparison with the previous locked ArrayList queue depends on the machine, so it
+ * is not part of the unit test run. Remove its @Ignore to run it by hand.
+ */
+public class EventQueueTest {
+
+    private static final int EVENTS_PER_PRODUCER = 50000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+    @Test
+    public void drainsEveryEventInProducerOrder() throws Exception {
+        Sink sink = new Sink();
+        runRingBuffer(sink);
+        sink.assertComplete();
+    }
+
+    @Test
+    public void offerFailsWhenFull() {
+        EventQueue queue = new EventQueue(3);
+        assertEquals(4, queue.capacity());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(new Event(null, 0, i)));
+        }
+        assertFalse(queue.offer(new Event(null, 0, 4)));
+
+        Runnable[] batch = new Runnable[8];
+        assertEquals(4, queue.drainTo(batch));
+        assertTrue(queue.isEmpty());
+        assertTrue(queue.offer(new Event(null, 0, 5)));
+    }
+
+    @Ignore("benchmark, run by hand")
+    @Test
+    public void ringBufferOutrunsTheLockedList() throws Exception {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            runRingBuffer(new Sink());
+            runLockedList(new Sink());
+        }
+
+        long ringNanos = 0;
+        long lockedNanos = 0;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            Sink sink = new Sink();
+            ringNanos += runRingBuffer(sink);
+            sink.assertComplete();
+
+            sink = new Sink();
+            lockedNanos += runLockedList(sink);
+            sink.assertComplete();
+        }
+
+        long events = 2L * EVENTS_PER_PRODUCER * MEASURED_ROUNDS;
+        assertTrue(String.format("ring buffer %.0f events/ms, locked list %.0f events/ms",
+                events * 1e6 / ringNanos, events * 1e6 / lockedNanos), ringNanos < lockedNanos);
+    }
+
+    private long runRingBuffer(final Sink sink) throws Exception {
+        final EventQueue queue = new EventQueue(256);
+        final Runnable[] batch = new Runnable[queue.capacity()];
+        return run(sink, new Queue() {
+            @Override
+            public void offer(Runnable r) {
+                while (!queue.offer(r)) {
+                    Thread.yield();
+                }
+            }
+
+            @Override
+            public int drain() {
+                int count = queue.drainTo(batch);
+                for (int i = 0; i < count; i++) {
+                    batch[i].run();
+                    batch[i] = null;
+                }
+                return count;
+            }
+        });
+    }
+
+    /*
+     * What GLThread.queueEvent()/getEvent() used to do, minus the manager monitor notifyAll.
+     */
+    private long runLockedList(final Sink sink) throws Exception {
+        final ArrayList<Runnable> list = new ArrayList<Runnable>();
+        return run(sink, new Queue() {
+            @Override
+            public void offer(Runnable r) {
+                synchronized (list) {
+                    list.add(r);
+                }
+            }
+
+            @Override
+            public int drain() {
+                int count = 0;
+                while (true) {
+                    Runnable r;
+                    synchronized (list) {
+                        if (list.isEmpty()) {
+                            return count;
+                        }
+                        r = list.remove(0);
+                    }
+                    r.run();
+                    count++;
+                }
+            }
+        });
+    }
+
+    private long run(final Sink sink, final Queue queue) throws Exception {
+        final Event[][] events = new Event[2][EVENTS_PER_PRODUCER];
+        for (int p = 0; p < 2; p++) {
+            for (int i = 0; i < EVENTS_PER_PRODUCER; i++) {
+                events[p][i] = new Event(sink, p, i);
+            }
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] producers = new Thread[2];
+        for (int p = 0; p < 2; p++) {
+            final Event[] mine = events[p];
+            producers[p] = new Thread(p == 0 ? "touch" : "sensor") {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (Event event : mine) {
+                        queue.offer(event);
+                    }
+                }
+            };
+            producers[p].start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        while (sink.total < 2 * EVENTS_PER_PRODUCER) {
+            if (queue.drain() == 0) {
+                // The render thread would park here, don't starve producers on small machines.
+                Thread.yield();
+            }
+        }
+        long elapsed = System.nanoTime() - startNanos;
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        return elapsed;
+    }
+
+    private interface Queue {
+        void offer(Runnable r);
+
+        int drain();
+    }
+
+    /*
+     * Only touched by the consumer thread.
+     */
+    private static class Sink {
+        final int[] next = new int[2];
+        int total;
+        boolean outOfOrder;
+
+        void accept(int producer, int sequence) {
+            if (next[producer] != sequence) {
+                outOfOrder = true;
+            }
+            next[producer] = sequence + 1;
+            total++;
+        }
+
+        void assertComplete() {
+            assertFalse("events delivered out of order", outOfOrder);
+            assertEquals(EVENTS_PER_PRODUCER, next[0]);
+            assertEquals(EVENTS_PER_PRODUCER, next[1]);
+        }
+    }
+
+    private static class Event implements Runnable {
+        final Sink sink;
+        final int producer;
+        final int sequence;
+
+        Event(Sink sink, int producer, int sequence) {
+            this.sink = sink;
+            this.producer = producer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            sink.accept(producer, sequence);
+        }
+    }
+}
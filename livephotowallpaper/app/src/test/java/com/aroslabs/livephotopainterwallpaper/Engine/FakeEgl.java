@@ -0,0 +1,297 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+import javax.microedition.khronos.opengles.GL;
+
+/**
+ * An EGL that hands out dummy objects and keeps track of what is alive and current, so engine
+ * code can run on the host without a GPU.  Install with {@link GLThread.GLThreadManager#setEgl}.
+ */
+class FakeEgl implements EGL10 {
+    static final EGLDisplay DISPLAY = new EGLDisplay() {
+    };
+    static final EGLConfig CONFIG = new EGLConfig() {
+    };
+
+    private final Set<EGLSurface> mSurfaces = new HashSet<EGLSurface>();
+    private final Set<EGLContext> mContexts = new HashSet<EGLContext>();
+    // What is current, per thread like the real thing.
+    private final ThreadLocal<EGLSurface> mCurrentSurface = new ThreadLocal<EGLSurface>();
+    private final ThreadLocal<EGLContext> mCurrentContext = new ThreadLocal<EGLContext>();
+    private Thread mCallingThread;
+    private boolean mCalledFromSeveralThreads;
+    private int mCreatedSurfaceCount;
+    private int mCreatedContextCount;
+    private int mError = EGL_SUCCESS;
+    private String mExtensions = "";
+    private int mCreatedPbufferCount;
+    private int mSharedContextCount;
+
+    /**
+     * A chooser that picks {@link #CONFIG} without asking the EGL.
+     */
+    static class ConfigChooser implements android.opengl.GLSurfaceView.EGLConfigChooser {
+        @Override
+        public EGLConfig chooseConfig(EGL10 egl, EGLDisplay display) {
+            return CONFIG;
+        }
+    }
+
+    synchronized int getLiveSurfaceCount() {
+        return mSurfaces.size();
+    }
+
+    synchronized int getLiveContextCount() {
+        return mContexts.size();
+    }
+
+    synchronized int getCreatedSurfaceCount() {
+        return mCreatedSurfaceCount;
+    }
+
+    synchronized int getCreatedContextCount() {
+        return mCreatedContextCount;
+    }
+
+    /**
+     * @return true if a live surface is current with a live context on the calling thread.
+     */
+    synchronized boolean isCurrent() {
+        EGLSurface surface = mCurrentSurface.get();
+        EGLContext context = mCurrentContext.get();
+        return surface != null && mSurfaces.contains(surface) && context != null && mContexts.contains(context);
+    }
+
+    /**
+     * @return true if a live context is current on the calling thread, with or without a surface.
+     */
+    synchronized boolean isContextCurrent() {
+        EGLSurface surface = mCurrentSurface.get();
+        EGLContext context = mCurrentContext.get();
+        return context != null && mContexts.contains(context)
+                && (surface == EGL_NO_SURFACE || mSurfaces.contains(surface));
+    }
+
+    /**
+     * @return how many contexts were created sharing objects with a live one.
+     */
+    synchronized int getSharedContextCount() {
+        return mSharedContextCount;
+    }
+
+    synchronized int getCreatedPbufferCount() {
+        return mCreatedPbufferCount;
+    }
+
+    /**
+     * Sets what eglQueryString reports for EGL_EXTENSIONS, e.g. "EGL_KHR_surfaceless_context".
+     */
+    synchronized void setExtensions(String extensions) {
+        mExtensions = extensions;
+    }
+
+    synchronized boolean wasCalledFromSeveralThreads() {
+        return mCalledFromSeveralThreads;
+    }
+
+    /**
+     * Makes the next {@link #eglGetError()} report this error, once.
+     */
+    synchronized void setNextError(int error) {
+        mError = error;
+    }
+
+    private void checkThread() {
+        Thread current = Thread.currentThread();
+        if (mCallingThread != null && mCallingThread != current && mCallingThread.isAlive()) {
+            mCalledFromSeveralThreads = true;
+        }
+        mCallingThread = current;
+    }
+
+    @Override
+    public synchronized boolean eglChooseConfig(EGLDisplay display, int[] attribList, EGLConfig[] configs,
+                                                int configSize, int[] numConfig) {
+        checkThread();
+        if (configs != null && configSize > 0) {
+            configs[0] = CONFIG;
+        }
+        numConfig[0] = 1;
+        return true;
+    }
+
+    @Override
+    public boolean eglCopyBuffers(EGLDisplay display, EGLSurface surface, Object nativePixmap) {
+        return false;
+    }
+
+    @Override
+    public synchronized EGLContext eglCreateContext(EGLDisplay display, EGLConfig config, EGLContext shareContext,
+                                                    int[] attribList) {
+        checkThread();
+        EGLContext context = new EGLContext() {
+            @Override
+            public GL getGL() {
+                return null;
+            }
+        };
+        if (shareContext != EGL_NO_CONTEXT && mContexts.contains(shareContext)) {
+            mSharedContextCount++;
+        }
+        mContexts.add(context);
+        mCreatedContextCount++;
+        return context;
+    }
+
+    @Override
+    public synchronized EGLSurface eglCreatePbufferSurface(EGLDisplay display, EGLConfig config, int[] attribList) {
+        checkThread();
+        mCreatedPbufferCount++;
+        return newSurface();
+    }
+
+    @Override
+    public EGLSurface eglCreatePixmapSurface(EGLDisplay display, EGLConfig config, Object nativePixmap,
+                                            int[] attribList) {
+        return EGL_NO_SURFACE;
+    }
+
+    @Override
+    public synchronized EGLSurface eglCreateWindowSurface(EGLDisplay display, EGLConfig config, Object nativeWindow,
+                                                          int[] attribList) {
+        checkThread();
+        return newSurface();
+    }
+
+    private EGLSurface newSurface() {
+        EGLSurface surface = new EGLSurface() {
+        };
+        mSurfaces.add(surface);
+        mCreatedSurfaceCount++;
+        return surface;
+    }
+
+    @Override
+    public synchronized boolean eglDestroyContext(EGLDisplay display, EGLContext context) {
+        checkThread();
+        return mContexts.remove(context);
+    }
+
+    @Override
+    public synchronized boolean eglDestroySurface(EGLDisplay display, EGLSurface surface) {
+        checkThread();
+        return mSurfaces.remove(surface);
+    }
+
+    @Override
+    public synchronized boolean eglGetConfigAttrib(EGLDisplay display, EGLConfig config, int attribute, int[] value) {
+        value[0] = 0;
+        return true;
+    }
+
+    @Override
+    public synchronized boolean eglGetConfigs(EGLDisplay display, EGLConfig[] configs, int configSize,
+                                              int[] numConfig) {
+        return eglChooseConfig(display, null, configs, configSize, numConfig);
+    }
+
+    @Override
+    public synchronized EGLContext eglGetCurrentContext() {
+        return mCurrentContext.get();
+    }
+
+    @Override
+    public EGLDisplay eglGetCurrentDisplay() {
+        return DISPLAY;
+    }
+
+    @Override
+    public synchronized EGLSurface eglGetCurrentSurface(int readdraw) {
+        return mCurrentSurface.get();
+    }
+
+    @Override
+    public EGLDisplay eglGetDisplay(Object nativeDisplay) {
+        return DISPLAY;
+    }
+
+    @Override
+    public synchronized int eglGetError() {
+        int error = mError;
+        mError = EGL_SUCCESS;
+        return error;
+    }
+
+    @Override
+    public boolean eglInitialize(EGLDisplay display, int[] majorMinor) {
+        if (majorMinor != null && majorMinor.length >= 2) {
+            majorMinor[0] = 1;
+            majorMinor[1] = 4;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean eglMakeCurrent(EGLDisplay display, EGLSurface draw, EGLSurface read,
+                                               EGLContext context) {
+        checkThread();
+        if (draw != EGL_NO_SURFACE && !mSurfaces.contains(draw)) {
+            mError = EGL_BAD_SURFACE;
+            return false;
+        }
+        if (context != EGL_NO_CONTEXT && !mContexts.contains(context)) {
+            mError = EGL_BAD_CONTEXT;
+            return false;
+        }
+        mCurrentSurface.set(draw);
+        mCurrentContext.set(context);
+        return true;
+    }
+
+    @Override
+    public boolean eglQueryContext(EGLDisplay display, EGLContext context, int attribute, int[] value) {
+        return false;
+    }
+
+    @Override
+    public synchronized String eglQueryString(EGLDisplay display, int name) {
+        return name == EGL_EXTENSIONS ? mExtensions : "";
+    }
+
+    @Override
+    public boolean eglQuerySurface(EGLDisplay display, EGLSurface surface, int attribute, int[] value) {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean eglSwapBuffers(EGLDisplay display, EGLSurface surface) {
+        checkThread();
+        if (!mSurfaces.contains(surface)) {
+            mError = EGL_BAD_SURFACE;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean eglTerminate(EGLDisplay display) {
+        return true;
+    }
+
+    @Override
+    public boolean eglWaitGL() {
+        return true;
+    }
+
+    @Override
+    public boolean eglWaitNative(int engine, Object bindTarget) {
+        return true;
+    }
+}
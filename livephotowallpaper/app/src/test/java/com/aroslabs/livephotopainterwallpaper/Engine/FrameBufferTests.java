@@ -0,0 +1,44 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLES20;
+
+/**
+ * Lets tests outside the engine package choose what the framebuffer completeness check answers,
+ * the host's GLES20 never reports a complete framebuffer.
+ */
+public final class FrameBufferTests {
+
+    private FrameBufferTests() {
+    }
+
+    /**
+     * Every framebuffer prepared from now on is complete, as it is on most devices.
+     */
+    public static void completeFramebuffers() {
+        setStatus(GLES20.GL_FRAMEBUFFER_COMPLETE);
+    }
+
+    /**
+     * Every framebuffer prepared from now on is incomplete, as on a driver that can't render into
+     * the format.
+     */
+    public static void incompleteFramebuffers() {
+        setStatus(GLES20.GL_FRAMEBUFFER_INCOMPLETE_ATTACHMENT);
+    }
+
+    /**
+     * Back to asking GLES20.
+     */
+    public static void resetFramebufferStatus() {
+        FrameBuffer.setStatusSource(null);
+    }
+
+    private static void setStatus(final int status) {
+        FrameBuffer.setStatusSource(new FrameBuffer.StatusSource() {
+            @Override
+            public int glCheckFramebufferStatus(int target) {
+                return status;
+            }
+        });
+    }
+}
@@ -0,0 +1,94 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLES20;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The check levels against a fake error source. What a level costs on a device is the glGetError
+ * calls it makes, each can wait for the driver to catch up, so those are counted per frame here
+ * rather than timed.
+ */
+public class GLErrorCheckTest {
+
+    private static final int CHECKED_CALLS_PER_FRAME = 10;
+    private static final int FRAMES = 100;
+
+    private CountingErrorSource mSource;
+
+    @Before
+    public void setUp() {
+        mSource = new CountingErrorSource();
+        GLUtil.setErrorSource(mSource);
+    }
+
+    @After
+    public void tearDown() {
+        GLUtil.setErrorSource(null);
+        GLUtil.setCheckLevel(GLUtil.CHECK_PER_FRAME);
+    }
+
+    @Test
+    public void perFrameCheckLogsInsteadOfThrowing() {
+        GLUtil.setCheckLevel(GLUtil.CHECK_PER_FRAME);
+        long errors = GLUtil.getErrorCount();
+        mSource.mPendingError = GLES20.GL_INVALID_OPERATION;
+        GLUtil.checkGlError("glDrawArrays");
+        assertEquals(1, GLUtil.checkFrameErrors("frame"));
+        assertEquals(errors + 1, GLUtil.getErrorCount());
+        assertEquals(0, GLUtil.checkFrameErrors("frame"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void perCallCheckThrows() {
+        GLUtil.setCheckLevel(GLUtil.CHECK_PER_CALL);
+        mSource.mPendingError = GLES20.GL_INVALID_ENUM;
+        GLUtil.checkGlError("glEnable");
+    }
+
+    @Test
+    public void offChecksNothing() {
+        GLUtil.setCheckLevel(GLUtil.CHECK_OFF);
+        mSource.mPendingError = GLES20.GL_INVALID_VALUE;
+        GLUtil.checkGlError("glUniform1i");
+        assertEquals(0, GLUtil.checkFrameErrors("frame"));
+        assertEquals(0, mSource.mCalls);
+    }
+
+    @Test
+    public void glGetErrorCallsPerFrameByLevel() {
+        assertCallsPerFrame(GLUtil.CHECK_PER_CALL, CHECKED_CALLS_PER_FRAME + 1);
+        assertCallsPerFrame(GLUtil.CHECK_PER_FRAME, 1);
+        assertCallsPerFrame(GLUtil.CHECK_OFF, 0);
+    }
+
+    private void assertCallsPerFrame(int level, int calls) {
+        GLUtil.setCheckLevel(level);
+        mSource.mCalls = 0;
+        for (int frame = 0; frame < FRAMES; frame++) {
+            // What the GLThread and a renderer do per frame as far as error checks go.
+            for (int call = 0; call < CHECKED_CALLS_PER_FRAME; call++) {
+                GLUtil.checkGlError("draw");
+            }
+            GLUtil.checkFrameErrors("frame");
+        }
+        assertEquals("level " + level, (long) calls * FRAMES, mSource.mCalls);
+    }
+
+    private static class CountingErrorSource implements GLUtil.ErrorSource {
+        long mCalls;
+        int mPendingError = GLES20.GL_NO_ERROR;
+
+        @Override
+        public int glGetError() {
+            mCalls++;
+            int error = mPendingError;
+            mPendingError = GLES20.GL_NO_ERROR;
+            return error;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLES20;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The state cache against the calls a frame of the photo renderer makes, counted rather than
+ * drawn.
+ */
+public class GLStateCacheTest {
+
+    private long mIssued;
+    private long mElided;
+
+    @Before
+    public void setUp() {
+        GLStateCache.setVertexArraysSupported(true);
+        GLStateCache.invalidate();
+        mIssued = GLStateCache.getIssuedCount();
+        mElided = GLStateCache.getElidedCount();
+    }
+
+    @Test
+    public void repeatedFramesOnlyIssueChanges() {
+        frame(7);
+        assertCounts(5, 0);
+        frame(7);
+        assertCounts(5, 5);
+        // A new photo, only the texture goes to GL.
+        frame(8);
+        assertCounts(6, 9);
+    }
+
+    @Test
+    public void invalidatedBindingsAreIssuedAgain() {
+        frame(7);
+        GLStateCache.invalidateBindings();
+        frame(7);
+        // Program, unit and texture again, the capabilities and blend function were kept.
+        assertCounts(8, 2);
+
+        GLStateCache.invalidate();
+        frame(7);
+        assertCounts(13, 2);
+    }
+
+    @Test
+    public void deletedObjectsAreNotCurrent() {
+        GLStateCache.activeTexture(GLES20.GL_TEXTURE0);
+        GLStateCache.bindTexture(GLES20.GL_TEXTURE_2D, 3);
+        GLStateCache.deleteTextures(1, new int[] {3}, 0);
+        // The name may come back for a new texture, which has to be bound for real.
+        GLStateCache.bindTexture(GLES20.GL_TEXTURE_2D, 3);
+        assertCounts(4, 0);
+        GLStateCache.bindTexture(GLES20.GL_TEXTURE_2D, 3);
+        assertCounts(4, 1);
+    }
+
+    @Test
+    public void attributeArraysOfVertexArrayObjectsAreNotCached() {
+        // Queued events may have left any vertex array bound.
+        GLStateCache.enableVertexAttribArray(0);
+        assertCounts(1, 0);
+
+        GLStateCache.bindVertexArray(0);
+        GLStateCache.enableVertexAttribArray(0);
+        GLStateCache.enableVertexAttribArray(0);
+        assertCounts(3, 1);
+
+        GLStateCache.bindVertexArray(5);
+        GLStateCache.enableVertexAttribArray(0);
+        GLStateCache.enableVertexAttribArray(0);
+        assertCounts(6, 1);
+
+        // Back on the default vertex array its arrays are unknown.
+        GLStateCache.bindVertexArray(0);
+        GLStateCache.enableVertexAttribArray(0);
+        assertCounts(8, 1);
+    }
+
+    @Test
+    public void attributeArraysAreCachedWithoutVertexArrayObjects() {
+        GLStateCache.setVertexArraysSupported(false);
+        GLStateCache.invalidate();
+        GLStateCache.enableVertexAttribArray(0);
+        GLStateCache.enableVertexAttribArray(0);
+        assertCounts(1, 1);
+    }
+
+    @Test
+    public void knownCapabilitiesAreNotQueried() {
+        GLStateCache.enable(GLES20.GL_SCISSOR_TEST);
+        assertTrue(GLStateCache.isEnabled(GLES20.GL_SCISSOR_TEST));
+        GLStateCache.disable(GLES20.GL_SCISSOR_TEST);
+        assertFalse(GLStateCache.isEnabled(GLES20.GL_SCISSOR_TEST));
+    }
+
+    private static void frame(int texture) {
+        GLStateCache.useProgram(1);
+        GLStateCache.enable(GLES20.GL_BLEND);
+        GLStateCache.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLStateCache.activeTexture(GLES20.GL_TEXTURE0);
+        GLStateCache.bindTexture(GLES20.GL_TEXTURE_2D, texture);
+    }
+
+    private void assertCounts(long issued, long elided) {
+        assertEquals("issued", issued, GLStateCache.getIssuedCount() - mIssued);
+        assertEquals("elided", elided, GLStateCache.getElidedCount() - mElided);
+    }
+}
@@ -0,0 +1,359 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLSurfaceView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import static com.aroslabs.livephotopainterwallpaper.Engine.GLThreadTests.*;
+import static org.junit.Assert.*;
+
+/**
+ * Drives surface create/destroy, pause/resume and resize storms from two engines at once against
+ * the shared GLThread, with a fake EGL underneath, and checks what wakes it.
+ */
+public class GLThreadStressTest {
+
+    private static final int OPERATIONS_PER_ENGINE = 5000;
+    private static final long MAX_TRANSITION_NANOS = 100000000L;
+
+    private FakeEgl mEgl;
+
+    @Before
+    public void setUp() {
+        mEgl = new FakeEgl();
+        GLThread.sGLThreadManager.setEgl(mEgl);
+    }
+
+    @After
+    public void tearDown() {
+        GLThread.sGLThreadManager.setEgl(null);
+    }
+
+    @Test
+    public void surfaceDestroyedReturnsOnlyOnceTheEglSurfaceIsGone() throws Exception {
+        CountingRenderer renderer = new CountingRenderer();
+        RenderSession session = newSession(renderer);
+        session.attach();
+
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        waitForFrames(renderer.mFrames, 1);
+        assertEquals(RenderSession.STATE_READY, session.getState());
+
+        session.surfaceDestroyed();
+        assertEquals(RenderSession.STATE_WAITING_FOR_SURFACE, session.getState());
+        assertFalse(hasEglSurface(session));
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        assertEquals(RenderSession.STATE_EXITED, session.getState());
+        waitForContextRelease(mEgl);
+        assertEquals(0, renderer.mMisplacedCalls.get());
+    }
+
+    @Test
+    public void survivesLifecycleStormsFromTwoEngines() throws Exception {
+        final CountingRenderer[] renderers = {new CountingRenderer(), new CountingRenderer()};
+        final RenderSession[] sessions = new RenderSession[2];
+        for (int i = 0; i < 2; i++) {
+            sessions[i] = newSession(renderers[i]);
+            sessions[i].attach();
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger violations = new AtomicInteger();
+        Thread[] drivers = new Thread[2];
+        for (int i = 0; i < 2; i++) {
+            final RenderSession session = sessions[i];
+            final Random random = new Random(i);
+            drivers[i] = new Thread("engine " + i) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    boolean hasSurface = false;
+                    for (int op = 0; op < OPERATIONS_PER_ENGINE; op++) {
+                        switch (random.nextInt(6)) {
+                            case 0:
+                                if (!hasSurface) {
+                                    session.surfaceCreated(null);
+                                    hasSurface = true;
+                                }
+                                break;
+                            case 1:
+                                if (hasSurface) {
+                                    session.surfaceDestroyed();
+                                    hasSurface = false;
+                                    if (hasEglSurface(session)) {
+                                        violations.incrementAndGet();
+                                    }
+                                }
+                                break;
+                            case 2:
+                                session.onPause();
+                                break;
+                            case 3:
+                                session.onResume();
+                                break;
+                            case 4:
+                                session.onWindowResize(720 + random.nextInt(2) * 360, 1280 + random.nextInt(2) * 640);
+                                break;
+                            case 5:
+                                session.requestRender();
+                                break;
+                        }
+                        // Give the render thread a chance to act on some of it, even on one core.
+                        Thread.yield();
+                    }
+                    // Leave the engine visible so it still draws.
+                    if (!hasSurface) {
+                        session.surfaceCreated(null);
+                    }
+                    session.onResume();
+                }
+            };
+            drivers[i].start();
+        }
+
+        start.countDown();
+        for (Thread driver : drivers) {
+            driver.join(TIMEOUT_MILLIS);
+            assertFalse("engine thread stuck", driver.isAlive());
+        }
+        assertEquals("EGL surface left behind by surfaceDestroyed", 0, violations.get());
+
+        for (int i = 0; i < 2; i++) {
+            int frames = renderers[i].mFrames.get();
+            waitForFrames(renderers[i].mFrames, frames + 1);
+        }
+
+        long wakeRequests = 0;
+        long frames = 0;
+        for (int i = 0; i < 2; i++) {
+            RenderSession session = sessions[i];
+            // Every operation, and the two that leave the engine visible, asks for at most one
+            // wakeup and one move between states.
+            assertTrue("wake requests", session.getWakeRequestCount() <= OPERATIONS_PER_ENGINE + 2);
+            assertTrue("transitions", session.getStateTransitionCount() <= OPERATIONS_PER_ENGINE + 2);
+            // Acted on without waiting for a frame, let alone a slow one.
+            assertTrue("transition p99", session.getFrameMetrics().getPercentileNanos(FrameMetrics.PHASE_STATE, 99)
+                    < MAX_TRANSITION_NANOS);
+            wakeRequests += session.getWakeRequestCount();
+            frames += renderers[i].mFrames.get();
+        }
+        // The thread only wakes for a request or for a frame that is due, a wakeup that finds
+        // nothing to do comes from one of those having been dealt with already.
+        long spurious = sessions[0].getSpuriousWakeupCount();
+        assertTrue("spurious wakeups", spurious <= sessions[0].getWakeupCount());
+        assertTrue("spurious wakeups", spurious <= wakeRequests + frames);
+
+        for (RenderSession session : sessions) {
+            assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+            assertEquals(RenderSession.STATE_EXITED, session.getState());
+        }
+        waitForContextRelease(mEgl);
+        assertEquals(0, mEgl.getLiveSurfaceCount());
+        assertFalse("EGL used from more than one thread", mEgl.wasCalledFromSeveralThreads());
+        for (CountingRenderer renderer : renderers) {
+            assertEquals("renderer called without a current surface", 0, renderer.mMisplacedCalls.get());
+        }
+    }
+
+    @Test
+    public void surfaceDestroyedGivesUpOnASlowFrame() throws Exception {
+        CountingRenderer renderer = new CountingRenderer();
+        RenderSession session = newSession(renderer);
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        waitForFrames(renderer.mFrames, 1);
+
+        renderer.mFrameSleepMillis = 1500;
+        session.requestRender();
+        while (!renderer.mInFrame) {
+            Thread.sleep(1);
+        }
+        long startNanos = System.nanoTime();
+        session.surfaceDestroyed();
+        long blockedMillis = (System.nanoTime() - startNanos) / 1000000;
+        assertTrue("blocked for " + blockedMillis + "ms", blockedMillis < 1000);
+        assertEquals(1, session.getHandoffTimeoutCount());
+        assertTrue(session.getMaxBlockedNanos() > 0);
+
+        // The render thread lets go of the surface once the frame is done.
+        renderer.mFrameSleepMillis = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (hasEglSurface(session) || mEgl.getLiveSurfaceCount() > 0) {
+            assertTrue("EGL surface never released", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        // The context already went with the surface, so wait for the thread itself to let go of
+        // the session, or the next test could attach to it while it still runs on this fake EGL.
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    @Test
+    public void exitingRendererReleasesItsResourcesInTheSharedContext() throws Exception {
+        CountingRenderer staying = new CountingRenderer();
+        CountingRenderer leaving = new CountingRenderer();
+        RenderSession stayingSession = newSession(staying);
+        RenderSession leavingSession = newSession(leaving);
+        stayingSession.attach();
+        leavingSession.attach();
+        for (RenderSession session : new RenderSession[]{stayingSession, leavingSession}) {
+            session.surfaceCreated(null);
+            session.onWindowResize(1080, 1920);
+        }
+        waitForFrames(staying.mFrames, 1);
+        waitForFrames(leaving.mFrames, 1);
+
+        leavingSession.surfaceDestroyed();
+        assertTrue(leavingSession.requestExitAndWait(TIMEOUT_MILLIS));
+        assertEquals(1, leaving.mReleases.get());
+        assertEquals(1, mEgl.getLiveContextCount());
+        assertEquals(0, leaving.mMisplacedCalls.get());
+
+        // The context is still the same one for the engine that stayed.
+        int frames = staying.mFrames.get();
+        stayingSession.requestRender();
+        waitForFrames(staying.mFrames, frames + 1);
+        assertEquals(1, mEgl.getCreatedContextCount());
+
+        assertTrue(stayingSession.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+        assertEquals(1, staying.mReleases.get());
+    }
+
+    @Test
+    public void inputDoesNotWakeAnIdleSession() throws Exception {
+        StaticRenderer renderer = new StaticRenderer();
+        RenderSession session = newSession(renderer);
+        session.setInputHandler(renderer);
+        session.setIdleGovernorEnabled(true);
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (session.getIdleTimeNanos() == 0) {
+            assertTrue("never went idle", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+
+        // A sensor at SENSOR_DELAY_GAME for a second, merged into one sample on the next frame.
+        long wakeRequests = session.getWakeRequestCount();
+        float[] values = new float[3];
+        for (int i = 0; i < 50; i++) {
+            session.queueInput(InputEvent.TYPE_SENSOR, 3, 0, false, System.nanoTime(), values, 3);
+        }
+        Thread.sleep(50);
+        assertEquals(wakeRequests, session.getWakeRequestCount());
+        assertEquals(0, renderer.mInputEvents.get());
+        assertEquals(0, session.getIdleWakeCount());
+
+        int frames = renderer.mFrames.get();
+        session.invalidateScene();
+        waitForFrames(renderer.mFrames, frames + 1);
+        assertEquals(1, renderer.mInputEvents.get());
+        assertEquals(1, session.getIdleWakeCount());
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    private static boolean hasEglSurface(RenderSession session) {
+        synchronized (GLThread.sGLThreadManager) {
+            return session.mHaveEglSurface;
+        }
+    }
+
+    private static class StaticRenderer implements GLWallpaperService.SceneRenderer,
+            GLWallpaperService.InputHandler {
+        final AtomicInteger mFrames = new AtomicInteger();
+        final AtomicInteger mInputEvents = new AtomicInteger();
+
+        @Override
+        public void setSceneInvalidator(GLWallpaperService.SceneInvalidator invalidator) {
+        }
+
+        @Override
+        public boolean isAnimating() {
+            return false;
+        }
+
+        @Override
+        public void onInputEvent(InputEvent event) {
+            mInputEvents.incrementAndGet();
+        }
+
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+            mFrames.incrementAndGet();
+        }
+    }
+
+    private class CountingRenderer implements GLSurfaceView.Renderer, GLWallpaperService.GLResourceOwner {
+        final AtomicInteger mFrames = new AtomicInteger();
+        final AtomicInteger mMisplacedCalls = new AtomicInteger();
+        final AtomicInteger mReleases = new AtomicInteger();
+        volatile long mFrameSleepMillis;
+        volatile boolean mInFrame;
+
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+            check();
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+            check();
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+            check();
+            mInFrame = true;
+            try {
+                if (mFrameSleepMillis > 0) {
+                    Thread.sleep(mFrameSleepMillis);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mInFrame = false;
+            mFrames.incrementAndGet();
+        }
+
+        @Override
+        public void releaseGLResources() {
+            check();
+            mReleases.incrementAndGet();
+        }
+
+        private void check() {
+            if (!mEgl.isCurrent()) {
+                mMisplacedCalls.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLSurfaceView;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * What the tests running sessions on the shared GLThread over a {@link FakeEgl} have in common.
+ */
+final class GLThreadTests {
+    static final long TIMEOUT_MILLIS = 10000;
+
+    private GLThreadTests() {
+    }
+
+    /**
+     * A session with the fake EGL's config and the default context and surface factories.
+     */
+    static RenderSession newSession(GLSurfaceView.Renderer renderer) {
+        return new RenderSession(renderer, new FakeEgl.ConfigChooser(), new DefaultContextFactory(),
+                new DefaultWindowSurfaceFactory(), null);
+    }
+
+    /**
+     * Waits until a renderer's frame counter has reached frames.
+     */
+    static void waitForFrames(AtomicInteger frameCounter, int frames) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (frameCounter.get() < frames) {
+            assertTrue("no frame drawn", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * The thread releases the context on its way out, after the last session has been told it
+     * exited.
+     */
+    static void waitForContextRelease(FakeEgl egl) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (egl.getLiveContextCount() > 0) {
+            assertTrue("context not released", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
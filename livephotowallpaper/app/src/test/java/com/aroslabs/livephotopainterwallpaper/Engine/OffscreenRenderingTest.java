@@ -0,0 +1,154 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLSurfaceView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import static com.aroslabs.livephotopainterwallpaper.Engine.GLThreadTests.*;
+import static org.junit.Assert.*;
+
+/**
+ * Runs offscreen jobs headless, with the fake EGL standing in for the GPU and no window surface.
+ */
+public class OffscreenRenderingTest {
+
+    private FakeEgl mEgl;
+
+    @Before
+    public void setUp() {
+        mEgl = new FakeEgl();
+        GLThread.sGLThreadManager.setEgl(mEgl);
+    }
+
+    @After
+    public void tearDown() {
+        GLThread.sGLThreadManager.setEgl(null);
+    }
+
+    @Test
+    public void jobRunsInAPbufferWithoutAWindow() throws Exception {
+        RecordingRenderer renderer = new RecordingRenderer();
+        RenderSession session = newSession(renderer);
+        session.attach();
+
+        SlicedJob job = new SlicedJob(3);
+        session.queueOffscreenJob(job);
+        job.waitUntilDone();
+
+        assertEquals(3, job.mSlices.get());
+        assertEquals(0, job.mMisplacedSlices.get());
+        assertEquals(1, mEgl.getCreatedPbufferCount());
+        assertEquals("more than the pbuffer created", 1, mEgl.getCreatedSurfaceCount());
+        assertEquals("renderer drawn without a window", 0, renderer.mCalls.get());
+
+        // Nobody shows anything and the job is done, so the context goes.
+        waitForContextRelease(mEgl);
+        assertEquals(3, session.getOffscreenSliceCount());
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void surfacelessContextNeedsNoSurfaceAtAll() throws Exception {
+        mEgl.setExtensions("EGL_KHR_fence_sync EGL_KHR_surfaceless_context");
+        RenderSession session = newSession(new RecordingRenderer());
+        session.attach();
+
+        SlicedJob job = new SlicedJob(2);
+        session.queueOffscreenJob(job);
+        job.waitUntilDone();
+
+        assertEquals(0, job.mMisplacedSlices.get());
+        assertEquals(0, mEgl.getCreatedSurfaceCount());
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    @Test
+    public void windowComesUpAfterAJobInTheSameContext() throws Exception {
+        RecordingRenderer renderer = new RecordingRenderer();
+        RenderSession session = newSession(renderer);
+        session.attach();
+
+        SlicedJob job = new SlicedJob(1);
+        session.queueOffscreenJob(job);
+        SlicedJob holder = new SlicedJob(Integer.MAX_VALUE);
+        // Keeps the context alive until the window is up.
+        session.queueOffscreenJob(holder);
+        job.waitUntilDone();
+
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (renderer.mFrames.get() == 0) {
+            assertTrue("no frame drawn", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(1, renderer.mSurfaceCreatedCount.get());
+        assertEquals(1, mEgl.getCreatedContextCount());
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    private class SlicedJob implements GLWallpaperService.OffscreenJob {
+        private final int mSliceCount;
+        final AtomicInteger mSlices = new AtomicInteger();
+        final AtomicInteger mMisplacedSlices = new AtomicInteger();
+        private volatile boolean mDone;
+
+        SlicedJob(int sliceCount) {
+            mSliceCount = sliceCount;
+        }
+
+        @Override
+        public boolean runOffscreen(GL10 gl) {
+            if (!mEgl.isContextCurrent()) {
+                mMisplacedSlices.incrementAndGet();
+            }
+            mDone = mSlices.incrementAndGet() >= mSliceCount;
+            if (!mDone) {
+                Thread.yield();
+            }
+            return mDone;
+        }
+
+        void waitUntilDone() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+            while (!mDone) {
+                assertTrue("job not finished", System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private class RecordingRenderer implements GLSurfaceView.Renderer {
+        final AtomicInteger mCalls = new AtomicInteger();
+        final AtomicInteger mSurfaceCreatedCount = new AtomicInteger();
+        final AtomicInteger mFrames = new AtomicInteger();
+
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+            mCalls.incrementAndGet();
+            mSurfaceCreatedCount.incrementAndGet();
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+            mCalls.incrementAndGet();
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+            mCalls.incrementAndGet();
+            mFrames.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The quad's vertices only going to the GPU when they change, with the host's do-nothing GLES20.
+ */
+public class QuadGeometryTest {
+
+    private static final float[] POSITIONS = {-1, -1, 1, -1, -1, 1, 1, 1};
+    private static final float[] TEXTURE_COORDS = {0, 0, 1, 0, 0, 1, 1, 1};
+
+    @Test
+    public void verticesAreUploadedOnlyWhenChanged() {
+        GLResourceRegistry registry = new GLResourceRegistry();
+        QuadGeometry quad = registry.registerQuad(POSITIONS, TEXTURE_COORDS);
+        assertEquals(1, quad.getUploadCount());
+
+        for (int i = 0; i < 100; i++) {
+            quad.setPositions(POSITIONS.clone());
+            quad.bind(0, 1);
+            quad.draw();
+            quad.unbind();
+        }
+        assertEquals(1, quad.getUploadCount());
+
+        quad.setPositions(new float[] {-0.5f, -1, 0.5f, -1, -0.5f, 1, 0.5f, 1});
+        quad.bind(0, 1);
+        quad.bind(0, 1);
+        assertEquals(2, quad.getUploadCount());
+
+        // A new context gets the changed vertices back.
+        registry.rebuild();
+        assertEquals(3, quad.getUploadCount());
+        assertEquals(64, registry.getRetainedBytes());
+    }
+}
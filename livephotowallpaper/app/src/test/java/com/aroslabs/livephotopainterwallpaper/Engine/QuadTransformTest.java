@@ -0,0 +1,197 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * The transform against the android.opengl.Matrix calls the renderer made every frame before.
+ * android.opengl.Matrix does nothing on the host, so its orthoM, rotateM, translateM and
+ * multiplyMM are redone here the way the platform does them.
+ */
+public class QuadTransformTest {
+
+    private static final float[] GPU_IMAGE_QUAD = {
+            -1.0f, 1.0f, 0f, 0f,
+            1.0f, 1.0f, 0f, 0f,
+            -1.0f, -1.0f, 0f, 0f,
+            1.0f, -1.0f, 0f, 0f,
+    };
+    // left, top, right, bottom
+    private static final float[][] CROPS = {
+            {0, 0, 1, 1},
+            {0.125f, 0, 0.875f, 1},
+            {0, 0.2f, 1, 0.7f},
+    };
+    private static final int[] PRE_ROTATIONS = {0, 90, 180, 270};
+    private static final float[] ROTATIONS = {0, 90, 33.5f, -120};
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void matrixMatchesTheFrameByFrameMath() {
+        QuadTransform transform = new QuadTransform();
+        for (float[] crop : CROPS) {
+            for (int preRotation : PRE_ROTATIONS) {
+                for (float rotation : ROTATIONS) {
+                    transform.setCrop(crop[0], crop[1], crop[2], crop[3]);
+                    transform.setPreRotation(preRotation);
+                    transform.setRotation(rotation);
+                    assertArrayEquals(Arrays.toString(crop) + " " + preRotation + " " + rotation,
+                            offscreenMatrix(crop, preRotation, rotation), transform.getMatrix(), EPSILON);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void positionsMatchTheFrameByFrameMath() {
+        QuadTransform transform = new QuadTransform();
+        FloatBuffer positions = ByteBuffer.allocateDirect(8 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        float[] written = new float[8];
+        for (float[] crop : CROPS) {
+            transform.setCrop(crop[0], crop[1], crop[2], crop[3]);
+            assertTrue(transform.updatePositions(GPU_IMAGE_QUAD, positions));
+            positions.get(written).position(0);
+            assertArrayEquals(Arrays.toString(crop), filterPositions(crop), written, EPSILON);
+        }
+    }
+
+    @Test
+    public void onlyChangesAreWorkedOutAndUploaded() {
+        QuadTransform transform = new QuadTransform();
+        FloatBuffer positions = ByteBuffer.allocateDirect(8 * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        transform.setPreRotation(90);
+        transform.setRotation(90);
+        transform.upload(3);
+        transform.updatePositions(GPU_IMAGE_QUAD, positions);
+        assertEquals(2, transform.getComputeCount());
+        assertEquals(1, transform.getUploadCount());
+
+        // Frames with nothing changed, the same values set again included.
+        for (int i = 0; i < 100; i++) {
+            transform.setCrop(0, 0, 1, 1);
+            transform.setRotation(90);
+            transform.upload(3);
+            assertFalse(transform.updatePositions(GPU_IMAGE_QUAD, positions));
+        }
+        assertEquals(2, transform.getComputeCount());
+        assertEquals(1, transform.getUploadCount());
+
+        // Only the matrix depends on the rotation.
+        transform.setRotation(45);
+        transform.upload(3);
+        assertFalse(transform.updatePositions(GPU_IMAGE_QUAD, positions));
+        assertEquals(3, transform.getComputeCount());
+        assertEquals(2, transform.getUploadCount());
+
+        // A new program needs the uniform again, not the math.
+        transform.invalidateUpload();
+        transform.upload(3);
+        assertEquals(3, transform.getComputeCount());
+        assertEquals(3, transform.getUploadCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void preRotationIsAQuarterTurn() {
+        new QuadTransform().setPreRotation(45);
+    }
+
+    /*
+     * The renderer's offscreen branch, call for call.
+     */
+    private static float[] offscreenMatrix(float[] crop, int preRotate, float rotation) {
+        float left = crop[0], top = crop[1], right = crop[2], bottom = crop[3];
+        float[] projectionMatrix = new float[16];
+        if (preRotate == 90 || preRotate == 270) {
+            orthoM(projectionMatrix, top, bottom, right, left, 0, 1);
+        } else {
+            orthoM(projectionMatrix, left, right, bottom, top, 0, 1);
+        }
+        if (preRotate != 0) {
+            float[] preRotationMatrix = identity();
+            rotateM(preRotationMatrix, -preRotate);
+            // multiplyMM into one of its inputs is undefined, the product is what was meant.
+            projectionMatrix = multiplyMM(preRotationMatrix, projectionMatrix);
+        }
+        float[] rotationMatrix = identity();
+        translateM(rotationMatrix, 0.5f, 0.5f, 0f);
+        rotateM(rotationMatrix, rotation);
+        translateM(rotationMatrix, -0.5f, -0.5f, 0f);
+        return multiplyMM(projectionMatrix, rotationMatrix);
+    }
+
+    /*
+     * The renderer's filter branch.
+     */
+    private static float[] filterPositions(float[] crop) {
+        float[] mvpMatrix = new float[16];
+        orthoM(mvpMatrix, crop[0], crop[2], crop[3], crop[1], 0, 1);
+        float[] positionMatrix = multiplyMM(mvpMatrix, GPU_IMAGE_QUAD);
+        float[] positions = new float[8];
+        for (int i = 0; i < 4; i++) {
+            positions[i * 2] = positionMatrix[i * 4];
+            positions[i * 2 + 1] = positionMatrix[i * 4 + 1];
+        }
+        return positions;
+    }
+
+    private static float[] identity() {
+        float[] m = new float[16];
+        for (int i = 0; i < 16; i += 5) {
+            m[i] = 1f;
+        }
+        return m;
+    }
+
+    private static void orthoM(float[] m, float left, float right, float bottom, float top, float near, float far) {
+        float rWidth = 1.0f / (right - left);
+        float rHeight = 1.0f / (top - bottom);
+        float rDepth = 1.0f / (far - near);
+        m[0] = 2.0f * rWidth;
+        m[5] = 2.0f * rHeight;
+        m[10] = -2.0f * rDepth;
+        m[12] = -(right + left) * rWidth;
+        m[13] = -(top + bottom) * rHeight;
+        m[14] = -(far + near) * rDepth;
+        m[15] = 1.0f;
+    }
+
+    private static void rotateM(float[] m, float a) {
+        float[] r = new float[16];
+        a *= (float) (Math.PI / 180.0f);
+        float s = (float) Math.sin(a);
+        float c = (float) Math.cos(a);
+        r[0] = c;
+        r[5] = c;
+        r[1] = s;
+        r[4] = -s;
+        r[10] = 1f;
+        r[15] = 1f;
+        System.arraycopy(multiplyMM(m, r), 0, m, 0, 16);
+    }
+
+    private static void translateM(float[] m, float x, float y, float z) {
+        for (int i = 0; i < 4; i++) {
+            m[12 + i] += m[i] * x + m[4 + i] * y + m[8 + i] * z;
+        }
+    }
+
+    private static float[] multiplyMM(float[] lhs, float[] rhs) {
+        float[] result = new float[16];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                float sum = 0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[k * 4 + j] * rhs[i * 4 + k];
+                }
+                result[i * 4 + j] = sum;
+            }
+        }
+        return result;
+    }
+}
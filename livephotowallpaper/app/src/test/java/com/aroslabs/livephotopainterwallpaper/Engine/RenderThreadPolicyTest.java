@@ -0,0 +1,82 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.opengl.GLSurfaceView;
+import android.os.Process;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import static com.aroslabs.livephotopainterwallpaper.Engine.GLThreadTests.*;
+import static org.junit.Assert.*;
+
+/**
+ * The render thread taking its priority from the policies of the sessions, and giving it up while
+ * nothing is visible.
+ */
+public class RenderThreadPolicyTest {
+
+    private FakeEgl mEgl;
+
+    @Before
+    public void setUp() {
+        mEgl = new FakeEgl();
+        GLThread.sGLThreadManager.setEgl(mEgl);
+    }
+
+    @After
+    public void tearDown() {
+        GLThread.sGLThreadManager.setEgl(null);
+    }
+
+    @Test
+    public void threadIsDemotedWhileHidden() throws Exception {
+        RenderSession session = newSession(new IdleRenderer());
+        session.setRenderThreadPolicy(new RenderThreadPolicy(Process.THREAD_PRIORITY_URGENT_DISPLAY,
+                Process.THREAD_PRIORITY_LOWEST, RenderThreadPolicy.CORES_BIG));
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        waitForPriority(session, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+
+        session.onPause();
+        waitForPriority(session, Process.THREAD_PRIORITY_LOWEST);
+        session.onResume();
+        waitForPriority(session, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        // Unknown topology on the host, every core counts as the preferred one.
+        assertEquals(1f, session.getPreferredCoreFrameFraction(), 0f);
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void priorityOutOfRangeIsRejected() {
+        new RenderThreadPolicy(Process.THREAD_PRIORITY_DISPLAY, Process.THREAD_PRIORITY_LOWEST + 1,
+                RenderThreadPolicy.CORES_ANY);
+    }
+
+    private void waitForPriority(RenderSession session, int priority) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (session.getRenderThreadPriority() != priority) {
+            assertTrue("priority not applied", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static class IdleRenderer implements GLSurfaceView.Renderer {
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+        }
+    }
+}
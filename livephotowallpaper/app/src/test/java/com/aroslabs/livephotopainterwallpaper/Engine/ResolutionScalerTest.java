@@ -0,0 +1,68 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The resolution scaler against a frame cost that goes with the pixel count, like a full screen
+ * filter pass.
+ */
+public class ResolutionScalerTest {
+
+    private static final long BUDGET_NANOS = 16666667;
+
+    @Test
+    public void heavyFramesScaleDownAndSettle() {
+        ResolutionScaler scaler = new ResolutionScaler();
+        // Twice the budget at full resolution.
+        long fullNanos = 2 * BUDGET_NANOS;
+        run(scaler, fullNanos, 20 * ResolutionScaler.WINDOW_FRAMES);
+
+        float scale = scaler.getScale();
+        assertTrue("still at " + scale, scale < 1f);
+        assertTrue(scale >= ResolutionScaler.DEFAULT_MIN_SCALE);
+        assertTrue(cost(fullNanos, scale) <= BUDGET_NANOS * ResolutionScaler.DOWNSCALE_LOAD);
+        // Settled, no more flipping between two steps.
+        long changes = scaler.getScaleChangeCount();
+        run(scaler, fullNanos, 20 * ResolutionScaler.WINDOW_FRAMES);
+        assertEquals(changes, scaler.getScaleChangeCount());
+        assertEquals(scale, scaler.getScale(), 0f);
+    }
+
+    @Test
+    public void lightFramesScaleBackUp() {
+        ResolutionScaler scaler = new ResolutionScaler();
+        run(scaler, 4 * BUDGET_NANOS, 4 * ResolutionScaler.WINDOW_FRAMES);
+        assertEquals(ResolutionScaler.DEFAULT_MIN_SCALE, scaler.getScale(), 0f);
+
+        run(scaler, BUDGET_NANOS / 4, 20 * ResolutionScaler.WINDOW_FRAMES);
+        assertEquals(1f, scaler.getScale(), 0f);
+        assertEquals(1080, scaler.scale(1080));
+    }
+
+    @Test
+    public void scaleStaysInRange() {
+        ResolutionScaler scaler = new ResolutionScaler();
+        scaler.setScaleRange(0.75f, 0.875f);
+        run(scaler, BUDGET_NANOS / 4, 4 * ResolutionScaler.WINDOW_FRAMES);
+        assertEquals(0.875f, scaler.getScale(), 0f);
+        run(scaler, 10 * BUDGET_NANOS, 4 * ResolutionScaler.WINDOW_FRAMES);
+        assertEquals(0.75f, scaler.getScale(), 0f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scaleAboveWindowResolutionIsRejected() {
+        new ResolutionScaler().setScaleRange(0.5f, 1.5f);
+    }
+
+    private static void run(ResolutionScaler scaler, long fullNanos, int frames) {
+        for (int i = 0; i < frames; i++) {
+            scaler.recordFrame(cost(fullNanos, scaler.getScale()), BUDGET_NANOS);
+        }
+    }
+
+    private static long cost(long fullNanos, float scale) {
+        return (long) (fullNanos * scale * scale);
+    }
+}
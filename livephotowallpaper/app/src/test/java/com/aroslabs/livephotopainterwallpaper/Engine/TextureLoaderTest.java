@@ -0,0 +1,202 @@
+package com.aroslabs.livephotopainterwallpaper.Engine;
+
+import android.graphics.Bitmap;
+import android.opengl.GLSurfaceView;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+import static com.aroslabs.livephotopainterwallpaper.Engine.GLThreadTests.*;
+import static org.junit.Assert.*;
+
+/**
+ * The texture loader thread and its shared context, with the fake EGL. There are no real bitmaps on
+ * the host, so the sources here hand back none and the uploads end up failed.
+ */
+public class TextureLoaderTest {
+
+    private FakeEgl mEgl;
+
+    @Before
+    public void setUp() {
+        mEgl = new FakeEgl();
+        GLThread.sGLThreadManager.setEgl(mEgl);
+    }
+
+    @After
+    public void tearDown() {
+        GLThread.sGLThreadManager.setEgl(null);
+    }
+
+    @Test
+    public void slowLoadDoesNotHoldUpFrames() throws Exception {
+        BlockingSource source = new BlockingSource();
+        LoadingRenderer renderer = new LoadingRenderer(source);
+        RenderSession session = newSession(renderer);
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+
+        assertTrue("source not called", source.mStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        int frames = renderer.mFrames.get();
+        waitForFrames(renderer.mFrames, frames + 3);
+        assertNotNull(renderer.mUpload);
+        assertFalse(renderer.mUpload.isFailed());
+        assertNotSame(renderer.mRenderThread, source.mThread);
+        assertFalse("source called with a context current", source.mContextCurrent);
+        assertEquals(1, mEgl.getSharedContextCount());
+
+        source.mRelease.countDown();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!renderer.mUploadFailed) {
+            assertTrue("upload not finished", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(0, renderer.mMisplacedCalls.get());
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    @Test
+    public void loaderContextGoesWithTheRenderContext() throws Exception {
+        BlockingSource source = new BlockingSource();
+        LoadingRenderer renderer = new LoadingRenderer(source);
+        RenderSession session = newSession(renderer);
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+        assertTrue("source not called", source.mStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+
+        // The window goes while the source is still busy, and the context with it.
+        session.surfaceDestroyed();
+        waitForContextRelease(mEgl);
+        assertTrue(renderer.mUpload.isFailed());
+        assertEquals(0, mEgl.getLiveSurfaceCount());
+
+        source.mRelease.countDown();
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void throwingSourceFailsOnlyItsUpload() throws Exception {
+        final LoadingRenderer renderer = new LoadingRenderer(new TextureLoader.Source() {
+            @Override
+            public Bitmap load() {
+                throw new OutOfMemoryError("decoding");
+            }
+        });
+        RenderSession session = newSession(renderer);
+        session.attach();
+        session.surfaceCreated(null);
+        session.onWindowResize(1080, 1920);
+
+        // Told without having to draw to find out.
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (renderer.mInvalidations.get() == 0) {
+            assertTrue("upload never finished", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(renderer.mUpload.isFailed());
+
+        // The loader thread is still there for the next photo.
+        final BlockingSource source = new BlockingSource();
+        session.queueEvent(new Runnable() {
+            @Override
+            public void run() {
+                renderer.load(source);
+            }
+        });
+        assertTrue("loader thread gone", source.mStarted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        source.mRelease.countDown();
+
+        assertTrue(session.requestExitAndWait(TIMEOUT_MILLIS));
+        waitForContextRelease(mEgl);
+    }
+
+    private class BlockingSource implements TextureLoader.Source {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        volatile Thread mThread;
+        volatile boolean mContextCurrent;
+
+        @Override
+        public Bitmap load() {
+            mThread = Thread.currentThread();
+            mContextCurrent = mEgl.isContextCurrent();
+            mStarted.countDown();
+            try {
+                mRelease.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
+    /*
+     * Starts one load from onSurfaceChanged and polls it every frame, like LivePhotoPainterRenderer.
+     */
+    private class LoadingRenderer implements GLSurfaceView.Renderer, GLWallpaperService.TextureLoaderListener {
+        private final TextureLoader.Source mSource;
+        private TextureLoader mLoader;
+        volatile TextureLoader.Upload mUpload;
+        volatile boolean mUploadFailed;
+        volatile Thread mRenderThread;
+        final AtomicInteger mFrames = new AtomicInteger();
+        final AtomicInteger mMisplacedCalls = new AtomicInteger();
+        final AtomicInteger mInvalidations = new AtomicInteger();
+        private final GLWallpaperService.SceneInvalidator mInvalidator = new GLWallpaperService.SceneInvalidator() {
+            @Override
+            public void invalidateScene() {
+                mInvalidations.incrementAndGet();
+            }
+        };
+
+        LoadingRenderer(TextureLoader.Source source) {
+            mSource = source;
+        }
+
+        @Override
+        public void onTextureLoaderChanged(TextureLoader loader) {
+            mLoader = loader;
+        }
+
+        @Override
+        public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+            mRenderThread = Thread.currentThread();
+        }
+
+        @Override
+        public void onSurfaceChanged(GL10 gl, int width, int height) {
+            if (mUpload == null) {
+                load(mSource);
+            }
+        }
+
+        void load(TextureLoader.Source source) {
+            mUploadFailed = false;
+            mUpload = mLoader.load(source, mInvalidator);
+        }
+
+        @Override
+        public void onDrawFrame(GL10 gl) {
+            if (!mEgl.isCurrent()) {
+                mMisplacedCalls.incrementAndGet();
+            }
+            if (mUpload != null && !mUploadFailed) {
+                assertFalse(mUpload.isReady());
+                mUploadFailed = mUpload.isFailed();
+            }
+            mFrames.incrementAndGet();
+        }
+    }
+}
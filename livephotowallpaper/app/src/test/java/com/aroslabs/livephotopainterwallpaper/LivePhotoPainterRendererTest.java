@@ -0,0 +1,120 @@
+package com.aroslabs.livephotopainterwallpaper;
+
+import android.graphics.RectF;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static com.aroslabs.livephotopainterwallpaper.Engine.FrameBufferTests.*;
+import static org.junit.Assert.*;
+
+/**
+ * Drawing the photo in the steady state, with the host's do-nothing GLES20 and Matrix standing in
+ * for the GPU.
+ */
+public class LivePhotoPainterRendererTest {
+
+    private static final int WARMUP_FRAMES = 1000;
+    private static final int FRAMES = 10000;
+    // Neither is a filter group, whose output is never kept.
+    private static final int KUWAHARA_FILTER = 0;
+    private static final int TOON_FILTER = 2;
+
+    @After
+    public void tearDown() {
+        resetFramebufferStatus();
+    }
+
+    @Test
+    public void drawingAFrameAllocatesNothing() {
+        completeFramebuffers();
+        LivePhotoPainterRenderer renderer = newRenderer();
+        assertAllocatesNothing(renderer);
+        // Every frame was a blit of the one pass.
+        assertEquals(1, renderer.getFilterPassCount());
+    }
+
+    @Test
+    public void drawingAFrameWithoutAFramebufferAllocatesNothing() {
+        incompleteFramebuffers();
+        LivePhotoPainterRenderer renderer = newRenderer();
+        assertAllocatesNothing(renderer);
+        assertEquals(WARMUP_FRAMES + FRAMES, renderer.getFilterPassCount());
+    }
+
+    @Test
+    public void filtersOnceUntilWhatItDrawsChanges() {
+        completeFramebuffers();
+        LivePhotoPainterRenderer renderer = newRenderer();
+        drawFrames(renderer, 10);
+        assertEquals(1, renderer.getFilterPassCount());
+
+        renderer.setViewSize(1920, 1080);
+        drawFrames(renderer, 10);
+        assertEquals(2, renderer.getFilterPassCount());
+
+        renderer.setCrop(new RectF(0, 0, 0.5f, 1));
+        drawFrames(renderer, 10);
+        assertEquals(3, renderer.getFilterPassCount());
+
+        renderer.setFilterIndex(TOON_FILTER);
+        drawFrames(renderer, 10);
+        assertEquals(4, renderer.getFilterPassCount());
+    }
+
+    @Test
+    public void filtersEveryFrameWithoutAFramebufferToKeepTheOutputIn() {
+        incompleteFramebuffers();
+        LivePhotoPainterRenderer renderer = newRenderer();
+        drawFrames(renderer, 10);
+        assertEquals(10, renderer.getFilterPassCount());
+    }
+
+    @Test
+    public void filtersEveryFrameWhenTheOutputIsNotKept() {
+        completeFramebuffers();
+        LivePhotoPainterRenderer renderer = newRenderer();
+        renderer.setUseOffscreenBuffer(false);
+        drawFrames(renderer, 10);
+        assertEquals(10, renderer.getFilterPassCount());
+        assertFalse(renderer.getUseOffscreenBuffer());
+
+        renderer.setUseOffscreenBuffer(true);
+        drawFrames(renderer, 10);
+        assertEquals(11, renderer.getFilterPassCount());
+    }
+
+    private static LivePhotoPainterRenderer newRenderer() {
+        LivePhotoPainterRenderer renderer = new LivePhotoPainterRenderer(null);
+        renderer.onSurfaceCreated(null, null);
+        renderer.setViewSize(1080, 1920);
+        renderer.setFilterIndex(KUWAHARA_FILTER);
+        return renderer;
+    }
+
+    private static void drawFrames(LivePhotoPainterRenderer renderer, int frames) {
+        for (int i = 0; i < frames; i++) {
+            renderer.drawPhoto();
+        }
+    }
+
+    private static void assertAllocatesNothing(LivePhotoPainterRenderer renderer) {
+        drawFrames(renderer, WARMUP_FRAMES);
+
+        // What reading the counter allocates itself.
+        long start = allocatedBytes();
+        long overhead = allocatedBytes() - start;
+        start = allocatedBytes();
+        drawFrames(renderer, FRAMES);
+        long allocated = allocatedBytes() - start - overhead;
+        // Any allocation per frame would be at least one object header per frame.
+        assertTrue(allocated + " bytes over " + FRAMES + " frames", allocated < FRAMES);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,148 @@
+package com.aroslabs.livewallpaperengine;
+
+import android.opengl.GLES20;
+
+/**
+ * A shadow copy of the GL state a renderer sets every frame, the program, capabilities, blend
+ * function, array buffer and enabled attribute arrays, so setting again what is already set costs
+ * nothing. Calls that would change nothing are elided and counted, everything else is issued.
+ *
+ * This is the photo wallpaper's GLStateCache cut down to what this sample draws with: the methods
+ * that are here have the same names and behave the same, the texture, viewport, framebuffer and
+ * vertex array state is left out because the sample never touches it. It is an instance rather
+ * than statics because every engine here has a GLThread and a context of its own, where the photo
+ * wallpaper's engines share one, so each renderer keeps its own cache and calls
+ * {@link #invalidate()} from onSurfaceCreated, with every new context. The cache only knows what
+ * went through it, anything else that changes this state must invalidate it too.
+ */
+class GLStateCache {
+    private static final int UNKNOWN = -1;
+    private static final int MAX_ATTRIBS = 16;
+    private static final int[] CAPABILITIES = {
+            GLES20.GL_BLEND, GLES20.GL_CULL_FACE, GLES20.GL_DEPTH_TEST
+    };
+
+    // 1 enabled, 0 disabled, UNKNOWN before the first call through the cache.
+    private final int[] capabilities = new int[CAPABILITIES.length];
+    private int program;
+    private int blendSource;
+    private int blendDestination;
+    private int arrayBuffer;
+    // Bit per attribute index.
+    private int knownAttribs;
+    private int enabledAttribs;
+
+    private long issuedCount;
+    private long elidedCount;
+
+    GLStateCache() {
+        invalidate();
+    }
+
+    /**
+     * Forgets everything, for a new context.
+     */
+    void invalidate() {
+        for (int i = 0; i < capabilities.length; i++) {
+            capabilities[i] = UNKNOWN;
+        }
+        program = UNKNOWN;
+        blendSource = UNKNOWN;
+        blendDestination = UNKNOWN;
+        arrayBuffer = UNKNOWN;
+        knownAttribs = 0;
+    }
+
+    void useProgram(int program) {
+        if (program == this.program) {
+            elidedCount++;
+            return;
+        }
+        GLES20.glUseProgram(program);
+        this.program = program;
+        issuedCount++;
+    }
+
+    void enable(int capability) {
+        setCapability(capability, true);
+    }
+
+    void disable(int capability) {
+        setCapability(capability, false);
+    }
+
+    private void setCapability(int capability, boolean enabled) {
+        int index = -1;
+        for (int i = 0; i < CAPABILITIES.length; i++) {
+            if (CAPABILITIES[i] == capability) {
+                index = i;
+            }
+        }
+        int state = enabled ? 1 : 0;
+        if (index >= 0 && capabilities[index] == state) {
+            elidedCount++;
+            return;
+        }
+        if (enabled) {
+            GLES20.glEnable(capability);
+        } else {
+            GLES20.glDisable(capability);
+        }
+        if (index >= 0) {
+            capabilities[index] = state;
+        }
+        issuedCount++;
+    }
+
+    void blendFunc(int source, int destination) {
+        if (source == blendSource && destination == blendDestination) {
+            elidedCount++;
+            return;
+        }
+        GLES20.glBlendFunc(source, destination);
+        blendSource = source;
+        blendDestination = destination;
+        issuedCount++;
+    }
+
+    /**
+     * Only GL_ARRAY_BUFFER is cached, other targets are always issued.
+     */
+    void bindBuffer(int target, int buffer) {
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            if (buffer == arrayBuffer) {
+                elidedCount++;
+                return;
+            }
+            arrayBuffer = buffer;
+        }
+        GLES20.glBindBuffer(target, buffer);
+        issuedCount++;
+    }
+
+    void enableVertexAttribArray(int index) {
+        int bit = index >= 0 && index < MAX_ATTRIBS ? 1 << index : 0;
+        if ((knownAttribs & enabledAttribs & bit) != 0) {
+            elidedCount++;
+            return;
+        }
+        GLES20.glEnableVertexAttribArray(index);
+        knownAttribs |= bit;
+        enabledAttribs |= bit;
+        issuedCount++;
+    }
+
+    /**
+     * @return state calls that went to GL so far.
+     */
+    long getIssuedCount() {
+        return issuedCount;
+    }
+
+    /**
+     * @return state calls skipped because they would not have changed anything.
+     */
+    long getElidedCount() {
+        return elidedCount;
+    }
+}
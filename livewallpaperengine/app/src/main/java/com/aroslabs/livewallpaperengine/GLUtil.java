@@ -0,0 +1,178 @@
+package com.aroslabs.livewallpaperengine;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * GL error checking at a process wide level, and program creation. The same as the photo
+ * wallpaper's GLUtil, apart from the package.
+ */
+public class GLUtil {
+
+    private static final String TAG = "GLUtil";
+
+    /*
+     * How much glGetError checking to do. Every glGetError can stall the CPU until the driver has
+     * caught up with the commands queued so far, so by default only the GLThread checks, once per
+     * frame after the swap. That still catches every error (GL keeps the flag until it is read),
+     * it just can't tell which call raised it.
+     */
+    /** No checking at all. */
+    public static final int CHECK_OFF = 0;
+    /** One batched check per frame, errors are logged and counted. */
+    public static final int CHECK_PER_FRAME = 1;
+    /** {@link #checkGlError} checks after the call it names and throws. */
+    public static final int CHECK_PER_CALL = 2;
+    /** Per call, and every checked call is logged. GL10 calls go through GLDebugHelper as well. */
+    public static final int CHECK_TRACE = 3;
+
+    // Stops checkFrameErrors from spinning on a driver that keeps reporting the same error.
+    private static final int MAX_ERRORS_PER_CHECK = 8;
+
+    private static volatile int sCheckLevel = CHECK_PER_FRAME;
+    private static volatile boolean sCheckLevelSet;
+    private static volatile long sErrorCount;
+    private static final ErrorSource GL_ERROR_SOURCE = new ErrorSource() {
+        @Override
+        public int glGetError() {
+            return GLES20.glGetError();
+        }
+    };
+    private static volatile ErrorSource sErrorSource = GL_ERROR_SOURCE;
+
+    interface ErrorSource {
+        int glGetError();
+    }
+
+    /*
+     * Tests read errors from a fake here, null goes back to GLES20.
+     */
+    static void setErrorSource(ErrorSource source) {
+        sErrorSource = source != null ? source : GL_ERROR_SOURCE;
+    }
+
+    /**
+     * Selects how much error checking to do, one of the CHECK_* levels. Process wide, takes effect
+     * with the next check. {@link #CHECK_TRACE} wraps GL10 only in contexts created after this.
+     */
+    public static void setCheckLevel(int level) {
+        if (level < CHECK_OFF || level > CHECK_TRACE) {
+            throw new IllegalArgumentException("level");
+        }
+        sCheckLevel = level;
+        sCheckLevelSet = true;
+    }
+
+    public static int getCheckLevel() {
+        return sCheckLevel;
+    }
+
+    /*
+     * Per call checks for debuggable builds, per frame for release builds, unless a level was set.
+     */
+    static void setDefaultCheckLevel(boolean debuggable) {
+        if (!sCheckLevelSet) {
+            sCheckLevel = debuggable ? CHECK_PER_CALL : CHECK_PER_FRAME;
+        }
+    }
+
+    /**
+     * @return how many GL errors the checks found so far.
+     */
+    public static long getErrorCount() {
+        return sErrorCount;
+    }
+
+    private static int loadShader(int shaderType, String source) {
+        int shader = GLES20.glCreateShader(shaderType);
+        checkGlError("glCreateShader type=" + shaderType);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            Log.e(TAG, "Could not compile shader " + shaderType + ":");
+            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
+            GLES20.glDeleteShader(shader);
+            shader = 0;
+        }
+        return shader;
+    }
+
+    public static int createProgram(String vertexSource, String fragmentSource) {
+        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
+        if (vertexShader == 0) {
+            return 0;
+        }
+        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
+        if (pixelShader == 0) {
+            return 0;
+        }
+        int program = GLES20.glCreateProgram();
+        checkGlError("glCreateProgram");
+        if (program == 0) {
+            Log.e(TAG, "Could not create program");
+        }
+        GLES20.glAttachShader(program, vertexShader);
+        checkGlError("glAttachShader");
+        GLES20.glAttachShader(program, pixelShader);
+        checkGlError("glAttachShader");
+        GLES20.glLinkProgram(program);
+        int[] linkStatus = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+        if (linkStatus[0] != GLES20.GL_TRUE) {
+            Log.e(TAG, "Could not link program: ");
+            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
+            GLES20.glDeleteProgram(program);
+            program = 0;
+        } else {
+            //After program is linked detach and delete to clean up
+            GLES20.glDetachShader(program, vertexShader);
+            GLES20.glDeleteShader(vertexShader);
+            GLES20.glDetachShader(program, pixelShader);
+            GLES20.glDeleteShader(pixelShader);
+        }
+        return program;
+    }
+
+    /**
+     * Checks for an error raised by the call named op, only at {@link #CHECK_PER_CALL} and above.
+     * Below that it costs a field read, leave the calls in place.
+     */
+    public static void checkGlError(String op) {
+        int level = sCheckLevel;
+        if (level < CHECK_PER_CALL) {
+            return;
+        }
+        if (level == CHECK_TRACE) {
+            Log.v(TAG, op);
+        }
+        int error;
+        while ((error = sErrorSource.glGetError()) != GLES20.GL_NO_ERROR) {
+            sErrorCount++;
+            Log.e(TAG, op + ": glError " + error);
+            throw new RuntimeException(op + ": glError " + error);
+        }
+    }
+
+    /**
+     * The batched check, called by the GLThread once per frame. Logs what it finds rather than
+     * throwing, a release build keeps running.
+     *
+     * @return the number of errors found.
+     */
+    public static int checkFrameErrors(String where) {
+        if (sCheckLevel == CHECK_OFF) {
+            return 0;
+        }
+        int count = 0;
+        int error;
+        while (count < MAX_ERRORS_PER_CHECK && (error = sErrorSource.glGetError()) != GLES20.GL_NO_ERROR) {
+            count++;
+            Log.e(TAG, where + ": glError " + error + ", use CHECK_PER_CALL to find the call");
+        }
+        sErrorCount += count;
+        return count;
+    }
+}
+
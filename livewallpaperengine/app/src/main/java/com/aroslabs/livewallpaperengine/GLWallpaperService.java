@@ -16,10 +16,16 @@
 
 package com.aroslabs.livewallpaperengine;
 
+import android.content.pm.ApplicationInfo;
+import android.graphics.Rect;
+import android.opengl.EGL14;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.service.wallpaper.WallpaperService;
 import android.util.Log;
 import android.view.SurfaceHolder;
+import android.view.WindowManager;
 
 import java.io.Writer;
 import java.util.ArrayList;
@@ -117,6 +123,12 @@ public class GLWallpaperService extends WallpaperService {
         }
     }
 
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        GLUtil.setDefaultCheckLevel((getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+    }
+
     @Override
     public Engine onCreateEngine() {
         return new GLEngine();
@@ -125,6 +137,8 @@ public class GLWallpaperService extends WallpaperService {
     public class GLEngine extends Engine {
         public final static int RENDERMODE_WHEN_DIRTY = 0;
         public final static int RENDERMODE_CONTINUOUSLY = 1;
+        public final static int FRAME_PACING_DEADLINE = FramePacer.PACING_DEADLINE;
+        public final static int FRAME_PACING_VSYNC = FramePacer.PACING_VSYNC;
 
         private GLThread mGLThread;
         private GLSurfaceView.EGLConfigChooser mEGLConfigChooser;
@@ -151,6 +165,8 @@ public class GLWallpaperService extends WallpaperService {
         public void onCreate(SurfaceHolder surfaceHolder) {
             super.onCreate(surfaceHolder);
             // Log.d(TAG, "GLEngine.onCreate()");
+            WindowManager windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
+            mGLThread.setDisplayRefreshRate(windowManager.getDefaultDisplay().getRefreshRate());
         }
 
         @Override
@@ -248,11 +264,70 @@ public class GLWallpaperService extends WallpaperService {
             mGLThread.requestRender();
         }
 
+        /**
+         * Caps how often the GLThread draws, e.g. 60, 30, 15 or 1 frames per second.
+         */
+        public void setTargetFrameRate(int framesPerSecond) {
+            mGLThread.setTargetFrameRate(framesPerSecond);
+        }
+
+        public int getTargetFrameRate() {
+            return mGLThread.getTargetFrameRate();
+        }
+
+        /**
+         * @param pacing {@link #FRAME_PACING_DEADLINE} to schedule frames on a plain monotonic
+         *               clock or {@link #FRAME_PACING_VSYNC} to align them to the display refresh.
+         *               Call from the engine's thread, vsync is only sampled while visible in
+         *               {@link #FRAME_PACING_VSYNC}.
+         */
+        public void setFramePacing(int pacing) {
+            mGLThread.setFramePacing(pacing);
+        }
+
+        public int getFramePacing() {
+            return mGLThread.getFramePacing();
+        }
+
+        public long getLateFrameCount() {
+            return mGLThread.getLateFrameCount();
+        }
+
+        public long getDroppedFrameCount() {
+            return mGLThread.getDroppedFrameCount();
+        }
+
+        /**
+         * @return true if the window surface keeps its content across swaps, so the frames of a
+         * {@link DamageReporter} are only redrawn where they changed.
+         */
+        public boolean isSwapPreserved() {
+            return mGLThread.isSwapPreserved();
+        }
+
+        /**
+         * @return the share of window pixels actually redrawn over all frames, 1 without partial
+         * redraws.
+         */
+        public float getRedrawnPixelFraction() {
+            return mGLThread.getRedrawnPixelFraction();
+        }
+
+        /**
+         * @return frames neither drawn nor swapped because a {@link DamageReporter} reported no
+         * damage and the window still showed the last frame.
+         */
+        public long getSkippedFrameCount() {
+            return mGLThread.getSkippedFrameCount();
+        }
+
         public void onPause() {
             mGLThread.onPause();
+            mGLThread.stopVsync();
         }
 
         public void onResume() {
+            mGLThread.startVsync();
             mGLThread.onResume();
         }
 
@@ -275,6 +350,23 @@ public class GLWallpaperService extends WallpaperService {
     @Deprecated
     public interface Renderer extends GLSurfaceView.Renderer {
     }
+
+    /**
+     * A renderer that knows which part of the window its next frame changes. Where the window
+     * surface keeps its content across swaps the frame is scissored to that part, the rest of the
+     * last frame stays on screen.
+     */
+    public interface DamageReporter {
+        /**
+         * Called on the GLThread right before every {@link GLSurfaceView.Renderer#onDrawFrame}. Fill
+         * in what the frame will change, in window pixels with the origin at the top left, and start
+         * collecting damage for the next frame. With an empty rect the frame is neither drawn nor
+         * swapped where the window keeps the last one.
+         *
+         * @return false to redraw the whole window.
+         */
+        boolean getDamage(Rect damage);
+    }
 }
 
 class LogWriter extends Writer {
@@ -476,6 +568,20 @@ class EglHelper {
         return gl;
     }
 
+    /**
+     * Asks for the content of the current surface to be kept across swaps. Only possible from API 17
+     * and with a config that has EGL_SWAP_BEHAVIOR_PRESERVED_BIT.
+     *
+     * @return true if the surface now preserves its content.
+     */
+    public boolean setSwapPreserved() {
+        if (Build.VERSION.SDK_INT < 17) {
+            return false;
+        }
+        return EGL14.eglSurfaceAttrib(EGL14.eglGetCurrentDisplay(), EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+                EGL14.EGL_SWAP_BEHAVIOR, EGL14.EGL_BUFFER_PRESERVED);
+    }
+
     /**
      * Display the current render surface.
      *
@@ -544,6 +650,12 @@ class GLThread extends Thread {
     private GLSurfaceView.Renderer mRenderer;
     private ArrayList<Runnable> mEventQueue = new ArrayList<Runnable>();
     private EglHelper mEglHelper;
+    private final FramePacer mFramePacer = new FramePacer();
+    private final Rect mDamage = new Rect();
+    private volatile boolean mSwapPreserved;
+    private volatile long mRedrawnPixels;
+    private volatile long mDrawnPixels;
+    private volatile long mSkippedFrameCount;
 
     GLThread(GLSurfaceView.Renderer renderer, GLSurfaceView.EGLConfigChooser chooser, GLSurfaceView.EGLContextFactory contextFactory,
              GLSurfaceView.EGLWindowSurfaceFactory surfaceFactory, GLSurfaceView.GLWrapper wrapper) {
@@ -591,6 +703,7 @@ class GLThread extends Thread {
         mEglHelper = new EglHelper(mEGLConfigChooser, mEGLContextFactory, mEGLWindowSurfaceFactory, mGLWrapper);
         try {
             GL10 gl = null;
+            boolean drawnInFull = false;
             boolean tellRendererSurfaceCreated = true;
             boolean tellRendererSurfaceChanged = true;
 
@@ -648,6 +761,13 @@ class GLThread extends Thread {
 
                         if ((!mPaused) && mHasSurface && mHaveEgl && (mWidth > 0) && (mHeight > 0)
                                 && (mRequestRender || (mRenderMode == GLWallpaperService.GLEngine.RENDERMODE_CONTINUOUSLY))) {
+                            // Hold the frame back until its slot comes up, anything that changes
+                            // our state wakes us up early through notifyAll().
+                            long delayNanos = mFramePacer.nanosUntilNextFrame(System.nanoTime());
+                            if (delayNanos > 0 && !mSizeChanged && !mWaitingForSurface) {
+                                sGLThreadManager.wait(delayNanos / 1000000, (int) (delayNanos % 1000000));
+                                continue;
+                            }
                             changed = mSizeChanged;
                             w = mWidth;
                             h = mHeight;
@@ -691,6 +811,9 @@ class GLThread extends Thread {
                 }
                 if (changed) {
                     gl = (GL10) mEglHelper.createSurface(mHolder);
+                    mSwapPreserved = (mRenderer instanceof GLWallpaperService.DamageReporter)
+                            && mEglHelper.setSwapPreserved();
+                    drawnInFull = false;
                     tellRendererSurfaceChanged = true;
                 }
                 if (tellRendererSurfaceCreated) {
@@ -702,15 +825,50 @@ class GLThread extends Thread {
                     tellRendererSurfaceChanged = false;
                 }
                 if ((w > 0) && (h > 0)) {
+                    mFramePacer.beginFrame(System.nanoTime());
+
+                    long redrawnPixels = (long) w * h;
+                    boolean scissored = false;
+                    if (mRenderer instanceof GLWallpaperService.DamageReporter) {
+                        boolean partial = ((GLWallpaperService.DamageReporter) mRenderer).getDamage(mDamage);
+                        if (partial && mSwapPreserved && drawnInFull) {
+                            if (!mDamage.intersect(0, 0, w, h)) {
+                                mDamage.setEmpty();
+                            }
+                            if (mDamage.isEmpty()) {
+                                // Nothing changed and the window still shows the last frame, so
+                                // there is nothing to draw or swap. The slot still passes, a
+                                // continuous renderer waits for the next one.
+                                mDrawnPixels += (long) w * h;
+                                mSkippedFrameCount++;
+                                mFramePacer.endFrame(System.nanoTime());
+                                continue;
+                            }
+                            // GL counts rows from the bottom.
+                            GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+                            GLES20.glScissor(mDamage.left, h - mDamage.bottom, mDamage.width(), mDamage.height());
+                            redrawnPixels = (long) mDamage.width() * mDamage.height();
+                            scissored = true;
+                        }
+                    }
+
 					/* draw a frame here */
                     mRenderer.onDrawFrame(gl);
+                    if (scissored) {
+                        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+                    }
+                    drawnInFull = true;
+                    mRedrawnPixels += redrawnPixels;
+                    mDrawnPixels += (long) w * h;
 
 					/*
 					 * Once we're done with GL, we need to call swapBuffers() to instruct the system to display the
 					 * rendered frame
 					 */
                     mEglHelper.swap();
-                    Thread.sleep(10);
+                    // The swap has flushed the frame, so the one check per frame does not stall behind it.
+                    GLUtil.checkFrameErrors("frame");
+                    mFramePacer.endFrame(System.nanoTime());
                 }
             }
         } finally {
@@ -755,6 +913,64 @@ class GLThread extends Thread {
         }
     }
 
+    public void setTargetFrameRate(int framesPerSecond) {
+        synchronized (sGLThreadManager) {
+            mFramePacer.setTargetFrameRate(framesPerSecond);
+            sGLThreadManager.notifyAll();
+        }
+    }
+
+    public int getTargetFrameRate() {
+        return mFramePacer.getTargetFrameRate();
+    }
+
+    public void setFramePacing(int pacing) {
+        synchronized (sGLThreadManager) {
+            mFramePacer.setPacingMode(pacing);
+            sGLThreadManager.notifyAll();
+        }
+    }
+
+    public int getFramePacing() {
+        return mFramePacer.getPacingMode();
+    }
+
+    public void setDisplayRefreshRate(float refreshRate) {
+        mFramePacer.setDisplayRefreshRate(refreshRate);
+    }
+
+    /*
+     * Vsync sampling has to be started and stopped from the engine's looper thread.
+     */
+    public void startVsync() {
+        mFramePacer.startVsync();
+    }
+
+    public void stopVsync() {
+        mFramePacer.stopVsync();
+    }
+
+    public long getLateFrameCount() {
+        return mFramePacer.getLateFrameCount();
+    }
+
+    public long getDroppedFrameCount() {
+        return mFramePacer.getDroppedFrameCount();
+    }
+
+    public boolean isSwapPreserved() {
+        return mSwapPreserved;
+    }
+
+    public float getRedrawnPixelFraction() {
+        long drawnPixels = mDrawnPixels;
+        return drawnPixels == 0 ? 1f : mRedrawnPixels / (float) drawnPixels;
+    }
+
+    public long getSkippedFrameCount() {
+        return mSkippedFrameCount;
+    }
+
     public void surfaceCreated(SurfaceHolder holder) {
         mHolder = holder;
         synchronized (sGLThreadManager) {
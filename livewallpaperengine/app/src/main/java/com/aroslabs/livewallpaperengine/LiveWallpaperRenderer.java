@@ -1,9 +1,9 @@
 package com.aroslabs.livewallpaperengine;
 
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
-import android.util.Log;
 import android.view.MotionEvent;
 
 import java.nio.ByteBuffer;
@@ -16,7 +16,7 @@ import javax.microedition.khronos.opengles.GL10;
 /**
  * Example of a simple renderer that draws a colored quad.
  */
-public class LiveWallpaperRenderer implements GLWallpaperService.Renderer{
+public class LiveWallpaperRenderer implements GLWallpaperService.Renderer, GLWallpaperService.DamageReporter {
 
     private static String TAG = "LiveWallpaperRenderer";
 
@@ -43,77 +43,119 @@ public class LiveWallpaperRenderer implements GLWallpaperService.Renderer{
     private int programId;
     private int uniformMVPMatrixLocation;
     private int attribPositionLocation;
-    private float[] MVPMatrix = new float[16];
-    private FloatBuffer vertexCoords;
+    //The quad never moves, so the matrix is worked out once and only sent again to a new program
+    private final float[] MVPMatrix = new float[16];
+    private boolean MVPMatrixDirty = true;
+    //Allocated once, drawing a frame allocates nothing
+    private final RectF crop = new RectF(0, 0, 1, 1);
+    private final FloatBuffer vertexCoords;
+    //The quad in GPU memory, so the driver does not copy it from the heap with every draw
+    private final int[] vertexBuffer = new int[1];
+    private boolean redrawFully = true;
+    //The state set every frame is the same, only the first frame in a context sends it to GL
+    private final GLStateCache stateCache = new GLStateCache();
+
+    public LiveWallpaperRenderer() {
+        vertexCoords = ByteBuffer.allocateDirect(coordsData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        vertexCoords.put(coordsData).position(0);
+
+        //crop via ortho projection
+        Matrix.orthoM(MVPMatrix, 0, crop.left, crop.right, crop.bottom, crop.top, 0, 1);
+    }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        stateCache.invalidate();
+        MVPMatrixDirty = true;
 
-        programId = createProgram(vertexShader, fragmentShader);
+        programId = GLUtil.createProgram(vertexShader, fragmentShader);
         if (programId == 0) {
             return;
         }
 
         uniformMVPMatrixLocation = GLES20.glGetUniformLocation(programId, "uMVPMatrix");
-        checkGlError("glGetUniformLocation uMVPMatrix");
+        GLUtil.checkGlError("glGetUniformLocation uMVPMatrix");
         if (uniformMVPMatrixLocation == -1) {
             throw new RuntimeException("Couldn't get uniform location for uMVPMatrix");
         }
 
         attribPositionLocation = GLES20.glGetAttribLocation(programId, "aPosition");
-        checkGlError("glGetAttribLocation aPosition");
+        GLUtil.checkGlError("glGetAttribLocation aPosition");
         if (attribPositionLocation == -1) {
             throw new RuntimeException("Couldn't get attrib location for aPosition");
         }
 
-        vertexCoords = ByteBuffer.allocateDirect(coordsData.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
-        vertexCoords.put(coordsData).position(0);
+        //A new context, the buffer of the one before is gone with it
+        GLES20.glGenBuffers(1, vertexBuffer, 0);
+        stateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, coordsData.length * 4, vertexCoords, GLES20.GL_STATIC_DRAW);
+        GLUtil.checkGlError("glBufferData");
     }
 
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
+        redrawFully = true;
+    }
+
+    @Override
+    public boolean getDamage(Rect damage) {
+        //The quad never moves, once drawn there is nothing to redraw until the surface changes, and
+        //the engine skips the frames in between
+        boolean partial = !redrawFully;
+        damage.setEmpty();
+        redrawFully = false;
+        return partial;
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
-        GLES20.glUseProgram(programId);
+        stateCache.useProgram(programId);
 
         // Clear Screen And Depth Buffer
-        gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
         //Enable blending
-        GLES20.glEnable(GLES20.GL_BLEND);
-        checkGlError("enable blend");
-        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
-        checkGlError("blend func");
+        stateCache.enable(GLES20.GL_BLEND);
+        GLUtil.checkGlError("enable blend");
+        stateCache.blendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLUtil.checkGlError("blend func");
 
         // No culling of back faces
-        GLES20.glDisable(GLES20.GL_CULL_FACE);
-        checkGlError("disable cull face");
+        stateCache.disable(GLES20.GL_CULL_FACE);
+        GLUtil.checkGlError("disable cull face");
 
         //Disable depth testing
-        GLES20.glDisable(GLES20.GL_DEPTH_TEST);
-        checkGlError("disable depth");
+        stateCache.disable(GLES20.GL_DEPTH_TEST);
+        GLUtil.checkGlError("disable depth");
 
-        GLES20.glUniformMatrix4fv(uniformMVPMatrixLocation, 1, false, MVPMatrix, 0);
+        if (MVPMatrixDirty) {
+            GLES20.glUniformMatrix4fv(uniformMVPMatrixLocation, 1, false, MVPMatrix, 0);
+            MVPMatrixDirty = false;
+        }
 
-        // Vertex positions
-        GLES20.glVertexAttribPointer(attribPositionLocation, 2, GLES20.GL_FLOAT, false, 0, vertexCoords);
-        checkGlError("glVertexAttribPointer attribPositionLocation");
-        GLES20.glEnableVertexAttribArray(attribPositionLocation);
-        checkGlError("glEnableVertexAttribArray attribPositionLocation");
+        // Vertex positions, the buffer stays bound between frames
+        stateCache.bindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBuffer[0]);
+        GLES20.glVertexAttribPointer(attribPositionLocation, 2, GLES20.GL_FLOAT, false, 0, 0);
+        GLUtil.checkGlError("glVertexAttribPointer attribPositionLocation");
+        stateCache.enableVertexAttribArray(attribPositionLocation);
+        GLUtil.checkGlError("glEnableVertexAttribArray attribPositionLocation");
 
-        //crop via ortho projection
-        float[] projectionMatrix = new float[16];
-        RectF crop = new RectF(0, 0, 1, 1);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        GLUtil.checkGlError("glDrawArrays");
+    }
 
-        Matrix.setIdentityM(MVPMatrix, 0);
-        Matrix.setIdentityM(projectionMatrix, 0);
-        Matrix.orthoM(projectionMatrix, 0, crop.left, crop.right, crop.bottom, crop.top, 0, 1);
-        Matrix.multiplyMM(MVPMatrix, 0, projectionMatrix, 0, MVPMatrix, 0);
-        GLES20.glUniformMatrix4fv(uniformMVPMatrixLocation, 1, false, MVPMatrix, 0);
+    /**
+     * @return GL state changes sent to the driver so far.
+     */
+    public long getIssuedStateCallCount() {
+        return stateCache.getIssuedCount();
+    }
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    /**
+     * @return GL state changes skipped because GL was already in that state.
+     */
+    public long getElidedStateCallCount() {
+        return stateCache.getElidedCount();
     }
 
     public void release() {
@@ -123,62 +165,4 @@ public class LiveWallpaperRenderer implements GLWallpaperService.Renderer{
     public void onTouchEvent(MotionEvent event) {
 
     }
-
-    private int loadShader(int shaderType, String source) {
-        int shader = GLES20.glCreateShader(shaderType);
-        checkGlError("glCreateShader type=" + shaderType);
-        GLES20.glShaderSource(shader, source);
-        GLES20.glCompileShader(shader);
-        int[] compiled = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
-        if (compiled[0] == 0) {
-            Log.e(TAG, "Could not compile shader " + shaderType + ":");
-            Log.e(TAG, " " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
-            shader = 0;
-        }
-        return shader;
-    }
-    private int createProgram(String vertexSource, String fragmentSource) {
-        int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
-        if (vertexShader == 0) {
-            return 0;
-        }
-        int pixelShader = loadShader(GLES20.GL_FRAGMENT_SHADER, fragmentSource);
-        if (pixelShader == 0) {
-            return 0;
-        }
-        int program = GLES20.glCreateProgram();
-        checkGlError("glCreateProgram");
-        if (program == 0) {
-            Log.e(TAG, "Could not create program");
-        }
-        GLES20.glAttachShader(program, vertexShader);
-        checkGlError("glAttachShader");
-        GLES20.glAttachShader(program, pixelShader);
-        checkGlError("glAttachShader");
-        GLES20.glLinkProgram(program);
-        int[] linkStatus = new int[1];
-        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
-        if (linkStatus[0] != GLES20.GL_TRUE) {
-            Log.e(TAG, "Could not link program: ");
-            Log.e(TAG, GLES20.glGetProgramInfoLog(program));
-            GLES20.glDeleteProgram(program);
-            program = 0;
-        } else {
-            //After program is linked detach and delete to clean up
-            GLES20.glDetachShader(program, vertexShader);
-            GLES20.glDeleteShader(vertexShader);
-            GLES20.glDetachShader(program, pixelShader);
-            GLES20.glDeleteShader(pixelShader);
-        }
-        return program;
-    }
-    public void checkGlError(String op) {
-        int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
-            Log.e(TAG, op + ": glError " + error);
-            throw new RuntimeException(op + ": glError " + error);
-        }
-    }
 }
@@ -32,6 +32,8 @@ public class LiveWallpaperService extends GLWallpaperService{
             super();
             // handle prefs, other initialization
             renderer = new LiveWallpaperRenderer();
+            // The renderer never depth tests, don't pay for a depth buffer
+            setEGLConfigChooser(false);
             setRenderer(renderer);
             setRenderMode(RENDERMODE_CONTINUOUSLY);
         }
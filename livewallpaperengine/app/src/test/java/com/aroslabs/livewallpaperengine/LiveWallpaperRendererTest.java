@@ -0,0 +1,61 @@
+package com.aroslabs.livewallpaperengine;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drawing the quad in the steady state, with the host's do-nothing GLES20 and Matrix standing in
+ * for the GPU.
+ */
+public class LiveWallpaperRendererTest {
+
+    private static final int WARMUP_FRAMES = 1000;
+    private static final int FRAMES = 10000;
+
+    @Test
+    public void drawingAFrameAllocatesNothing() {
+        LiveWallpaperRenderer renderer = new LiveWallpaperRenderer();
+        renderer.onSurfaceCreated(null, null);
+        renderer.onSurfaceChanged(null, 1080, 1920);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            renderer.onDrawFrame(null);
+        }
+
+        // What reading the counter allocates itself.
+        long start = allocatedBytes();
+        long overhead = allocatedBytes() - start;
+        start = allocatedBytes();
+        for (int i = 0; i < FRAMES; i++) {
+            renderer.onDrawFrame(null);
+        }
+        long allocated = allocatedBytes() - start - overhead;
+        // Any allocation per frame would be at least one object header per frame.
+        assertTrue(allocated + " bytes over " + FRAMES + " frames", allocated < FRAMES);
+    }
+
+    @Test
+    public void steadyFramesSetNoState() {
+        LiveWallpaperRenderer renderer = new LiveWallpaperRenderer();
+        renderer.onSurfaceCreated(null, null);
+        renderer.onSurfaceChanged(null, 1080, 1920);
+        renderer.onDrawFrame(null);
+        long issued = renderer.getIssuedStateCallCount();
+        long elided = renderer.getElidedStateCallCount();
+        renderer.onDrawFrame(null);
+        assertEquals(issued, renderer.getIssuedStateCallCount());
+        assertTrue(renderer.getElidedStateCallCount() > elided);
+
+        // A new context starts over.
+        renderer.onSurfaceCreated(null, null);
+        renderer.onDrawFrame(null);
+        assertTrue(renderer.getIssuedStateCallCount() > issued);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}